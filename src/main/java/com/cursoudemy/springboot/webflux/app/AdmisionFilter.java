@@ -0,0 +1,213 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control de admision de escrituras y subidas; las lecturas pasan sin tocar. Cada cliente tiene un token bucket
+ * (config.admision.tasa por segundo, rafagas de hasta config.admision.rafaga) y cada tipo un limite global de
+ * peticiones en curso. Ese limite se ajusta con la latencia de las escrituras en Mongo: si la media del ultimo
+ * intervalo pasa de config.admision.latencia-objetivo se reduce a la mitad y despues se recupera poco a poco (AIMD).
+ * Lo que no entra se rechaza con 429 y Retry-After.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class AdmisionFilter implements WebFilter {
+    private static final Logger log = LoggerFactory.getLogger(AdmisionFilter.class);
+    private static final String LATENCIA_MONGO = "mongodb.driver.commands";
+    // Los getMore del change stream y de las exportaciones esperan segundos a proposito: no dicen nada de la carga
+    private static final Set<String> ESCRITURAS_MONGO = Set.of("insert", "update", "delete", "findAndModify");
+    // GET que escriben: el borrado desde el listado HTML
+    private static final PathPattern BORRADO_HTML = PathPatternParser.defaultInstance.parse("/productos/delete/{id}");
+    // POST que solo leen: la lista de ids del lote no cabe en la URL
+    private static final PathPattern LECTURA_LOTE = PathPatternParser.defaultInstance.parse("/api/v2/productos/lote");
+
+    enum Tipo {
+        ESCRITURA, SUBIDA
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.admision.enabled:true}")
+    private boolean enabled;
+    @Value("${config.admision.tasa:20}")
+    private double tasa;
+    @Value("${config.admision.rafaga:40}")
+    private double rafaga;
+    @Value("${config.admision.clientes:10000}")
+    private long clientesMax;
+    @Value("${config.admision.escrituras.concurrencia:64}")
+    private int escriturasMax;
+    @Value("${config.admision.subidas.concurrencia:8}")
+    private int subidasMax;
+    @Value("${config.admision.latencia-objetivo:100ms}")
+    private Duration latenciaObjetivo;
+    @Value("${config.admision.factor-min:0.1}")
+    private double factorMin;
+    @Value("${config.admision.intervalo:1s}")
+    private Duration intervalo;
+
+    private Cache<String, Bucket> buckets;
+    private final Map<Tipo, AtomicInteger> enCurso = new EnumMap<>(Tipo.class);
+    private volatile double factor = 1;
+    private double tiempoAnterior;
+    private long cuentaAnterior;
+    private Disposable ajuste;
+
+    @PostConstruct
+    public void iniciar() {
+        buckets = Caffeine.newBuilder().maximumSize(clientesMax).expireAfterAccess(1, TimeUnit.MINUTES).build();
+        for (Tipo tipo : Tipo.values()) {
+            AtomicInteger contador = new AtomicInteger();
+            enCurso.put(tipo, contador);
+            Gauge.builder("admision.en.curso", contador, AtomicInteger::get).tag("tipo", etiqueta(tipo))
+                    .description("Escrituras y subidas admitidas que no han terminado")
+                    .register(meterRegistry);
+        }
+        Gauge.builder("admision.factor", this, filtro -> filtro.factor)
+                .description("Fraccion de los limites de concurrencia en uso segun la latencia de Mongo")
+                .register(meterRegistry);
+        ajuste = Flux.interval(intervalo, intervalo).subscribe(i -> ajustar());
+    }
+
+    @PreDestroy
+    public void detener() {
+        ajuste.dispose();
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        Tipo tipo = enabled ? tipo(exchange.getRequest()) : null;
+        if (tipo == null) return chain.filter(exchange);
+
+        long espera = buckets.get(cliente(exchange.getRequest()), clave -> new Bucket(rafaga)).tomar(tasa, rafaga);
+        if (espera > 0) return rechazar(exchange, tipo, "tasa", espera);
+
+        AtomicInteger contador = enCurso.get(tipo);
+        int limite = Math.max(1, (int) (limiteBase(tipo) * factor));
+        if (contador.incrementAndGet() > limite) {
+            contador.decrementAndGet();
+            return rechazar(exchange, tipo, "concurrencia", intervalo.toNanos());
+        }
+        return chain.filter(exchange).doFinally(senal -> contador.decrementAndGet());
+    }
+
+    // Media de las escrituras a Mongo desde el ultimo ajuste; sin escrituras en el intervalo no se toca el factor
+    synchronized void ajustar() {
+        double tiempo = 0;
+        long cuenta = 0;
+        for (Timer timer : meterRegistry.find(LATENCIA_MONGO).tag("command", ESCRITURAS_MONGO::contains).timers()) {
+            tiempo += timer.totalTime(TimeUnit.NANOSECONDS);
+            cuenta += timer.count();
+        }
+        long comandos = cuenta - cuentaAnterior;
+        double media = comandos > 0 ? (tiempo - tiempoAnterior) / comandos : 0;
+        tiempoAnterior = tiempo;
+        cuentaAnterior = cuenta;
+        if (comandos <= 0) return;
+
+        double anterior = factor;
+        factor = media > latenciaObjetivo.toNanos() ? Math.max(factorMin, factor / 2) : Math.min(1, factor + 0.1);
+        if (factor < anterior) log.warn("Latencia media de Mongo {} ms: limites de escritura al {}%",
+                Math.round(media / 1e6), Math.round(factor * 100));
+    }
+
+    double getFactor() {
+        return factor;
+    }
+
+    private int limiteBase(Tipo tipo) {
+        return tipo == Tipo.SUBIDA ? subidasMax : escriturasMax;
+    }
+
+    private Mono<Void> rechazar(ServerWebExchange exchange, Tipo tipo, String motivo, long esperaNanos) {
+        Counter.builder("admision.rechazos").tag("tipo", etiqueta(tipo)).tag("motivo", motivo)
+                .description("Escrituras y subidas rechazadas con 429")
+                .register(meterRegistry).increment();
+        exchange.getResponse().setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+        long segundos = Math.max(1, (esperaNanos + 999_999_999) / 1_000_000_000);
+        exchange.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(segundos));
+        return exchange.getResponse().setComplete();
+    }
+
+    private static Tipo tipo(ServerHttpRequest request) {
+        HttpMethod metodo = request.getMethod();
+        if (metodo == HttpMethod.GET && BORRADO_HTML.matches(request.getPath().pathWithinApplication())) {
+            return Tipo.ESCRITURA;
+        }
+        if (metodo == null || metodo == HttpMethod.GET || metodo == HttpMethod.HEAD || metodo == HttpMethod.OPTIONS
+                || metodo == HttpMethod.POST && LECTURA_LOTE.matches(request.getPath().pathWithinApplication())) {
+            return null;
+        }
+        MediaType contentType = request.getHeaders().getContentType();
+        return contentType != null && MediaType.MULTIPART_FORM_DATA.includes(contentType) ? Tipo.SUBIDA : Tipo.ESCRITURA;
+    }
+
+    // Solo la direccion remota: X-Forwarded-For lo puede mandar cualquiera. Detras de un proxy de confianza la
+    // reescribe server.forward-headers-strategy (sin resolver, de ahi getHostString)
+    private static String cliente(ServerHttpRequest request) {
+        InetSocketAddress remoto = request.getRemoteAddress();
+        if (remoto == null) return "desconocido";
+        return remoto.getAddress() != null ? remoto.getAddress().getHostAddress() : remoto.getHostString();
+    }
+
+    private static String etiqueta(Tipo tipo) {
+        return tipo == Tipo.SUBIDA ? "subida" : "escritura";
+    }
+
+    static class Bucket {
+        private double tokens;
+        private long ultimo = System.nanoTime();
+
+        Bucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        // 0 si habia token; si no, los nanos hasta el siguiente
+        synchronized long tomar(double tasa, double rafaga) {
+            long ahora = System.nanoTime();
+            tokens = Math.min(rafaga, tokens + (ahora - ultimo) * tasa / 1e9);
+            ultimo = ahora;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1e9 / tasa);
+        }
+    }
+}
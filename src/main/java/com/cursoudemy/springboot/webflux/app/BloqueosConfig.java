@@ -0,0 +1,52 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.WebFilter;
+import reactor.blockhound.BlockHound;
+import reactor.blockhound.BlockingOperationError;
+
+/**
+ * Modo de deteccion de bloqueos (config.bloqueos.detectar=true): BlockHound hace fallar cualquier llamada bloqueante
+ * en un hilo no bloqueante y el filtro la reporta con la traza y la ruta en la que ocurrio. BlockHound es una
+ * dependencia opcional que no va en el jar empaquetado: ahi el modo no se activa aunque este la propiedad.
+ */
+@Configuration
+@ConditionalOnClass(name = "reactor.blockhound.BlockHound")
+@ConditionalOnProperty("config.bloqueos.detectar")
+public class BloqueosConfig {
+    private static final Logger log = LoggerFactory.getLogger(BloqueosConfig.class);
+
+    public BloqueosConfig() {
+        instalar();
+    }
+
+    // install(...) carga ademas las integraciones de Reactor y Netty que marcan sus hilos como no bloqueantes. Se
+    // permiten las lecturas que ocurren una sola vez: cada plantilla antes de entrar en la cache de Thymeleaf y el
+    // SecureRandom de los boundaries multipart al inicializarse
+    public static void instalar() {
+        BlockHound.install(builder -> builder
+                .allowBlockingCallsInside("org.thymeleaf.templateparser.markup.AbstractMarkupTemplateParser", "parseStandalone")
+                .allowBlockingCallsInside("org.springframework.util.MimeTypeUtils", "generateMultipartBoundary"));
+    }
+
+    @Bean
+    public WebFilter bloqueosFilter(MeterRegistry meterRegistry) {
+        return (exchange, chain) -> chain.filter(exchange)
+                .doOnError(BlockingOperationError.class, e -> {
+                    Object patron = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+                    String ruta = exchange.getRequest().getMethodValue() + " " + (patron != null ? patron : "UNKNOWN");
+                    log.error("Llamada bloqueante en {}", ruta, e);
+                    Counter.builder("reactor.bloqueos").tag("ruta", ruta)
+                            .description("Llamadas bloqueantes detectadas en hilos no bloqueantes")
+                            .register(meterRegistry).increment();
+                });
+    }
+}
@@ -0,0 +1,153 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Foto;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.documents.PropagacionCategoria;
+import com.cursoudemy.springboot.webflux.app.models.services.ProductoService;
+import com.mongodb.client.result.UpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Carga los datos de ejemplo en pasos ordenados. Mientras no termina, el indicador "cargaInicial" del grupo
+ * readiness queda fuera de servicio para que no llegue trafico a una base a medio cargar. Sin carga, solo se crean
+ * los indices y se ponen version y nombre normalizado a los productos escritos antes de que existieran.
+ */
+@Component
+public class CargaInicial implements CommandLineRunner, HealthIndicator {
+    private static final Logger log = LoggerFactory.getLogger(CargaInicial.class);
+    private static final String[] TIPOS = {"Notebook", "Camara Digital", "Televisor", "Bicicleta", "Comoda", "Monitor",
+            "Impresora", "Audifonos"};
+    private static final String[] MARCAS = {"Sony", "Apple", "Samsung", "Hewlett Packard", "Bianchi", "Lenovo", "Mica"};
+
+    @Autowired
+    private ProductoService service;
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+
+    @Value("${config.seed.enabled:true}")
+    private boolean enabled;
+    @Value("${config.seed.sinteticos.categorias:0}")
+    private int categoriasSinteticas;
+    @Value("${config.seed.sinteticos.productos:0}")
+    private int productosSinteticos;
+    @Value("${config.seed.batch-size:1000}")
+    private int batchSize;
+    @Value("${config.seed.concurrency:4}")
+    private int concurrency;
+
+    private final Map<String, Object> pasos = new LinkedHashMap<>();
+    private volatile Health estado = Health.outOfService().build();
+
+    @Override
+    public void run(String... args) {
+        if (!enabled) {
+            // Nada mas crea los indices (no hay @Indexed ni auto-index), asi que van tambien sin carga
+            paso("indices", service.crearIndices().thenReturn(0L))
+                    // Sin version dao.save trataria el producto leido como nuevo y el insert chocaria con su _id
+                    .then(paso("versiones", mongoTemplate.updateMulti(new Query(Criteria.where("version").exists(false)),
+                            new Update().set("version", 0L), Producto.class).map(UpdateResult::getModifiedCount)))
+                    // Sin nombre normalizado la busqueda no los encontraria
+                    .then(paso("nombres", service.normalizarNombres(batchSize)))
+                    .subscribe(null, e -> {
+                        log.error("No se pudieron preparar los productos existentes", e);
+                        estado = Health.down().withDetail("error", String.valueOf(e.getMessage())).build();
+                    }, () -> estado = Health.up().withDetail("habilitada", false).withDetails(detalles()).build());
+            return;
+        }
+
+        Categoria electronico = new Categoria("Electronico");
+        Categoria deporte = new Categoria("Deporte");
+        Categoria computacion = new Categoria("Computacion");
+        Categoria mueble = new Categoria("Muebles");
+        List<Categoria> categorias = new ArrayList<>(List.of(electronico, deporte, computacion, mueble));
+        for (int i = 1; i <= categoriasSinteticas; i++) categorias.add(new Categoria("Categoria " + i));
+
+        List<Producto> ejemplos = List.of(new Producto("TV Panasonic Pantalla LCD", 456.89, electronico),
+                new Producto("Sony Camara HD Digital", 177.89, electronico),
+                new Producto("Apple iPod", 46.89, electronico),
+                new Producto("Sony Notebook", 846.89, computacion),
+                new Producto("Hewlett Packard Multifuncional", 200.89, computacion),
+                new Producto("Bianchi Bicicleta", 70.89, deporte),
+                new Producto("HP Notebook Omen 17", 2500.89, computacion),
+                new Producto("Mica Comoda 5 Cajones", 150.89, mueble),
+                new Producto("TV Sony Bravia OLED 4K Ultra HD", 2255.89, electronico));
+
+        // Cada paso empieza cuando termina el anterior: los drops ya no compiten con los inserts. Las cuentas de
+        // referencias de las fotos se van con los productos; los bytes quedan en el almacen y una subida con el mismo
+        // contenido los vuelve a contar
+        paso("limpiar", Mono.when(mongoTemplate.dropCollection(Producto.class), mongoTemplate.dropCollection(Categoria.class),
+                        mongoTemplate.dropCollection(PropagacionCategoria.class), mongoTemplate.dropCollection(Foto.class))
+                .thenReturn(0L))
+                .then(paso("indices", service.crearIndices().thenReturn(0L)))
+                .then(paso("categorias", insertar(Flux.fromIterable(categorias))))
+                .then(paso("productos", insertar(Flux.fromIterable(ejemplos).doOnNext(p -> p.setCreatedAt(new Date())))))
+                .then(paso("sinteticos", insertar(Flux.range(0, productosSinteticos)
+                        .map(i -> sintetico(i, categorias.get(i % categorias.size()))))))
+                .subscribe(null, e -> {
+                    log.error("Carga inicial fallida", e);
+                    estado = Health.down().withDetail("error", String.valueOf(e.getMessage())).withDetails(detalles()).build();
+                }, () -> estado = Health.up().withDetails(detalles()).build());
+    }
+
+    @Override
+    public Health health() {
+        return estado;
+    }
+
+    // Lotes insertMany con concurrencia acotada; los ids generados quedan en los mismos objetos
+    private <T> Mono<Long> insertar(Flux<T> documentos) {
+        return documentos.buffer(batchSize)
+                .flatMap(lote -> mongoTemplate.insertAll(lote).count(), concurrency)
+                .reduce(0L, Long::sum);
+    }
+
+    private Mono<Void> paso(String nombre, Mono<Long> accion) {
+        return Mono.defer(() -> {
+            estado = Health.outOfService().withDetail("paso", nombre).build();
+            long inicio = System.nanoTime();
+            return accion.doOnNext(insertados -> {
+                long ms = Math.max(1, (System.nanoTime() - inicio) / 1_000_000);
+                long porSegundo = insertados * 1000 / ms;
+                log.info("Carga inicial, paso {}: {} inserts en {} ms ({} inserts/s)", nombre, insertados, ms, porSegundo);
+                synchronized (pasos) {
+                    pasos.put(nombre, Map.of("inserts", insertados, "ms", ms, "insertsPorSegundo", porSegundo));
+                }
+            });
+        }).then();
+    }
+
+    private Map<String, Object> detalles() {
+        synchronized (pasos) {
+            return new LinkedHashMap<>(pasos);
+        }
+    }
+
+    private static Producto sintetico(int i, Categoria categoria) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Producto producto = new Producto(TIPOS[random.nextInt(TIPOS.length)] + " " + MARCAS[random.nextInt(MARCAS.length)]
+                + " " + i, Math.round(random.nextDouble(10, 5000) * 100) / 100.0, categoria);
+        producto.setCreatedAt(new Date());
+        return producto;
+    }
+}
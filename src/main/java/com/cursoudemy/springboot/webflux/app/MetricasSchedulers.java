@@ -0,0 +1,82 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+import reactor.core.Scannable;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.ToIntFunction;
+
+/**
+ * Tareas en cola y en ejecucion por scheduler de Reactor. Los executors se agrupan por nombre de scheduler: los de
+ * boundedElastic se crean y descartan con la carga, y etiquetarlos uno a uno dispararia la cardinalidad.
+ */
+@Component
+public class MetricasSchedulers implements MeterBinder {
+    private static final String DECORADOR = "metricas";
+    private static final Map<String, Set<ThreadPoolExecutor>> executors = new ConcurrentHashMap<>();
+    private static volatile MeterRegistry registry;
+
+    public MetricasSchedulers() {
+        instalar();
+    }
+
+    // Solo ve los executors creados despues; main lo llama antes de arrancar para incluir los schedulers globales
+    public static void instalar() {
+        Schedulers.addExecutorServiceDecorator(DECORADOR, (scheduler, executor) -> {
+            if (executor instanceof ThreadPoolExecutor pool) {
+                String nombre = nombre(Scannable.from(scheduler).scanOrDefault(Scannable.Attr.NAME, "desconocido"));
+                executors.computeIfAbsent(nombre, MetricasSchedulers::registrar).add(pool);
+            }
+            return executor;
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        registry = meterRegistry;
+        executors.keySet().forEach(nombre -> gauges(meterRegistry, nombre));
+    }
+
+    private static Set<ThreadPoolExecutor> registrar(String nombre) {
+        MeterRegistry actual = registry;
+        if (actual != null) gauges(actual, nombre);
+        return Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    }
+
+    private static void gauges(MeterRegistry meterRegistry, String nombre) {
+        Gauge.builder("reactor.scheduler.tareas.pendientes", () -> sumar(nombre, pool -> pool.getQueue().size()))
+                .tag("scheduler", nombre)
+                .description("Tareas en cola en los executors del scheduler")
+                .register(meterRegistry);
+        Gauge.builder("reactor.scheduler.tareas.activas", () -> sumar(nombre, ThreadPoolExecutor::getActiveCount))
+                .tag("scheduler", nombre)
+                .description("Tareas ejecutandose en los executors del scheduler")
+                .register(meterRegistry);
+    }
+
+    private static int sumar(String nombre, ToIntFunction<ThreadPoolExecutor> valor) {
+        Set<ThreadPoolExecutor> pools = executors.getOrDefault(nombre, Set.of());
+        synchronized (pools) {
+            pools.removeIf(ThreadPoolExecutor::isShutdown);
+            return pools.stream().mapToInt(valor).sum();
+        }
+    }
+
+    // "boundedElastic(\"io\",maxThreads=8,...)" -> "io"; el nombre queda fijo por scheduler
+    private static String nombre(String descripcion) {
+        int inicio = descripcion.indexOf('"');
+        int fin = inicio < 0 ? -1 : descripcion.indexOf('"', inicio + 1);
+        if (fin > inicio) return descripcion.substring(inicio + 1, fin);
+        int parentesis = descripcion.indexOf('(');
+        return parentesis > 0 ? descripcion.substring(0, parentesis) : descripcion;
+    }
+}
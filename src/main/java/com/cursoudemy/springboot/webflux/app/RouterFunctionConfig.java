@@ -12,15 +12,26 @@ import static org.springframework.web.reactive.function.server.RouterFunctions.r
 
 @Configuration
 public class RouterFunctionConfig {
+    private static final MediaType[] FORMATOS = {MediaType.APPLICATION_JSON, MediaType.APPLICATION_CBOR,
+            CodecsConfig.APPLICATION_SMILE};
+
     @Bean
     public RouterFunction<ServerResponse> routes(ProductHandler handler) {
-        return route(GET("/api/v2/productos").or(GET("/api/v3/productos")), handler::index)
-                .andRoute(GET("/api/v2/productos/{id}").and(contentType(MediaType.APPLICATION_JSON)), handler::show)
-                .andRoute(POST("/api/v2/productos").and(contentType(MediaType.APPLICATION_JSON)), handler::save)
-                .andRoute(PUT("/api/v2/productos/{id}").and(contentType(MediaType.APPLICATION_JSON)), handler::update)
-                .andRoute(DELETE("/api/v2/productos/{id}").and(contentType(MediaType.APPLICATION_JSON)), handler::delete)
+        return route(GET("/api/v2/productos").and(queryParam("ids", ids -> true)), handler::lote)
+                .andRoute(GET("/api/v2/productos").or(GET("/api/v3/productos")), handler::index)
+                .andRoute(POST("/api/v2/productos/lote").and(contentType(FORMATOS)), handler::lote)
+                .andRoute(GET("/api/v2/productos/export"), handler::export)
+                .andRoute(GET("/api/v2/productos/search"), handler::search)
+                .andRoute(GET("/api/v2/productos/estadisticas"), handler::estadisticas)
+                .andRoute(GET("/api/v2/productos/{id}").and(contentType(FORMATOS)), handler::show)
+                .andRoute(POST("/api/v2/productos").and(contentType(FORMATOS)), handler::save)
+                .andRoute(PUT("/api/v2/productos/{id}").and(contentType(FORMATOS)), handler::update)
+                .andRoute(PATCH("/api/v2/productos/{id}").and(contentType(FORMATOS)), handler::patch)
+                .andRoute(DELETE("/api/v2/productos/{id}").and(contentType(FORMATOS)), handler::delete)
                 .andRoute(POST("/api/v2/productos/upload/{id}"), handler::uploadImage)
-                .andRoute(POST("/api/v2/productos/save-with-image"), handler::saveWithImage);
+                .andRoute(POST("/api/v2/productos/save-with-image"), handler::saveWithImage)
+                .andRoute(POST("/api/v2/productos/import")
+                        .and(contentType(MediaType.APPLICATION_JSON, MediaType.APPLICATION_NDJSON)), handler::importar);
 
     }
 }
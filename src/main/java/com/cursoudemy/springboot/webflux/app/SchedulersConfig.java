@@ -0,0 +1,18 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Configuration
+public class SchedulersConfig {
+
+    // Acceso a disco (fotos, temporales, atributos). Acotado en hilos y en cola para que una rafaga de subidas
+    // no se lleve todo el boundedElastic compartido
+    @Bean(destroyMethod = "dispose")
+    public Scheduler io(@Value("${config.io.threads:8}") int threads, @Value("${config.io.queue-capacity:10000}") int queueCapacity) {
+        return Schedulers.newBoundedElastic(threads, queueCapacity, "io");
+    }
+}
@@ -0,0 +1,252 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ReactiveHttpInputMessage;
+import org.springframework.http.codec.multipart.DefaultPartHttpMessageReader;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.multipart.FormFieldPart;
+import org.springframework.http.codec.multipart.Part;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.unit.DataSize;
+import org.springframework.validation.BindingResult;
+import org.springframework.validation.Validator;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.reactive.function.BodyExtractor;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PostConstruct;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lectura en streaming de los formularios con foto: las partes se procesan segun llegan, los campos se acumulan y
+ * el archivo "file" va directo a {@link FotoService} sin que el lector lo agregue antes en memoria o en disco, asi que
+ * la memoria por subida no depende del tamano de la foto. Los limites (config.uploads.multipart.*) se comprueban
+ * mientras se lee: una foto que pasa de max-file-size corta la subida con 413 en cuanto cruza el limite, y un campo
+ * que pasa de max-field-size tambien. Sustituye a multipartData()/@RequestPart, que agregan el cuerpo entero.
+ */
+@Component
+public class SubidasMultipart {
+    public static final String ARCHIVO = "file";
+
+    @Autowired
+    private FotoService fotos;
+    @Autowired
+    private Validator validator;
+    @Autowired
+    @Qualifier("webFluxConversionService")
+    private ConversionService conversionService;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.uploads.multipart.max-file-size:10MB}")
+    private DataSize maxFileSize;
+    @Value("${config.uploads.multipart.max-field-size:16KB}")
+    private DataSize maxFieldSize;
+    @Value("${config.uploads.multipart.max-parts:32}")
+    private int maxParts;
+    @Value("${config.uploads.multipart.max-headers-size:8KB}")
+    private DataSize maxHeadersSize;
+
+    private DefaultPartHttpMessageReader reader;
+
+    @PostConstruct
+    public void iniciar() {
+        reader = new DefaultPartHttpMessageReader();
+        reader.setStreaming(true);
+        reader.setMaxInMemorySize((int) maxFieldSize.toBytes());
+        reader.setMaxHeadersSize((int) maxHeadersSize.toBytes());
+        reader.setMaxParts(maxParts);
+    }
+
+    public BodyExtractor<Mono<Formulario>, ReactiveHttpInputMessage> formulario() {
+        return (mensaje, contexto) -> leer(mensaje);
+    }
+
+    // En streaming el lector solo pide mas bytes si hay demanda de partes y falla si llegan bytes de una parte antes
+    // de que alguien escuche su contenido. Por eso cada parte se engancha en cuanto llega (map) y las partes se piden
+    // sin limite (ya lo pone max-parts); el trabajo de cada una se hace despues, en orden
+    public Mono<Formulario> leer(ReactiveHttpInputMessage mensaje) {
+        return Mono.defer(() -> {
+            Formulario formulario = new Formulario();
+            return reader.read(ResolvableType.forClass(Part.class), mensaje, Map.of())
+                    .map(parte -> procesar(parte, formulario))
+                    .concatMap(trabajo -> trabajo, Integer.MAX_VALUE)
+                    .then(Mono.just(formulario))
+                    .onErrorResume(e -> fotos.liberar(formulario.foto).then(Mono.error(traducir(e))));
+        });
+    }
+
+    // Vincula los campos como lo haria @ModelAttribute (conversion, @DateTimeFormat, anidados); validar equivale a @Valid.
+    // Solo se vinculan los campos permitidos: el resto del formulario se ignora
+    public BindingResult vincular(Object destino, String nombre, MultiValueMap<String, String> campos, boolean validar,
+                                  String... permitidos) {
+        WebDataBinder binder = new WebDataBinder(destino, nombre);
+        binder.setAllowedFields(permitidos);
+        binder.setConversionService(conversionService);
+        binder.setValidator(validator);
+        Map<String, Object> valores = new HashMap<>();
+        campos.forEach((campo, lista) -> valores.put(campo, lista.size() == 1 ? lista.get(0) : lista));
+        binder.bind(new MutablePropertyValues(valores));
+        if (validar) binder.validate();
+        return binder.getBindingResult();
+    }
+
+    private Mono<Void> procesar(Part parte, Formulario formulario) {
+        if (parte instanceof FormFieldPart) {
+            formulario.campos.add(parte.name(), ((FormFieldPart) parte).value());
+            return Mono.empty();
+        }
+        ArchivoLimitado archivo = new ArchivoLimitado(parte, maxFileSize.toBytes());
+        if (parte instanceof FilePart && ARCHIVO.equals(parte.name()) && !formulario.conArchivo
+                && !((FilePart) parte).filename().isEmpty()) {
+            formulario.conArchivo = true;
+            return fotos.guardar(archivo)
+                    .doOnNext(foto -> formulario.foto = foto)
+                    .then();
+        }
+        // Archivos de mas o vacios: se descartan, pero hay que leerlos para llegar a la parte siguiente
+        return archivo.content().doOnNext(DataBufferUtils::release).then();
+    }
+
+    private Throwable traducir(Throwable e) {
+        if (e instanceof DataBufferLimitException || e instanceof ArchivoDemasiadoGrande) {
+            Counter.builder("fotos.subida.rechazadas").tag("motivo", "tamano")
+                    .description("Subidas multipart cortadas por pasar de los limites")
+                    .register(meterRegistry).increment();
+            return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, e.getMessage(), e);
+        }
+        if (e instanceof DecodingException) {
+            Counter.builder("fotos.subida.rechazadas").tag("motivo", "formato")
+                    .description("Subidas multipart rechazadas por no ser un multipart valido")
+                    .register(meterRegistry).increment();
+            return new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
+        return e;
+    }
+
+    /**
+     * Los campos del formulario y el nombre de la foto guardada, si venia una. Quien no llegue a guardar el producto
+     * tiene que liberar la foto.
+     */
+    public static class Formulario {
+        private final MultiValueMap<String, String> campos = new LinkedMultiValueMap<>();
+        private boolean conArchivo;
+        private volatile String foto;
+
+        public MultiValueMap<String, String> getCampos() {
+            return campos;
+        }
+
+        public String getCampo(String nombre) {
+            return campos.getFirst(nombre);
+        }
+
+        public String getFoto() {
+            return foto;
+        }
+    }
+
+    private static class ArchivoDemasiadoGrande extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ArchivoDemasiadoGrande(String filename, long maximo) {
+            super("La foto " + filename + " pasa de " + maximo + " bytes");
+        }
+    }
+
+    // El contenido se conecta al crear la parte, aunque FotoService no se suscriba hasta abrir el temporal en el
+    // scheduler io: se piden unos pocos buffers por adelantado y despues solo lo que pida quien lo consume
+    private static class ArchivoLimitado implements FilePart {
+        private static final int PENDIENTES = 4;
+
+        private final Part parte;
+        private final Flux<DataBuffer> contenido;
+
+        ArchivoLimitado(Part parte, long maximo) {
+            this.parte = parte;
+            AtomicLong leidos = new AtomicLong();
+            Sinks.Many<DataBuffer> buffers = Sinks.many().unicast().onBackpressureBuffer();
+            BaseSubscriber<DataBuffer> conexion = new BaseSubscriber<>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    subscription.request(PENDIENTES);
+                }
+
+                @Override
+                protected void hookOnNext(DataBuffer buffer) {
+                    if (leidos.addAndGet(buffer.readableByteCount()) > maximo) {
+                        DataBufferUtils.release(buffer);
+                        cancel();
+                        buffers.tryEmitError(new ArchivoDemasiadoGrande(filename(), maximo));
+                    } else if (buffers.tryEmitNext(buffer).isFailure()) {
+                        DataBufferUtils.release(buffer);
+                    }
+                }
+
+                @Override
+                protected void hookOnComplete() {
+                    buffers.tryEmitComplete();
+                }
+
+                @Override
+                protected void hookOnError(Throwable e) {
+                    buffers.tryEmitError(e);
+                }
+            };
+            parte.content().subscribe(conexion);
+            this.contenido = buffers.asFlux()
+                    .doOnRequest(conexion::request)
+                    .doOnCancel(conexion::dispose)
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        }
+
+        @Override
+        public String filename() {
+            return parte instanceof FilePart ? ((FilePart) parte).filename() : parte.name();
+        }
+
+        @Override
+        public Mono<Void> transferTo(Path dest) {
+            return DataBufferUtils.write(content(), dest);
+        }
+
+        @Override
+        public String name() {
+            return parte.name();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return parte.headers();
+        }
+
+        @Override
+        public Flux<DataBuffer> content() {
+            return contenido;
+        }
+    }
+}
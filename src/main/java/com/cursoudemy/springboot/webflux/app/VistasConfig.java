@@ -0,0 +1,32 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.controllers.VistaAdaptativa;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.thymeleaf.spring5.ISpringWebFluxTemplateEngine;
+import org.thymeleaf.spring5.view.reactive.ThymeleafReactiveViewResolver;
+
+@Configuration
+public class VistasConfig {
+
+    // Thymeleaf se inicializa con la primera vista (lee recursos del classpath); se adelanta al arranque para que
+    // no ocurra en un hilo de la peticion
+    @Bean
+    public SmartInitializingSingleton inicializarThymeleaf(ISpringWebFluxTemplateEngine templateEngine) {
+        return templateEngine::getConfiguration;
+    }
+
+    // Las vistas data-driver toman el tamano de chunk de cada peticion (ver RenderizadoAdaptativo)
+    @Bean
+    public static BeanPostProcessor vistaAdaptativa() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                if (bean instanceof ThymeleafReactiveViewResolver resolver) resolver.setViewClass(VistaAdaptativa.class);
+                return bean;
+            }
+        };
+    }
+}
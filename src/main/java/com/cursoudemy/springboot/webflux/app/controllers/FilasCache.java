@@ -0,0 +1,77 @@
+package com.cursoudemy.springboot.webflux.app.controllers;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.format.support.FormattingConversionService;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.thymeleaf.spring5.ISpringWebFluxTemplateEngine;
+import org.thymeleaf.spring5.context.webflux.SpringWebFluxContext;
+import org.thymeleaf.spring5.expression.ThymeleafEvaluationContext;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filas de los listados ya renderizadas (fragmentos de filas.html). La clave lleva id y version del producto: al
+ * guardarlo cambia la version y la fila se vuelve a renderizar.
+ */
+@Component
+public class FilasCache {
+    private static final String PLANTILLA = "filas";
+
+    @Autowired
+    private ISpringWebFluxTemplateEngine templateEngine;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ApplicationContext applicationContext;
+    @Autowired
+    private FormattingConversionService webFluxConversionService;
+
+    @Value("${config.cache.filas.max-size:20000}")
+    private long maxSize;
+    @Value("${config.cache.filas.ttl:30m}")
+    private Duration ttl;
+
+    private Cache<String, String> filas;
+    private ThymeleafEvaluationContext evaluationContext;
+
+    @PostConstruct
+    public void initCache() {
+        filas = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(ttl)
+                .recordStats()
+                .build(), "filas");
+        // El mismo contexto que usa la vista completa, con las conversiones de Spring (Date -> Calendar, formatos)
+        evaluationContext = new ThymeleafEvaluationContext(applicationContext, webFluxConversionService);
+    }
+
+    public Flux<String> renderizar(String fragmento, Flux<Producto> productos, ServerWebExchange exchange) {
+        Locale locale = exchange.getLocaleContext().getLocale();
+        Locale idioma = locale != null ? locale : Locale.getDefault();
+        return productos.map(producto -> {
+            // Sin version (documentos anteriores a @Version) no hay forma de saber si cambio
+            if (producto.getId() == null || producto.getVersion() == null) return fila(fragmento, producto, exchange, idioma);
+            String clave = fragmento + ":" + idioma + ":" + producto.getId() + ":" + producto.getVersion();
+            return filas.get(clave, k -> fila(fragmento, producto, exchange, idioma));
+        });
+    }
+
+    private String fila(String fragmento, Producto producto, ServerWebExchange exchange, Locale locale) {
+        return templateEngine.process(PLANTILLA, Set.of(fragmento),
+                new SpringWebFluxContext(exchange, locale, Map.of("producto", producto,
+                        ThymeleafEvaluationContext.THYMELEAF_EVALUATION_CONTEXT_CONTEXT_VARIABLE_NAME, evaluationContext)));
+    }
+}
@@ -1,60 +1,93 @@
 package com.cursoudemy.springboot.webflux.app.controllers;
 
+import com.cursoudemy.springboot.webflux.app.SubidasMultipart;
 import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
 import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenFotos;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import com.cursoudemy.springboot.webflux.app.models.services.MiniaturaService;
 import com.cursoudemy.springboot.webflux.app.models.services.ProductoService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.StringUtils;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
-import org.thymeleaf.spring5.context.webflux.ReactiveDataDriverContextVariable;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
-import javax.validation.Valid;
-import java.io.File;
-import java.net.MalformedURLException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.Date;
-import java.util.UUID;
 
 @SessionAttributes("producto")
 @Controller
 @RequestMapping("/productos")
 public class ProductoController {
-    @Value("${config.uploads.path}")
-    private String path;
     @Autowired
     private ProductoService service;
+    @Autowired
+    private MiniaturaService miniaturas;
+    @Autowired
+    private FotoService fotos;
+    @Autowired
+    private AlmacenFotos almacen;
+    @Autowired
+    private SubidasMultipart subidas;
+    @Autowired
+    private Scheduler io;
+    @Autowired
+    private FilasCache filas;
+    @Autowired
+    private RenderizadoAdaptativo renderizado;
 
     private static final Logger log = LoggerFactory.getLogger(ProductoController.class);
+    private static final String CACHE_CONTROL_FOTOS = "public, max-age=31536000, immutable";
+    private static final String CACHE_CONTROL_PENDIENTE = "public, max-age=60";
 
     @ModelAttribute("categorias")
     public Flux<Categoria> categorias() {
         return service.findAllCategoria();
     }
 
+    // El nombre de cada foto es el digest de su contenido y nunca se sobrescribe, por eso se puede cachear indefinidamente.
+    // El ETag es ese digest (con el tamano delante en los derivados) y con el Last-Modified habilita los 304;
+    // ResourceHttpMessageWriter resuelve los Range (con zero-copy si el almacen es de archivos). Con "size" se sirve el
+    // derivado de ese tamano, o el original con cache corta mientras el derivado no exista.
     @GetMapping("/uploads/img/{nombreFoto:.+}")
-    public Mono<ResponseEntity<Resource>> getFoto(@PathVariable String nombreFoto) throws MalformedURLException {
-        Path ruta = Paths.get(path).resolve(nombreFoto).toAbsolutePath();
-        log.info(ruta.toString());
-        Resource imagen = new UrlResource(ruta.toUri());
-        log.info(imagen.toString());
-        return Mono.just(ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + imagen.getFilename() + "\"")
-                .body(imagen)
-        );
+    public Mono<ResponseEntity<Resource>> getFoto(@PathVariable String nombreFoto, @RequestParam(required = false) String size) {
+        if (nombreFoto.contains("/") || nombreFoto.contains("\\") || nombreFoto.startsWith("."))
+            return Mono.just(ResponseEntity.notFound().build());
+
+        if (size == null || !miniaturas.isTamano(size))
+            return foto(nombreFoto, CACHE_CONTROL_FOTOS).defaultIfEmpty(ResponseEntity.notFound().build());
+
+        return foto(size + "/" + nombreFoto, CACHE_CONTROL_FOTOS)
+                .switchIfEmpty(foto(nombreFoto, CACHE_CONTROL_PENDIENTE))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    private Mono<ResponseEntity<Resource>> foto(String clave, String cacheControl) {
+        String nombre = StringUtils.getFilename(clave);
+        return Mono.fromCallable(() -> almacen.leer(clave))
+                .subscribeOn(io)
+                .map(foto -> ResponseEntity.ok()
+                        .eTag(StringUtils.stripFilenameExtension(clave).replace('/', '-'))
+                        .lastModified(Instant.ofEpochMilli(foto.getModificado()))
+                        .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+                        .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + nombre + "\"")
+                        .contentType(MediaTypeFactory.getMediaType(nombre).orElse(MediaType.APPLICATION_OCTET_STREAM))
+                        .body(foto.getRecurso()));
     }
 
     @GetMapping("/show/{id}")
@@ -71,12 +104,12 @@ public class ProductoController {
                 .onErrorResume(ex -> Mono.just("redirect:/productos?error=No+existe+el+producto"));
     }
 
+    // Una sola suscripcion a la consulta: el log va en la misma cadena que renderiza las filas
     @GetMapping
-    public Mono<String> index(Model model) {
-        Flux<Producto> productos = service.findAllConNombreUpperCase();
-        productos.subscribe(p -> log.info(p.getNombre()));
+    public Mono<String> index(Model model, ServerWebExchange exchange) {
+        Flux<Producto> productos = service.findAllConNombreUpperCase().doOnNext(p -> log.debug(p.getNombre()));
 
-        model.addAttribute("productos", productos);
+        model.addAttribute("filas", filas.renderizar("index", productos, exchange));
         model.addAttribute("titulo", "Listado de Productos");
 
         return Mono.just("index");
@@ -120,81 +153,79 @@ public class ProductoController {
         return Mono.just("create");
     }
 
+    // El formulario se lee en streaming: la foto se guarda segun llega y se libera si el formulario tiene errores.
+    // El producto es el de la sesion (edicion) o uno nuevo, vinculado y validado como con @Valid. Su id, version y foto
+    // salen de la sesion: los campos ocultos del formulario no se vinculan.
     @PostMapping
-    public Mono<String> save(@Valid Producto producto, BindingResult result, Model model, @RequestPart(name = "file") FilePart file) {
-//        status.setComplete();
-        if (result.hasErrors()) {
-            model.addAttribute("titulo", "Errores en formulario producto");
-            log.info(result.toString());
-            return Mono.just("create");
-        }
-
-        String action = producto.getId() != null ? "actualizado" : "creado";
-        Mono<Categoria> categoria = service.findCategoriaById(producto.getCategoria().getId());
-
-        return categoria.flatMap(c -> {
-                    if (producto.getCreatedAt() == null) producto.setCreatedAt(new Date());
-                    if (!file.filename().isEmpty()) producto.setFoto(UUID.randomUUID().toString() + "-" + file.filename()
-                            .replaceAll("_", "")
-                            .replaceAll(":", "")
-                            .replaceAll("/\\/", "")
-                            .replaceAll("/", ""));
-
-                    producto.setCategoria(c);
-                    return service.save(producto);
-                }).doOnNext(p -> {
-                    log.info("Categoria asignada: " + p.getCategoria().getNombre());
-                    log.info("Producto Guardado: " + p.getNombre() + " ID: " + p.getId());
-                }).flatMap(p -> {
-                    if (!file.filename().isEmpty()) return file.transferTo(new File(path + p.getFoto()));
-                    return Mono.empty();
-                })
-                .thenReturn("redirect:/productos?status=Producto+" + action + "+con+exito");
-//        }).then(Mono.just("redirect:/productos");
+    public Mono<String> save(Model model, ServerWebExchange exchange) {
+        return subidas.leer(exchange.getRequest()).flatMap(formulario -> {
+            Producto producto = model.getAttribute("producto") instanceof Producto p ? p : new Producto();
+            BindingResult result = subidas.vincular(producto, "producto", formulario.getCampos(), true,
+                    Producto.CAMPOS_FORMULARIO);
+            if (result.hasErrors()) {
+                model.addAttribute("producto", producto);
+                model.addAttribute(BindingResult.MODEL_KEY_PREFIX + "producto", result);
+                model.addAttribute("titulo", "Errores en formulario producto");
+                log.info(result.toString());
+                return fotos.liberar(formulario.getFoto()).thenReturn("create");
+            }
+
+            String action = producto.getId() != null ? "actualizado" : "creado";
+            Mono<Categoria> categoria = service.findCategoriaById(producto.getCategoria().getId())
+                    .switchIfEmpty(Mono.defer(() -> fotos.liberar(formulario.getFoto()).then(Mono.empty())));
+
+            return categoria.flatMap(c -> {
+                        if (producto.getCreatedAt() == null) producto.setCreatedAt(new Date());
+                        producto.setCategoria(c);
+                        if (formulario.getFoto() == null) return service.save(producto);
+
+                        String anterior = producto.getFoto();
+                        producto.setFoto(formulario.getFoto());
+                        return service.save(producto)
+                                .flatMap(p -> fotos.liberar(anterior).thenReturn(p)).doOnNext(miniaturas::generar);
+                    }).doOnNext(p -> {
+                        log.info("Categoria asignada: " + p.getCategoria().getNombre());
+                        log.info("Producto Guardado: " + p.getNombre() + " ID: " + p.getId());
+                    })
+                    .thenReturn("redirect:/productos?status=Producto+" + action + "+con+exito")
+                    .onErrorResume(OptimisticLockingFailureException.class,
+                            ex -> fotos.liberar(formulario.getFoto())
+                                    .thenReturn("redirect:/productos?error=El+producto+fue+modificado+por+otro+usuario"));
+        });
     }
 
     @GetMapping("/delete/{id}")
     public Mono<String> delete(@PathVariable String id) {
-        return service.findById(id)
-                .defaultIfEmpty(new Producto())
-                .flatMap(p -> {
-                    if (p.getId() == null)
-                        return Mono.error(new InterruptedException("No existe el producto a eliminar!"));
-
-                    return Mono.just(p);
-                })
-                .flatMap(service::delete)
-                .then(Mono.just("redirect:/productos?status=Producto+eliminado+con+exito"))
-                .onErrorResume(ex -> Mono.just("redirect:/productos?error=No+existe+el+producto+a+eliminar"));
+        return service.deleteById(id).map(borrado -> borrado
+                ? "redirect:/productos?status=Producto+eliminado+con+exito"
+                : "redirect:/productos?error=No+existe+el+producto+a+eliminar");
     }
 
     @GetMapping("/index-datadriver")
-    public String indexDataDriver(Model model) {
-        Flux<Producto> productos = service.findAllConDelay(Duration.ofSeconds(1));
-
-        productos.subscribe(p -> log.info(p.getNombre()));
+    public String indexDataDriver(Model model, ServerWebExchange exchange) {
+        Flux<Producto> productos = service.findAllConDelay(Duration.ofSeconds(1)).doOnNext(p -> log.debug(p.getNombre()));
 
-        model.addAttribute("productos", new ReactiveDataDriverContextVariable(productos, 2));
+        renderizado.preparar("index-datadriver", filas.renderizar("index", productos, exchange), model, exchange);
         model.addAttribute("titulo", "Listado de Productos");
 
         return "index";
     }
 
     @GetMapping("/index-full")
-    public String indexFull(Model model) {
+    public String indexFull(Model model, ServerWebExchange exchange) {
         Flux<Producto> productos = service.findAllConNombreUpperCaseRepeat(5000L);
 
-        model.addAttribute("productos", new ReactiveDataDriverContextVariable(productos, 2));
+        renderizado.preparar("index-full", filas.renderizar("index", productos, exchange), model, exchange);
         model.addAttribute("titulo", "Listado de Productos");
 
         return "index";
     }
 
     @GetMapping("/index-chunked")
-    public String indexChunked(Model model) {
+    public String indexChunked(Model model, ServerWebExchange exchange) {
         Flux<Producto> productos = service.findAllConNombreUpperCaseRepeat(5000L);
 
-        model.addAttribute("productos", new ReactiveDataDriverContextVariable(productos, 2));
+        renderizado.preparar("index-chunked", filas.renderizar("indexChunked", productos, exchange), model, exchange);
         model.addAttribute("titulo", "Listado de Productos");
 
         return "indexChunked";
@@ -1,68 +1,115 @@
 package com.cursoudemy.springboot.webflux.app.controllers;
 
+import com.cursoudemy.springboot.webflux.app.CodecsConfig;
+import com.cursoudemy.springboot.webflux.app.SubidasMultipart;
 import com.cursoudemy.springboot.webflux.app.models.dao.ProductoDao;
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
 import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.documents.PropagacionCategoria;
+import com.cursoudemy.springboot.webflux.app.models.services.CambioProducto;
+import com.cursoudemy.springboot.webflux.app.models.services.CambiosService;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import com.cursoudemy.springboot.webflux.app.models.services.MiniaturaService;
+import com.cursoudemy.springboot.webflux.app.models.services.Pagina;
 import com.cursoudemy.springboot.webflux.app.models.services.ProductoService;
+import com.cursoudemy.springboot.webflux.app.models.services.PropagacionCategorias;
+import com.cursoudemy.springboot.webflux.app.models.services.Proyeccion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.bind.support.WebExchangeBindException;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.validation.Valid;
-import java.io.File;
 import java.net.URI;
+import java.time.Duration;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
+// JSON primero: es el formato de quien acepta */*
 @RestController
-@RequestMapping("/api/productos")
+@RequestMapping(value = "/api/productos", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+        CodecsConfig.APPLICATION_SMILE_VALUE})
 public class ProductoRestController {
     @Autowired
     private ProductoService service;
+    @Autowired
+    private MiniaturaService miniaturas;
+    @Autowired
+    private FotoService fotos;
+    @Autowired
+    private CambiosService cambios;
+    @Autowired
+    private SubidasMultipart subidas;
+    @Autowired
+    private PropagacionCategorias propagaciones;
 
-    private static final Logger log = LoggerFactory.getLogger(ProductoController.class);
+    @Value("${config.cambios.latido:15s}")
+    private Duration latido;
 
-    @Value("${config.uploads.path}")
-    private String path;
+    private static final Logger log = LoggerFactory.getLogger(ProductoController.class);
 
     @PostMapping("/upload/{id}")
-    public Mono<ResponseEntity<Producto>> uploadImage(@PathVariable String id, @RequestPart FilePart file) {
-        return service.findById(id).flatMap(p -> {
-                    p.setFoto(UUID.randomUUID().toString() + "-" + file.filename()
-                            .replaceAll(" ", "")
-                            .replaceAll(":", "")
-                            .replaceAll("/\\/", ""));
-
-                    return file.transferTo(new File(path + p.getFoto())).then(service.save(p));
-                }).map(p -> ResponseEntity.ok(p))
-                .defaultIfEmpty(ResponseEntity.notFound().build());
+    public Mono<ResponseEntity<Producto>> uploadImage(@PathVariable String id, ServerWebExchange exchange) {
+        return service.findById(id).flatMap(p -> subidas.leer(exchange.getRequest()).flatMap(formulario -> {
+                    if (formulario.getFoto() == null) return Mono.just(ResponseEntity.badRequest().<Producto>build());
+
+                    String anterior = p.getFoto();
+                    p.setFoto(formulario.getFoto());
+                    return service.save(p)
+                            .onErrorResume(e -> fotos.liberar(formulario.getFoto()).then(Mono.error(e)))
+                            .flatMap(productoDb -> fotos.liberar(anterior).thenReturn(productoDb))
+                            .doOnNext(miniaturas::generar)
+                            .map(ResponseEntity::ok);
+                }))
+                .defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build()))
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
     }
 
     @GetMapping
-    public Mono<ResponseEntity<Flux<Producto>>> index() {
-        return Mono.just(
-                ResponseEntity.ok()
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .body(service.findAll())
-        );
+    public Mono<ResponseEntity<List<Producto>>> index(@RequestParam(required = false) String after,
+                                                      @RequestParam(required = false) Integer limit,
+                                                      @RequestParam(required = false) String fields) {
+        return Mono.fromSupplier(() -> Proyeccion.of(fields))
+                .flatMap(proyeccion -> service.findAllPaginado(after, limit, proyeccion))
+                .map(pagina -> {
+                    ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+                    if (pagina.hasSiguiente()) builder.header(Pagina.HEADER_SIGUIENTE, pagina.getSiguiente());
+                    return builder.body(pagina.getContenido());
+                }).onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    // Altas, cambios y bajas en vivo; el comentario periodico mantiene abiertas las conexiones a traves de proxies
+    @GetMapping(value = "/cambios", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<CambioProducto>> cambios(@RequestHeader(value = "Last-Event-ID", required = false) String ultimoEventoId,
+                                                         @RequestParam(required = false) String categoria) {
+        Flux<ServerSentEvent<CambioProducto>> eventos = cambios.cambios(ultimoEventoId, categoria)
+                .map(cambio -> ServerSentEvent.builder(cambio).id(cambio.getId()).event(cambio.getTipo()).build());
+        Flux<ServerSentEvent<CambioProducto>> latidos = Flux.interval(latido)
+                .map(i -> ServerSentEvent.<CambioProducto>builder().comment("latido").build());
+        return Flux.merge(eventos, latidos);
     }
 
     @GetMapping("/{id}")
-    public Mono<ResponseEntity<Producto>> show(@PathVariable String id) {
-        return service.findById(id).map(p -> ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(p)
-        ).defaultIfEmpty(ResponseEntity.notFound().build());
+    public Mono<ResponseEntity<Producto>> show(@PathVariable String id, @RequestParam(required = false) String fields) {
+        return Mono.fromSupplier(() -> Proyeccion.of(fields))
+                .flatMap(proyeccion -> service.findById(id).map(proyeccion::aplicar))
+                .map(p -> ResponseEntity.ok()
+                        .body(p)
+                ).defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
     }
 
     @PostMapping
@@ -71,17 +118,17 @@ public class ProductoRestController {
         return monoProducto.flatMap(producto -> {
             if (producto.getCreatedAt() == null) producto.setCreatedAt(new Date());
 
-            return service.save(producto)
+            return service.save(producto.sinCamposDelServidor())
                     .map(p -> {
                                 response.put("producto", p);
                                 response.put("mensaje", "Producto creado con exito");
                                 response.put("timestamp", new Date());
                                 return ResponseEntity.created(URI.create("/api/productos/".concat(p.getId())))
-                                        .contentType(MediaType.APPLICATION_JSON)
                                         .body(response);
                             }
                     );
-        }).onErrorResume(throwable -> Mono.just(throwable).cast(WebExchangeBindException.class)
+        }).onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()))
+                .onErrorResume(throwable -> Mono.just(throwable).cast(WebExchangeBindException.class)
                 .flatMap(error -> Mono.just(error.getFieldErrors()))
                 .flatMapMany(Flux::fromIterable)
                 .map(fieldError -> "El campo " + fieldError.getField() + " " + fieldError.getDefaultMessage())
@@ -97,41 +144,65 @@ public class ProductoRestController {
     }
 
     @PostMapping("/v2")
-    public Mono<ResponseEntity<Producto>> saveWithImage(Producto producto, @RequestPart FilePart file) {
-        if (producto.getCreatedAt() == null) producto.setCreatedAt(new Date());
-        if (!file.filename().isEmpty()) producto.setFoto(UUID.randomUUID().toString() + "-" + file.filename()
-                .replaceAll(" ", "_")
-                .replaceAll(":", "")
-                .replaceAll("/\\/", "")
-                .replaceAll("/", ""));
-
-        return file.transferTo(new File(path + producto.getFoto()))
-                .then(service.save(producto))
-                .map(p -> ResponseEntity
-                        .created(URI.create("/api/productos/".concat(p.getId())))
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .body(p)
-                );
+    public Mono<ResponseEntity<Producto>> saveWithImage(ServerWebExchange exchange) {
+        return subidas.leer(exchange.getRequest()).flatMap(formulario -> {
+            Producto producto = new Producto();
+            if (subidas.vincular(producto, "producto", formulario.getCampos(), false, Producto.CAMPOS_FORMULARIO).hasErrors())
+                return fotos.liberar(formulario.getFoto()).then(Mono.just(ResponseEntity.badRequest().<Producto>build()));
+
+            if (producto.getCreatedAt() == null) producto.setCreatedAt(new Date());
+            if (formulario.getFoto() != null) producto.setFoto(formulario.getFoto());
+            return service.save(producto)
+                    .onErrorResume(e -> fotos.liberar(formulario.getFoto()).then(Mono.error(e)))
+                    .doOnNext(miniaturas::generar)
+                    .map(p -> ResponseEntity
+                            .created(URI.create("/api/productos/".concat(p.getId())))
+                            .body(p)
+                    );
+        }).onErrorResume(OptimisticLockingFailureException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build()))
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
     }
 
     @PutMapping("/{id}")
     public Mono<ResponseEntity<Producto>> update(@RequestBody Producto producto, @PathVariable String id) {
-        return service.findById(id).flatMap(p -> {
-            p.setNombre(producto.getNombre());
-            p.setPrecio(producto.getPrecio());
-            p.setCategoria(producto.getCategoria());
-
-            return service.save(p);
-        }).map(p -> ResponseEntity.created(URI.create("/api/productos/".concat(p.getId())))
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(p)
-        ).defaultIfEmpty(ResponseEntity.notFound().build());
+        return service.update(id, producto).map(p -> ResponseEntity.created(URI.create("/api/productos/".concat(p.getId())))
+                        .body(p)
+                ).defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build()))
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    @PatchMapping("/{id}")
+    public Mono<ResponseEntity<Producto>> patch(@RequestBody Producto producto, @PathVariable String id) {
+        return service.update(id, producto).map(p -> ResponseEntity.ok()
+                        .body(p)
+                ).defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build()))
+                .onErrorResume(IllegalArgumentException.class, ex -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    // 202: los productos de la categoria se actualizan en segundo plano; el progreso queda en la Location
+    @PutMapping("/categorias/{id}")
+    public Mono<ResponseEntity<Categoria>> updateCategoria(@RequestBody Categoria categoria, @PathVariable String id) {
+        if (categoria.getNombre() == null || categoria.getNombre().isBlank())
+            return Mono.just(ResponseEntity.badRequest().build());
+
+        categoria.setId(id);
+        return service.findCategoriaById(id)
+                .flatMap(existente -> service.saveCategoria(categoria))
+                .map(c -> ResponseEntity.accepted()
+                        .location(URI.create("/api/productos/categorias/" + id + "/propagacion"))
+                        .body(c))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/categorias/{id}/propagacion")
+    public Mono<ResponseEntity<PropagacionCategoria>> propagacion(@PathVariable String id) {
+        return propagaciones.progreso(id).map(ResponseEntity::ok).defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
     @DeleteMapping("/{id}")
     public Mono<ResponseEntity<Void>> delete(@PathVariable String id) {
-        return service.findById(id).flatMap(p -> {
-            return service.delete(p).then(Mono.just(new ResponseEntity<Void>(HttpStatus.NO_CONTENT)));
-        }).defaultIfEmpty(new ResponseEntity<Void>(HttpStatus.NOT_FOUND));
+        return service.deleteById(id).map(borrado -> new ResponseEntity<Void>(borrado ? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND));
     }
 }
@@ -0,0 +1,138 @@
+package com.cursoudemy.springboot.webflux.app.controllers;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.ui.Model;
+import org.springframework.web.server.ServerWebExchange;
+import org.thymeleaf.spring5.context.webflux.ReactiveDataDriverContextVariable;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tamano del buffer de filas y del chunk de las vistas data-driver. En modo adaptativo el chunk es lo que la vista
+ * produce dentro del objetivo de TTFB (segun los bytes por fila y las filas por segundo medidos en las peticiones
+ * anteriores), acotado por config.vistas.chunk-size-min/max, y el buffer son las filas que caben en ese chunk sin
+ * pasar del TTFB. En modo fijo se usan config.vistas.buffer y config.vistas.chunk-size. Todo se puede sobrescribir
+ * por vista con config.vistas.{vista}.*
+ */
+@Component
+public class RenderizadoAdaptativo {
+    public static final String CHUNK_SIZE = RenderizadoAdaptativo.class.getName() + ".CHUNK_SIZE";
+    private static final double PESO = 0.2;
+    private static final int MAX_BUFFER = 10000;
+
+    @Autowired
+    private Environment environment;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.vistas.modo:adaptativo}")
+    private String modo;
+    @Value("${config.vistas.ttfb:200ms}")
+    private Duration ttfb;
+    @Value("${config.vistas.buffer:2}")
+    private int buffer;
+    @Value("${config.vistas.chunk-size:1024}")
+    private int chunkSize;
+    @Value("${config.vistas.chunk-size-min:1024}")
+    private int chunkSizeMin;
+    @Value("${config.vistas.chunk-size-max:65536}")
+    private int chunkSizeMax;
+
+    private final Map<String, Estadistica> estadisticas = new ConcurrentHashMap<>();
+
+    public static class Ajuste {
+        private final int buffer;
+        private final int chunkSize;
+
+        public Ajuste(int buffer, int chunkSize) {
+            this.buffer = buffer;
+            this.chunkSize = chunkSize;
+        }
+
+        public int getBuffer() {
+            return buffer;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+    }
+
+    // Deja las filas en el modelo como data-driver y el chunk en el exchange para VistaAdaptativa
+    public void preparar(String vista, Flux<String> filas, Model model, ServerWebExchange exchange) {
+        Ajuste ajuste = ajuste(vista);
+        model.addAttribute("filas", new ReactiveDataDriverContextVariable(medir(vista, filas), ajuste.getBuffer()));
+        exchange.getAttributes().put(CHUNK_SIZE, ajuste.getChunkSize());
+    }
+
+    public Ajuste ajuste(String vista) {
+        int fijoBuffer = propiedad(vista, "buffer", Integer.class, buffer);
+        int fijoChunk = propiedad(vista, "chunk-size", Integer.class, chunkSize);
+        Estadistica estadistica = estadisticas.get(vista);
+        if (!"adaptativo".equals(propiedad(vista, "modo", String.class, modo)) || estadistica == null) {
+            return new Ajuste(fijoBuffer, fijoChunk);
+        }
+
+        double segundos = propiedad(vista, "ttfb", Duration.class, ttfb).toNanos() / 1e9;
+        int min = propiedad(vista, "chunk-size-min", Integer.class, chunkSizeMin);
+        int max = propiedad(vista, "chunk-size-max", Integer.class, chunkSizeMax);
+        double bytesPorFila = Math.max(1, estadistica.bytesPorFila);
+        double filasEnTtfb = estadistica.filasPorSegundo * segundos;
+        long chunk = Math.round(Math.min(Math.max(filasEnTtfb * bytesPorFila, min), max));
+        int filas = (int) Math.min(Math.max(Math.min(chunk / bytesPorFila, filasEnTtfb), 1), MAX_BUFFER);
+        return new Ajuste(filas, (int) chunk);
+    }
+
+    private Flux<String> medir(String vista, Flux<String> filas) {
+        return Flux.defer(() -> {
+            long inicio = System.nanoTime();
+            AtomicLong cantidad = new AtomicLong();
+            AtomicLong bytes = new AtomicLong();
+            return filas.doOnNext(fila -> {
+                        cantidad.incrementAndGet();
+                        bytes.addAndGet(fila.length());
+                    })
+                    .doOnComplete(() -> {
+                        long nanos = System.nanoTime() - inicio;
+                        if (cantidad.get() > 0 && nanos > 0) {
+                            estadisticas.computeIfAbsent(vista, this::registrar)
+                                    .actualizar((double) bytes.get() / cantidad.get(), cantidad.get() * 1e9 / nanos);
+                        }
+                    });
+        });
+    }
+
+    private Estadistica registrar(String vista) {
+        Gauge.builder("vistas.buffer", () -> ajuste(vista).getBuffer()).tag("vista", vista)
+                .description("Filas por buffer de la vista data-driver").register(meterRegistry);
+        Gauge.builder("vistas.chunk", () -> ajuste(vista).getChunkSize()).tag("vista", vista).baseUnit("bytes")
+                .description("Tamano maximo de chunk de la vista data-driver").register(meterRegistry);
+        return new Estadistica();
+    }
+
+    private <T> T propiedad(String vista, String nombre, Class<T> tipo, T porDefecto) {
+        return environment.getProperty("config.vistas." + vista + "." + nombre, tipo, porDefecto);
+    }
+
+    // Media movil para que una peticion lenta o cortada no cambie el tamano de golpe
+    private static class Estadistica {
+        private volatile double bytesPorFila;
+        private volatile double filasPorSegundo;
+        private volatile boolean iniciada;
+
+        synchronized void actualizar(double bytesPorFila, double filasPorSegundo) {
+            this.bytesPorFila = iniciada ? this.bytesPorFila + PESO * (bytesPorFila - this.bytesPorFila) : bytesPorFila;
+            this.filasPorSegundo = iniciada ? this.filasPorSegundo + PESO * (filasPorSegundo - this.filasPorSegundo) : filasPorSegundo;
+            iniciada = true;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.cursoudemy.springboot.webflux.app.controllers;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.server.ServerWebExchange;
+import org.thymeleaf.spring5.view.reactive.ThymeleafReactiveView;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+// El resolver crea una vista por peticion, asi que el chunk que dejo RenderizadoAdaptativo se puede fijar aqui
+public class VistaAdaptativa extends ThymeleafReactiveView {
+
+    @Override
+    public Mono<Void> render(Map<String, ?> model, MediaType contentType, ServerWebExchange exchange) {
+        Integer chunkSize = exchange.getAttribute(RenderizadoAdaptativo.CHUNK_SIZE);
+        if (chunkSize != null) setResponseMaxChunkSizeBytes(chunkSize);
+        return super.render(model, contentType, exchange);
+    }
+}
@@ -1,13 +1,27 @@
 package com.cursoudemy.springboot.webflux.app.handler;
 
+import com.cursoudemy.springboot.webflux.app.CodecsConfig;
+import com.cursoudemy.springboot.webflux.app.SubidasMultipart;
 import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
 import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import com.cursoudemy.springboot.webflux.app.models.services.MiniaturaService;
+import com.cursoudemy.springboot.webflux.app.models.services.Pagina;
 import com.cursoudemy.springboot.webflux.app.models.services.ProductoService;
+import com.cursoudemy.springboot.webflux.app.models.services.Proyeccion;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.codec.multipart.FilePart;
-import org.springframework.http.codec.multipart.FormFieldPart;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.validation.Errors;
@@ -18,38 +32,164 @@ import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.UUID;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Component
 public class ProductHandler {
+    private static final List<MediaType> FORMATOS = List.of(MediaType.APPLICATION_JSON, MediaType.APPLICATION_CBOR,
+            CodecsConfig.APPLICATION_SMILE);
+
     @Autowired
     private ProductoService service;
 
-    @Value("${config.uploads.path}")
-    private String path;
-
     @Autowired
     private Validator validator;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MiniaturaService miniaturas;
+
+    @Autowired
+    private FotoService fotos;
+
+    @Autowired
+    private SubidasMultipart subidas;
+
+    @Value("${config.productos.export.batch-size:256}")
+    private int exportBatchSize;
+
     public Mono<ServerResponse> index(ServerRequest request) {
+        String after = request.queryParam("after").orElse(null);
+        Integer limit;
+        Proyeccion proyeccion;
+        try {
+            limit = request.queryParam("limit").map(Integer::valueOf).orElse(null);
+            proyeccion = Proyeccion.of(request.queryParam("fields").orElse(null));
+        } catch (IllegalArgumentException e) {
+            return ServerResponse.badRequest().build();
+        }
+
+        return service.findAllPaginado(after, limit, proyeccion).flatMap(pagina -> {
+            ServerResponse.BodyBuilder builder = ServerResponse.ok().contentType(formato(request));
+            if (pagina.hasSiguiente()) builder.header(Pagina.HEADER_SIGUIENTE, pagina.getSiguiente());
+            return builder.body(BodyInserters.fromValue(pagina.getContenido()));
+        }).onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
+    }
+
+    // Lotes de NDJSON leidos del cursor segun la demanda del cliente; "after" reanuda desde el ultimo id recibido
+    public Mono<ServerResponse> export(ServerRequest request) {
+        String after = request.queryParam("after").orElse(null);
+        if (after != null && !ObjectId.isValid(after)) return ServerResponse.badRequest().build();
+        Proyeccion proyeccion;
+        try {
+            proyeccion = Proyeccion.of(request.queryParam("fields").orElse(null));
+        } catch (IllegalArgumentException e) {
+            return ServerResponse.badRequest().build();
+        }
+
+        DataBufferFactory bufferFactory = request.exchange().getResponse().bufferFactory();
+        Flux<DataBuffer> lineas = service.findAllDesde(after, proyeccion)
+                .buffer(exportBatchSize)
+                .map(lote -> toNdjson(lote, bufferFactory));
+
+        return ServerResponse.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(BodyInserters.fromDataBuffers(lineas));
+    }
+
+    private DataBuffer toNdjson(List<Producto> productos, DataBufferFactory bufferFactory) {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer.asOutputStream())) {
+            generator.setRootValueSeparator(null);
+            for (Producto producto : productos) {
+                objectMapper.writeValue(generator, producto);
+                generator.writeRaw('\n');
+            }
+        } catch (IOException e) {
+            DataBufferUtils.release(buffer);
+            throw new UncheckedIOException(e);
+        }
+        return buffer;
+    }
+
+    public Mono<ServerResponse> search(ServerRequest request) {
+        String q = request.queryParam("q").orElse("");
+        Integer limit;
+        Proyeccion proyeccion;
+        try {
+            limit = request.queryParam("limit").map(Integer::valueOf).orElse(null);
+            proyeccion = Proyeccion.of(request.queryParam("fields").orElse(null));
+        } catch (IllegalArgumentException e) {
+            return ServerResponse.badRequest().build();
+        }
+
+        MediaType mediaType = request.headers().accept().contains(MediaType.APPLICATION_NDJSON)
+                ? MediaType.APPLICATION_NDJSON : formato(request);
         return ServerResponse.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(service.findAll(), Producto.class);
+                .contentType(mediaType)
+                .body(service.buscarPorNombre(q, limit, proyeccion), Producto.class);
+    }
+
+    public Mono<ServerResponse> estadisticas(ServerRequest request) {
+        return service.estadisticasPorCategoria(request.queryParam("periodo").orElse(null))
+                .collectList()
+                .flatMap(lista -> ServerResponse.ok()
+                        .contentType(formato(request))
+                        .body(BodyInserters.fromValue(lista)))
+                .onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
     }
 
     public Mono<ServerResponse> show(ServerRequest request) {
         String id = request.pathVariable("id");
+        Proyeccion proyeccion;
+        try {
+            proyeccion = Proyeccion.of(request.queryParam("fields").orElse(null));
+        } catch (IllegalArgumentException e) {
+            return ServerResponse.badRequest().build();
+        }
+
         return service.findById(id)
+                .map(proyeccion::aplicar)
                 .flatMap(p -> ServerResponse.ok()
-                        .contentType(MediaType.APPLICATION_JSON)
+                        .contentType(formato(request))
                         .body(BodyInserters.fromValue(p))
                         .switchIfEmpty(ServerResponse.notFound().build())
                 );
     }
 
+    // GET ?ids=a,b,c (o ids repetido) y POST con la lista de ids en el cuerpo; una sola consulta para todos
+    public Mono<ServerResponse> lote(ServerRequest request) {
+        Mono<List<String>> ids = request.method() == HttpMethod.GET
+                ? Mono.just(request.queryParams().getOrDefault("ids", List.of()).stream()
+                .flatMap(valor -> Arrays.stream(valor.split(",")))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .collect(Collectors.toList()))
+                : request.bodyToMono(new ParameterizedTypeReference<List<String>>() {
+                }).defaultIfEmpty(List.of());
+        Proyeccion proyeccion;
+        try {
+            proyeccion = Proyeccion.of(request.queryParam("fields").orElse(null));
+        } catch (IllegalArgumentException e) {
+            return ServerResponse.badRequest().build();
+        }
+
+        return ids.flatMap(lista -> service.findAllById(lista, proyeccion))
+                .flatMap(lote -> ServerResponse.ok()
+                        .contentType(formato(request))
+                        .body(BodyInserters.fromValue(lote)))
+                .onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
+    }
+
     public Mono<ServerResponse> save(ServerRequest request) {
         Mono<Producto> producto = request.bodyToMono(Producto.class);
         return producto.flatMap(p -> {
@@ -62,84 +202,114 @@ public class ProductHandler {
                     .flatMap(list -> ServerResponse.badRequest().body(BodyInserters.fromValue(list)));
 
             if (p.getCreatedAt() == null) p.setCreatedAt(new Date());
-            return service.save(p).flatMap(productoDb -> ServerResponse
+            return service.save(p.sinCamposDelServidor()).flatMap(productoDb -> ServerResponse
                     .created(URI.create("/api/v2/productos/".concat(productoDb.getId())))
-                    .contentType(MediaType.APPLICATION_JSON)
+                    .contentType(formato(request))
                     .body(BodyInserters.fromValue(productoDb)));
-        });
+        }).onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
+    }
+
+    public Mono<ServerResponse> importar(ServerRequest request) {
+        return service.importar(request.bodyToFlux(Producto.class))
+                .flatMap(resultado -> ServerResponse.ok()
+                        .contentType(formato(request))
+                        .body(BodyInserters.fromValue(resultado)));
     }
 
     public Mono<ServerResponse> update(ServerRequest request) {
-        Mono<Producto> producto = request.bodyToMono(Producto.class);
         String id = request.pathVariable("id");
-        Mono<Producto> productoDb = service.findById(id);
-
-        return productoDb.zipWith(producto, (db, req) -> {
-            db.setNombre(req.getNombre());
-            db.setPrecio(req.getPrecio());
-            db.setCategoria(req.getCategoria());
+        return request.bodyToMono(Producto.class)
+                .flatMap(cambios -> service.update(id, cambios))
+                .flatMap(p -> ServerResponse
+                        .created(URI.create("/api/v2/productos/".concat(p.getId())))
+                        .contentType(formato(request))
+                        .body(BodyInserters.fromValue(p))
+                ).switchIfEmpty(ServerResponse.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> ServerResponse.status(HttpStatus.CONFLICT).build())
+                .onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
+    }
 
-            return db;
-        }).flatMap(p -> ServerResponse
-                .created(URI.create("/api/v2/productos/".concat(p.getId())))
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(service.save(p), Producto.class)
-        ).switchIfEmpty(ServerResponse.notFound().build());
+    public Mono<ServerResponse> patch(ServerRequest request) {
+        String id = request.pathVariable("id");
+        return request.bodyToMono(Producto.class)
+                .flatMap(cambios -> service.update(id, cambios))
+                .flatMap(p -> ServerResponse.ok()
+                        .contentType(formato(request))
+                        .body(BodyInserters.fromValue(p))
+                ).switchIfEmpty(ServerResponse.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> ServerResponse.status(HttpStatus.CONFLICT).build())
+                .onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
     }
 
     public Mono<ServerResponse> delete(ServerRequest request) {
         String id = request.pathVariable("id");
-        Mono<Producto> productoDb = service.findById(id);
-
-        return productoDb.flatMap(p -> service.delete(p).then(ServerResponse.noContent().build()))
-                .switchIfEmpty(ServerResponse.notFound().build());
+        return service.deleteById(id)
+                .flatMap(borrado -> borrado ? ServerResponse.noContent().build() : ServerResponse.notFound().build());
     }
 
+    // Se busca el producto antes de leer el cuerpo: si no existe la foto ni se sube
     public Mono<ServerResponse> uploadImage(ServerRequest request) {
         String id = request.pathVariable("id");
-        return request.multipartData().map(multipart -> multipart.toSingleValueMap().get("file"))
-                .cast(FilePart.class)
-                .flatMap(file -> service.findById(id)
-                        .flatMap(p -> {
-                            p.setFoto(UUID.randomUUID().toString() + "-" + file.filename()
-                                    .replaceAll(" ", "_")
-                                    .replaceAll(":", "")
-                                    .replaceAll("/\\/", "")
-                                    .replaceAll("/", ""));
-                            return file.transferTo(new File(path + p.getFoto())).then(service.save(p));
-                        })).flatMap(p -> ServerResponse.created(URI.create("/api/v2/productos/".concat(p.getId())))
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .body(BodyInserters.fromValue(p))
-                ).switchIfEmpty(ServerResponse.notFound().build());
+        return service.findById(id)
+                .flatMap(p -> request.body(subidas.formulario()).flatMap(formulario -> {
+                    if (formulario.getFoto() == null) return ServerResponse.badRequest().build();
+
+                    String anterior = p.getFoto();
+                    p.setFoto(formulario.getFoto());
+                    return service.save(p)
+                            .onErrorResume(e -> fotos.liberar(formulario.getFoto()).then(Mono.error(e)))
+                            .flatMap(productoDb -> fotos.liberar(anterior).thenReturn(productoDb))
+                            .doOnNext(miniaturas::generar)
+                            .flatMap(productoDb -> ServerResponse.created(URI.create("/api/v2/productos/".concat(productoDb.getId())))
+                                    .contentType(formato(request))
+                                    .body(BodyInserters.fromValue(productoDb)));
+                }))
+                .switchIfEmpty(ServerResponse.notFound().build())
+                .onErrorResume(OptimisticLockingFailureException.class, ex -> ServerResponse.status(HttpStatus.CONFLICT).build())
+                .onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
     }
 
     public Mono<ServerResponse> saveWithImage(ServerRequest request) {
-        Mono<Producto> productoMono = request.multipartData()
-                .map(multipart -> {
-                    FormFieldPart nombre = (FormFieldPart) multipart.toSingleValueMap().get("nombre");
-                    FormFieldPart precio = (FormFieldPart) multipart.toSingleValueMap().get("precio");
-                    FormFieldPart categoriaId = (FormFieldPart) multipart.toSingleValueMap().get("categoria.id");
-                    FormFieldPart categoriaNombre = (FormFieldPart) multipart.toSingleValueMap().get("categoria.nombre");
-
-                    Categoria categoria = new Categoria(categoriaNombre.value());
-                    categoria.setId(categoriaId.value());
-                    return new Producto(nombre.value(), Double.parseDouble(precio.value()), categoria);
-                });
-
-        return request.multipartData().map(multipart -> multipart.toSingleValueMap().get("file"))
-                .cast(FilePart.class)
-                .flatMap(file -> productoMono
-                        .flatMap(p -> {
-                            p.setFoto(UUID.randomUUID().toString() + "-" + file.filename()
-                                    .replaceAll(" ", "_")
-                                    .replaceAll(":", "")
-                                    .replaceAll("/\\/", "")
-                                    .replaceAll("/", ""));
-                            p.setCreatedAt(new Date());
-                            return file.transferTo(new File(path + p.getFoto())).then(service.save(p));
-                        })).flatMap(p -> ServerResponse.created(URI.create("/api/v2/productos/".concat(p.getId())))
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .body(BodyInserters.fromValue(p))
-                );
+        return request.body(subidas.formulario()).flatMap(formulario -> {
+            Producto p;
+            try {
+                p = producto(formulario);
+            } catch (IllegalArgumentException e) {
+                return fotos.liberar(formulario.getFoto()).then(ServerResponse.badRequest().build());
+            }
+            if (formulario.getFoto() == null) return ServerResponse.badRequest().build();
+
+            p.setFoto(formulario.getFoto());
+            p.setCreatedAt(new Date());
+            return service.save(p)
+                    .onErrorResume(e -> fotos.liberar(formulario.getFoto()).then(Mono.error(e)))
+                    .doOnNext(miniaturas::generar)
+                    .flatMap(productoDb -> ServerResponse.created(URI.create("/api/v2/productos/".concat(productoDb.getId())))
+                            .contentType(formato(request))
+                            .body(BodyInserters.fromValue(productoDb)));
+        }).onErrorResume(IllegalArgumentException.class, ex -> ServerResponse.badRequest().build());
+    }
+
+    private static Producto producto(SubidasMultipart.Formulario formulario) {
+        String nombre = formulario.getCampo("nombre");
+        String precio = formulario.getCampo("precio");
+        String categoriaId = formulario.getCampo("categoria.id");
+        if (nombre == null || precio == null || categoriaId == null) throw new IllegalArgumentException("Faltan campos");
+
+        Categoria categoria = new Categoria(formulario.getCampo("categoria.nombre"));
+        categoria.setId(categoriaId);
+        return new Producto(nombre, Double.parseDouble(precio), categoria);
+    }
+
+    // Las rutas funcionales no negocian el tipo de respuesta: se elige el primer formato aceptado por el cliente
+    private static MediaType formato(ServerRequest request) {
+        List<MediaType> accept = new ArrayList<>(request.headers().accept());
+        MediaType.sortBySpecificityAndQuality(accept);
+        for (MediaType tipo : accept) {
+            for (MediaType formato : FORMATOS) {
+                if (tipo.isCompatibleWith(formato)) return formato;
+            }
+        }
+        return MediaType.APPLICATION_JSON;
     }
 }
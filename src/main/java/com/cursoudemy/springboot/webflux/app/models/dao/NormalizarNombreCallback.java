@@ -0,0 +1,15 @@
+package com.cursoudemy.springboot.webflux.app.models.dao;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import org.reactivestreams.Publisher;
+import org.springframework.data.mongodb.core.mapping.event.ReactiveBeforeConvertCallback;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+@Component
+public class NormalizarNombreCallback implements ReactiveBeforeConvertCallback<Producto> {
+    @Override
+    public Publisher<Producto> onBeforeConvert(Producto producto, String collection) {
+        return Mono.just(producto.normalizarNombre());
+    }
+}
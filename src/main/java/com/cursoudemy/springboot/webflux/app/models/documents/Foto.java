@@ -0,0 +1,42 @@
+package com.cursoudemy.springboot.webflux.app.models.documents;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+@Document(collection = "fotos")
+public class Foto {
+    @Id
+    private String id;
+    private long referencias;
+    // Marca de quien esta borrando los bytes; mientras este puesta nadie mas referencia ni borra la foto
+    private Date borrando;
+
+    public Foto() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getReferencias() {
+        return referencias;
+    }
+
+    public void setReferencias(long referencias) {
+        this.referencias = referencias;
+    }
+
+    public Date getBorrando() {
+        return borrando;
+    }
+
+    public void setBorrando(Date borrando) {
+        this.borrando = borrando;
+    }
+}
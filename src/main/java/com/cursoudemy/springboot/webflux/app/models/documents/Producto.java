@@ -1,22 +1,44 @@
 package com.cursoudemy.springboot.webflux.app.models.documents;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.format.annotation.DateTimeFormat;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
 
+@JsonInclude(JsonInclude.Include.NON_NULL)
 @Document(collection = "productos")
 public class Producto {
+    // Lo que un formulario puede cambiar; id, version, foto y derivados los pone el servidor
+    public static final String[] CAMPOS_FORMULARIO = {"nombre", "precio", "createdAt", "categoria.id"};
+    private static final Pattern MARCAS = Pattern.compile("\\p{M}+");
+    private static final Pattern NO_ALFANUMERICOS = Pattern.compile("[^a-z0-9]+");
+
     @Id
     private String id;
 
+    @Version
+    private Long version;
+
     @NotEmpty
     private String nombre;
 
+    // Se calculan al escribir (ver normalizarNombre) para que la busqueda use indices sin transformar en cada consulta
+    private String nombreNormalizado;
+    private List<String> palabras;
+
     @NotNull
     private Double precio;
 
@@ -25,6 +47,8 @@ public class Producto {
 
     private String foto;
 
+    private Map<String, String> derivados;
+
     @Valid
     @NotNull
     private Categoria categoria;
@@ -43,6 +67,19 @@ public class Producto {
         this.categoria = categoria;
     }
 
+    public Producto(Producto producto) {
+        this.id = producto.id;
+        this.version = producto.version;
+        this.nombre = producto.nombre;
+        this.nombreNormalizado = producto.nombreNormalizado;
+        this.palabras = producto.palabras;
+        this.precio = producto.precio;
+        this.createdAt = producto.createdAt;
+        this.foto = producto.foto;
+        this.derivados = producto.derivados;
+        this.categoria = producto.categoria;
+    }
+
     public String getId() {
         return id;
     }
@@ -51,6 +88,14 @@ public class Producto {
         this.id = id;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public String getNombre() {
         return nombre;
     }
@@ -90,4 +135,41 @@ public class Producto {
     public void setFoto(String foto) {
         this.foto = foto;
     }
+
+    public Map<String, String> getDerivados() {
+        return derivados;
+    }
+
+    public void setDerivados(Map<String, String> derivados) {
+        this.derivados = derivados;
+    }
+
+    // Para las altas: lo que no esta en CAMPOS_FORMULARIO no lo decide el cliente. La foto en particular es una
+    // referencia contada a un contenido compartido y solo la asignan las subidas
+    public Producto sinCamposDelServidor() {
+        this.id = null;
+        this.version = null;
+        this.foto = null;
+        this.derivados = null;
+        return this;
+    }
+
+    public Producto normalizarNombre() {
+        this.nombreNormalizado = normalizar(nombre);
+        this.palabras = palabras(nombre);
+        return this;
+    }
+
+    // Minusculas, sin acentos y solo letras y digitos separados por un espacio
+    public static String normalizar(String texto) {
+        if (texto == null) return null;
+        String sinAcentos = MARCAS.matcher(Normalizer.normalize(texto, Normalizer.Form.NFD)).replaceAll("");
+        return NO_ALFANUMERICOS.matcher(sinAcentos.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    public static List<String> palabras(String texto) {
+        String normalizado = normalizar(texto);
+        if (normalizado == null || normalizado.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(normalizado.split(" "));
+    }
 }
@@ -0,0 +1,95 @@
+package com.cursoudemy.springboot.webflux.app.models.documents;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Progreso de la copia de una categoria en los productos que la llevan embebida. Hay una por categoria (el id es el
+ * de la categoria); cada cambio de la categoria la reemplaza con otra generacion y el progreso solo se guarda si la
+ * generacion sigue siendo la misma.
+ */
+@Document(collection = "propagaciones")
+public class PropagacionCategoria {
+    public static final String EN_CURSO = "EN_CURSO";
+    public static final String TERMINADA = "TERMINADA";
+
+    @Id
+    private String id;
+    private String generacion;
+    private Categoria categoria;
+    private String estado;
+    // ultimo producto revisado: se retoma despues de el
+    private String ultimoId;
+    private long actualizados;
+    private Date iniciada;
+    private Date modificada;
+
+    public PropagacionCategoria() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getGeneracion() {
+        return generacion;
+    }
+
+    public void setGeneracion(String generacion) {
+        this.generacion = generacion;
+    }
+
+    public Categoria getCategoria() {
+        return categoria;
+    }
+
+    public void setCategoria(Categoria categoria) {
+        this.categoria = categoria;
+    }
+
+    public String getEstado() {
+        return estado;
+    }
+
+    public void setEstado(String estado) {
+        this.estado = estado;
+    }
+
+    public String getUltimoId() {
+        return ultimoId;
+    }
+
+    public void setUltimoId(String ultimoId) {
+        this.ultimoId = ultimoId;
+    }
+
+    public long getActualizados() {
+        return actualizados;
+    }
+
+    public void setActualizados(long actualizados) {
+        this.actualizados = actualizados;
+    }
+
+    public Date getIniciada() {
+        return iniciada;
+    }
+
+    public void setIniciada(Date iniciada) {
+        this.iniciada = iniciada;
+    }
+
+    public Date getModificada() {
+        return modificada;
+    }
+
+    public void setModificada(Date modificada) {
+        this.modificada = modificada;
+    }
+}
@@ -0,0 +1,85 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Un archivo por foto bajo config.uploads.path y uno por derivado en su subdirectorio. Se sirven con
+ * FileSystemResource, es decir con zero-copy.
+ */
+@Component
+@ConditionalOnProperty(name = "config.fotos.almacen", havingValue = "archivos", matchIfMissing = true)
+public class AlmacenArchivos implements AlmacenFotos {
+    @Value("${config.uploads.path}")
+    private String path;
+
+    @Override
+    public boolean existe(String clave) {
+        Path ruta = ruta(clave);
+        return ruta != null && Files.exists(ruta);
+    }
+
+    @Override
+    public void guardar(String clave, Path temporal) throws IOException {
+        Path destino = destino(clave);
+        if (Files.exists(destino)) Files.delete(temporal);
+        else Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Se escribe a un temporal del mismo directorio para que nadie lea el archivo a medias
+    @Override
+    public void guardar(String clave, byte[] contenido) throws IOException {
+        Path destino = destino(clave);
+        if (Files.exists(destino)) return;
+        Path temporal = Files.createTempFile(destino.getParent(), "derivado-", ".tmp");
+        try {
+            Files.write(temporal, contenido);
+            Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    @Override
+    public FotoAlmacenada leer(String clave) throws IOException {
+        Path ruta = ruta(clave);
+        if (ruta == null) return null;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(ruta, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) return null;
+            return new FotoAlmacenada(new FileSystemResource(ruta), attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void borrar(String clave) throws IOException {
+        Path ruta = ruta(clave);
+        if (ruta != null) Files.deleteIfExists(ruta);
+    }
+
+    private Path destino(String clave) throws IOException {
+        Path destino = ruta(clave);
+        if (destino == null) throw new IllegalArgumentException("Clave fuera del almacen: " + clave);
+        Files.createDirectories(destino.getParent());
+        return destino;
+    }
+
+    // null si la clave sale del directorio de subidas
+    private Path ruta(String clave) {
+        Path base = Paths.get(path).toAbsolutePath().normalize();
+        Path ruta = base.resolve(clave).normalize();
+        return ruta.startsWith(base) && !ruta.equals(base) ? ruta : null;
+    }
+}
@@ -0,0 +1,25 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Donde se guardan los bytes de las fotos y sus derivados. La clave es el nombre de la foto (digest del contenido y
+ * extension), con el tamano delante para los derivados: "thumb/{foto}". Como el contenido de una clave nunca cambia,
+ * guardar una clave que ya existe no hace nada. Las operaciones son bloqueantes: se llaman desde el scheduler io o
+ * desde el pool de miniaturas. Se elige con config.fotos.almacen (archivos o segmentos).
+ */
+public interface AlmacenFotos {
+
+    boolean existe(String clave) throws IOException;
+
+    // El temporal se consume: se mueve o se copia y se borra
+    void guardar(String clave, Path temporal) throws IOException;
+
+    void guardar(String clave, byte[] contenido) throws IOException;
+
+    // null si no existe
+    FotoAlmacenada leer(String clave) throws IOException;
+
+    void borrar(String clave) throws IOException;
+}
@@ -0,0 +1,468 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Fotos empaquetadas en segmentos de solo anexado bajo {config.uploads.path}/segmentos, en lugar de un archivo por
+ * foto. Cada registro lleva un CRC, la clave, el tamano y la fecha; un tamano -1 es el borrado de la clave. El indice
+ * clave -> posicion vive en memoria y se reconstruye al arrancar recorriendo los segmentos (un registro a medias al
+ * final del ultimo se descarta). Las lecturas son slices de los segmentos mapeados en memoria, sin abrir archivos.
+ * Cuando un segmento cerrado supera config.fotos.segmentos.umbral-compactacion de bytes muertos, la compactacion
+ * copia lo vigente al segmento activo y lo borra. Las escrituras no hacen fsync, igual que el almacen de archivos.
+ */
+@Component
+@ConditionalOnProperty(name = "config.fotos.almacen", havingValue = "segmentos")
+public class AlmacenSegmentos implements AlmacenFotos {
+    private static final Logger log = LoggerFactory.getLogger(AlmacenSegmentos.class);
+    private static final String PREFIJO = "segmento-";
+    private static final String SUFIJO = ".dat";
+    // crc, longitud de la clave, tamano de los datos (-1 si es un borrado) y fecha
+    private static final int CABECERA = 4 + 4 + 8 + 8;
+    private static final int CLAVE_MAX = 1024;
+    private static final int BLOQUE = 64 * 1024;
+
+    @Autowired
+    private Scheduler io;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.uploads.path}")
+    private String path;
+    @Value("${config.fotos.segmentos.tamano-max:256MB}")
+    private DataSize tamanoMax;
+    @Value("${config.fotos.segmentos.compactacion:10m}")
+    private Duration compactacion;
+    @Value("${config.fotos.segmentos.umbral-compactacion:0.5}")
+    private double umbral;
+
+    private Path directorio;
+    private final ConcurrentSkipListMap<Integer, Segmento> segmentos = new ConcurrentSkipListMap<>();
+    private final Map<String, Entrada> indice = new ConcurrentHashMap<>();
+    // solo se escribe con el lock de la instancia
+    private volatile Segmento activo;
+    private Counter compactaciones;
+    private Disposable compactador;
+
+    @PostConstruct
+    public void iniciar() throws IOException {
+        if (tamanoMax.toBytes() > Integer.MAX_VALUE) throw new IllegalArgumentException("config.fotos.segmentos.tamano-max no puede pasar de 2GB");
+        directorio = Files.createDirectories(Paths.get(path, "segmentos"));
+        List<Integer> ids;
+        try (Stream<Path> archivos = Files.list(directorio)) {
+            ids = archivos.map(archivo -> archivo.getFileName().toString())
+                    .filter(nombre -> nombre.startsWith(PREFIJO) && nombre.endsWith(SUFIJO))
+                    .map(nombre -> Integer.valueOf(nombre.substring(PREFIJO.length(), nombre.length() - SUFIJO.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < ids.size(); i++) cargar(ids.get(i), i == ids.size() - 1);
+
+        Segmento ultimo = segmentos.isEmpty() ? null : segmentos.lastEntry().getValue();
+        activo = ultimo != null && ultimo.tamano < tamanoMax.toBytes() ? abrir(ultimo) : nuevoSegmento();
+        log.info("Almacen de fotos: {} fotos en {} segmentos", indice.size(), segmentos.size());
+
+        Gauge.builder("fotos.almacen.segmentos", segmentos, Map::size)
+                .description("Segmentos del almacen de fotos")
+                .register(meterRegistry);
+        Gauge.builder("fotos.almacen.bytes", this, almacen -> almacen.bytes(true)).tag("estado", "vivos")
+                .description("Bytes de los segmentos segun sigan vigentes o esperen a la compactacion")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("fotos.almacen.bytes", this, almacen -> almacen.bytes(false)).tag("estado", "muertos")
+                .description("Bytes de los segmentos segun sigan vigentes o esperen a la compactacion")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        compactaciones = Counter.builder("fotos.almacen.compactaciones")
+                .description("Segmentos compactados")
+                .register(meterRegistry);
+
+        compactador = Flux.interval(compactacion, compactacion, io)
+                .concatMap(i -> Mono.fromCallable(this::compactar)
+                        .onErrorResume(e -> {
+                            log.error("Fallo la compactacion del almacen de fotos", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @PreDestroy
+    public synchronized void cerrar() throws IOException {
+        compactador.dispose();
+        activo.cerrar();
+    }
+
+    @Override
+    public boolean existe(String clave) {
+        return indice.containsKey(clave);
+    }
+
+    @Override
+    public void guardar(String clave, Path temporal) throws IOException {
+        try (FileChannel origen = FileChannel.open(temporal, StandardOpenOption.READ)) {
+            synchronized (this) {
+                if (!indice.containsKey(clave)) anexar(clave, origen.size(), System.currentTimeMillis(), origen::read);
+            }
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    @Override
+    public synchronized void guardar(String clave, byte[] contenido) throws IOException {
+        if (!indice.containsKey(clave)) anexar(clave, contenido.length, System.currentTimeMillis(), new Bytes(ByteBuffer.wrap(contenido)));
+    }
+
+    // Si justo se compacto el segmento se vuelve a mirar el indice, que ya apunta a la copia
+    @Override
+    public FotoAlmacenada leer(String clave) throws IOException {
+        while (true) {
+            Entrada entrada = indice.get(clave);
+            if (entrada == null) return null;
+            Segmento segmento = segmentos.get(entrada.segmento);
+            if (segmento == null) continue;
+            ByteBuffer datos = segmento.leer(entrada.datos, entrada.tamano);
+            return new FotoAlmacenada(new Recurso(datos, clave, entrada.modificado), entrada.tamano, entrada.modificado);
+        }
+    }
+
+    @Override
+    public synchronized void borrar(String clave) throws IOException {
+        if (indice.containsKey(clave)) anexar(clave, -1, System.currentTimeMillis(), null);
+    }
+
+    // Compacta los segmentos cerrados, del mas antiguo al mas nuevo, con demasiados bytes muertos
+    public int compactar() throws IOException {
+        int compactados = 0;
+        for (Segmento segmento : segmentos.values()) {
+            if (segmento == activo || segmento.tamano == 0) continue;
+            if (1 - (double) segmento.vivos.get() / segmento.tamano < umbral) continue;
+            compactar(segmento);
+            compactados++;
+        }
+        return compactados;
+    }
+
+    private void compactar(Segmento segmento) throws IOException {
+        ByteBuffer mapa = segmento.leer(0, (int) segmento.tamano);
+        recorrer(mapa, (posicion, clave, tamano, modificado, datos) -> {
+            synchronized (this) {
+                Entrada entrada = indice.get(clave);
+                if (tamano >= 0 && entrada != null && entrada.segmento == segmento.id && entrada.registro == posicion) {
+                    anexar(clave, tamano, modificado, new Bytes(mapa.slice(datos, (int) tamano)));
+                } else if (tamano < 0 && entrada == null && segmentos.firstKey() < segmento.id) {
+                    // El borrado sigue ocultando la clave mientras quede un segmento anterior que pueda tenerla;
+                    // si la clave se volvio a guardar despues, ese registro ya la oculta y no se copia
+                    anexar(clave, -1, modificado, null);
+                }
+            }
+        });
+        synchronized (this) {
+            segmentos.remove(segmento.id);
+        }
+        // Las lecturas en curso conservan el mapeo aunque se borre el archivo
+        Files.deleteIfExists(segmento.ruta);
+        compactaciones.increment();
+        log.info("Segmento {} compactado", segmento.ruta.getFileName());
+    }
+
+    // Anexa un registro al segmento activo y actualiza el indice. Se llama con el lock de la instancia
+    private void anexar(String clave, long tamano, long modificado, Origen origen) throws IOException {
+        byte[] bytesClave = clave.getBytes(StandardCharsets.UTF_8);
+        if (bytesClave.length == 0 || bytesClave.length > CLAVE_MAX) throw new IllegalArgumentException("Clave invalida: " + clave);
+        long longitud = CABECERA + bytesClave.length + Math.max(tamano, 0);
+        if (longitud > Integer.MAX_VALUE) throw new IllegalArgumentException("Foto demasiado grande: " + clave);
+        if (activo.tamano > 0 && activo.tamano + longitud > tamanoMax.toBytes()) {
+            activo.cerrar();
+            activo = nuevoSegmento();
+        }
+
+        Segmento segmento = activo;
+        long posicion = segmento.tamano;
+        ByteBuffer cabecera = ByteBuffer.allocate(CABECERA + bytesClave.length);
+        cabecera.putInt(0).putInt(bytesClave.length).putLong(tamano).putLong(modificado).put(bytesClave).flip();
+        CRC32 crc = new CRC32();
+        crc.update(cabecera.duplicate().position(4));
+        escribir(segmento.canal, cabecera, posicion);
+
+        long escrito = CABECERA + bytesClave.length;
+        if (origen != null) {
+            ByteBuffer bloque = ByteBuffer.allocate(BLOQUE);
+            for (long restante = tamano; restante > 0; ) {
+                bloque.clear().limit((int) Math.min(BLOQUE, restante));
+                if (origen.leer(bloque) < 0) throw new IOException("El origen de " + clave + " termino antes de tiempo");
+                bloque.flip();
+                restante -= bloque.remaining();
+                crc.update(bloque.duplicate());
+                escrito += escribir(segmento.canal, bloque, posicion + escrito);
+            }
+        }
+        escribir(segmento.canal, ByteBuffer.allocate(4).putInt(0, (int) crc.getValue()), posicion);
+        segmento.tamano = posicion + longitud;
+        aplicar(segmento, clave, posicion, tamano, modificado, (int) longitud);
+    }
+
+    private void aplicar(Segmento segmento, String clave, long posicion, long tamano, long modificado, int longitud) {
+        Entrada anterior = tamano < 0 ? indice.remove(clave)
+                : indice.put(clave, new Entrada(segmento.id, posicion, posicion + longitud - tamano, (int) tamano, modificado, longitud));
+        if (tamano >= 0) segmento.vivos.addAndGet(longitud);
+        if (anterior != null) {
+            Segmento viejo = segmentos.get(anterior.segmento);
+            if (viejo != null) viejo.vivos.addAndGet(-anterior.longitud);
+        }
+    }
+
+    // Reconstruye el indice con los registros del segmento; un registro roto al final del ultimo se recorta
+    private void cargar(int id, boolean ultimo) throws IOException {
+        Segmento segmento = new Segmento(id, directorio.resolve(nombre(id)));
+        segmentos.put(id, segmento);
+        long tamanoArchivo = Files.size(segmento.ruta);
+        ByteBuffer mapa = tamanoArchivo == 0 ? ByteBuffer.allocate(0) : segmento.leer(0, (int) tamanoArchivo);
+        long validos = recorrer(mapa, (posicion, clave, tamano, modificado, datos) ->
+                aplicar(segmento, clave, posicion, tamano, modificado, (int) (datos - posicion + Math.max(tamano, 0))));
+        segmento.tamano = validos;
+        if (validos < tamanoArchivo) {
+            log.warn("Segmento {}: {} bytes ilegibles al final{}", segmento.ruta.getFileName(), tamanoArchivo - validos,
+                    ultimo ? ", se recortan" : "");
+            if (ultimo) {
+                try (FileChannel canal = FileChannel.open(segmento.ruta, StandardOpenOption.WRITE)) {
+                    canal.truncate(validos);
+                }
+            }
+        }
+    }
+
+    // Devuelve hasta donde los registros son validos
+    private static long recorrer(ByteBuffer mapa, Visitante visitante) throws IOException {
+        int posicion = 0;
+        while (posicion + CABECERA <= mapa.limit()) {
+            int crc = mapa.getInt(posicion);
+            int longitudClave = mapa.getInt(posicion + 4);
+            long tamano = mapa.getLong(posicion + 8);
+            long modificado = mapa.getLong(posicion + 16);
+            if (longitudClave <= 0 || longitudClave > CLAVE_MAX || tamano < -1) break;
+            long fin = (long) posicion + CABECERA + longitudClave + Math.max(tamano, 0);
+            if (fin > mapa.limit()) break;
+
+            CRC32 calculado = new CRC32();
+            calculado.update(mapa.slice(posicion + 4, (int) (fin - posicion - 4)));
+            if ((int) calculado.getValue() != crc) break;
+
+            byte[] clave = new byte[longitudClave];
+            mapa.get(posicion + CABECERA, clave);
+            visitante.visitar(posicion, new String(clave, StandardCharsets.UTF_8), tamano, modificado,
+                    posicion + CABECERA + longitudClave);
+            posicion = (int) fin;
+        }
+        return posicion;
+    }
+
+    private Segmento nuevoSegmento() throws IOException {
+        int id = segmentos.isEmpty() ? 1 : segmentos.lastKey() + 1;
+        Segmento segmento = new Segmento(id, directorio.resolve(nombre(id)));
+        segmento.canal = FileChannel.open(segmento.ruta, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentos.put(id, segmento);
+        return segmento;
+    }
+
+    private static Segmento abrir(Segmento segmento) throws IOException {
+        segmento.canal = FileChannel.open(segmento.ruta, StandardOpenOption.WRITE);
+        return segmento;
+    }
+
+    private static int escribir(FileChannel canal, ByteBuffer buffer, long posicion) throws IOException {
+        int escritos = 0;
+        while (buffer.hasRemaining()) escritos += canal.write(buffer, posicion + escritos);
+        return escritos;
+    }
+
+    private long bytes(boolean vivos) {
+        long total = 0;
+        for (Segmento segmento : segmentos.values()) total += vivos ? segmento.vivos.get() : segmento.tamano - segmento.vivos.get();
+        return total;
+    }
+
+    private static String nombre(int id) {
+        return String.format("%s%06d%s", PREFIJO, id, SUFIJO);
+    }
+
+    private interface Visitante {
+        void visitar(long posicion, String clave, long tamano, long modificado, int datos) throws IOException;
+    }
+
+    private interface Origen {
+        int leer(ByteBuffer destino) throws IOException;
+    }
+
+    private static class Bytes implements Origen {
+        private final ByteBuffer datos;
+
+        Bytes(ByteBuffer datos) {
+            this.datos = datos;
+        }
+
+        @Override
+        public int leer(ByteBuffer destino) {
+            if (!datos.hasRemaining()) return -1;
+            int cantidad = Math.min(destino.remaining(), datos.remaining());
+            destino.put(datos.slice(datos.position(), cantidad));
+            datos.position(datos.position() + cantidad);
+            return cantidad;
+        }
+    }
+
+    private static class Entrada {
+        private final int segmento;
+        private final long registro;
+        private final long datos;
+        private final int tamano;
+        private final long modificado;
+        private final int longitud;
+
+        Entrada(int segmento, long registro, long datos, int tamano, long modificado, int longitud) {
+            this.segmento = segmento;
+            this.registro = registro;
+            this.datos = datos;
+            this.tamano = tamano;
+            this.modificado = modificado;
+            this.longitud = longitud;
+        }
+    }
+
+    private static class Segmento {
+        private final int id;
+        private final Path ruta;
+        private final AtomicLong vivos = new AtomicLong();
+        private volatile long tamano;
+        // abierto solo mientras es el segmento activo
+        private FileChannel canal;
+        private volatile MappedByteBuffer mapa;
+
+        Segmento(int id, Path ruta) {
+            this.id = id;
+            this.ruta = ruta;
+        }
+
+        // El segmento activo crece: se vuelve a mapear cuando se pide algo escrito despues del ultimo mapeo
+        ByteBuffer leer(long posicion, int tamano) throws IOException {
+            MappedByteBuffer actual = mapa;
+            if (actual == null || posicion + tamano > actual.capacity()) actual = mapear(posicion + tamano);
+            return actual.slice((int) posicion, tamano);
+        }
+
+        private synchronized MappedByteBuffer mapear(long minimo) throws IOException {
+            if (mapa == null || mapa.capacity() < minimo) {
+                try (FileChannel lectura = FileChannel.open(ruta, StandardOpenOption.READ)) {
+                    mapa = lectura.map(FileChannel.MapMode.READ_ONLY, 0, lectura.size());
+                }
+            }
+            return mapa;
+        }
+
+        void cerrar() throws IOException {
+            if (canal != null) canal.close();
+            canal = null;
+        }
+    }
+
+    // Recurso de solo lectura sobre el slice mapeado; cada lectura usa su propia vista del buffer
+    private static class Recurso extends AbstractResource {
+        private final ByteBuffer datos;
+        private final String clave;
+        private final long modificado;
+
+        Recurso(ByteBuffer datos, String clave, long modificado) {
+            this.datos = datos;
+            this.clave = clave;
+            this.modificado = modificado;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer vista = datos.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return vista.hasRemaining() ? vista.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] destino, int desde, int cantidad) {
+                    if (cantidad == 0) return 0;
+                    if (!vista.hasRemaining()) return -1;
+                    int leidos = Math.min(cantidad, vista.remaining());
+                    vista.get(destino, desde, leidos);
+                    return leidos;
+                }
+
+                @Override
+                public long skip(long cantidad) {
+                    int saltados = (int) Math.max(0, Math.min(cantidad, vista.remaining()));
+                    vista.position(vista.position() + saltados);
+                    return saltados;
+                }
+
+                @Override
+                public int available() {
+                    return vista.remaining();
+                }
+            };
+        }
+
+        @Override
+        public long contentLength() {
+            return datos.remaining();
+        }
+
+        @Override
+        public long lastModified() {
+            return modificado;
+        }
+
+        @Override
+        public String getFilename() {
+            return StringUtils.getFilename(clave);
+        }
+
+        @Override
+        public String getDescription() {
+            return "Foto [" + clave + "] del almacen de segmentos";
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+// Un evento del change stream de productos. El id es el resume token, valido en cualquier nodo
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CambioProducto {
+    public static final String CREADO = "creado";
+    public static final String ACTUALIZADO = "actualizado";
+    public static final String ELIMINADO = "eliminado";
+    // El Last-Event-ID ya no esta en el historial: el cliente tiene que volver a cargar el listado
+    public static final String REINICIO = "reinicio";
+
+    private String id;
+    private String tipo;
+    private String productoId;
+    private Producto producto;
+
+    public CambioProducto() {
+    }
+
+    public CambioProducto(String id, String tipo, String productoId, Producto producto) {
+        this.id = id;
+        this.tipo = tipo;
+        this.productoId = productoId;
+        this.producto = producto;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getTipo() {
+        return tipo;
+    }
+
+    public void setTipo(String tipo) {
+        this.tipo = tipo;
+    }
+
+    public String getProductoId() {
+        return productoId;
+    }
+
+    public void setProductoId(String productoId) {
+        this.productoId = productoId;
+    }
+
+    public Producto getProducto() {
+        return producto;
+    }
+
+    public void setProducto(Producto producto) {
+        this.producto = producto;
+    }
+
+    // Los eliminados no traen el documento, asi que pasan cualquier filtro de categoria
+    public boolean esDeCategoria(String categoriaId) {
+        if (categoriaId == null || producto == null) return true;
+        return producto.getCategoria() != null && categoriaId.equals(producto.getCategoria().getId());
+    }
+}
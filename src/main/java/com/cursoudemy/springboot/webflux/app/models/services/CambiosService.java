@@ -0,0 +1,213 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Un solo change stream de productos por nodo, repartido a todos los suscriptores SSE. Guarda los ultimos eventos
+ * para que un cliente que reconecta con Last-Event-ID no pierda nada, y cada suscriptor tiene una cola acotada: si
+ * se llena se le corta la conexion y vuelve a entrar desde el historial. Cada evento invalida tambien las caches
+ * locales de productos, asi los demas nodos se enteran de lo que se escribe en este.
+ */
+@Service
+public class CambiosService {
+    private static final Logger log = LoggerFactory.getLogger(CambiosService.class);
+    private static final String COLECCION = "productos";
+    // ChangeStreamHistoryLost y ChangeStreamFatalError: el token ya no esta en el oplog y reintentar con el no sirve
+    private static final Set<Integer> HISTORIAL_PERDIDO = Set.of(286, 280);
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+    @Autowired
+    private ProductoService service;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.cambios.historial:1000}")
+    private int historialMax;
+    @Value("${config.cambios.buffer:256}")
+    private int bufferMax;
+    @Value("${config.cambios.reintento:1s}")
+    private Duration reintento;
+    @Value("${config.cambios.reintento-max:30s}")
+    private Duration reintentoMax;
+
+    // historial y suscriptores se modifican siempre con el lock de la instancia
+    private final Deque<CambioProducto> historial = new ArrayDeque<>();
+    // cada cola con su corte: un error en la propia cola no llegaria hasta vaciarla, y el suscriptor lento no la vacia
+    private final Map<Sinks.Many<CambioProducto>, Sinks.Empty<Void>> suscriptores = new HashMap<>();
+    private volatile String ultimoId;
+    private Counter cortados;
+    private Disposable upstream;
+
+    @PostConstruct
+    public void iniciar() {
+        Gauge.builder("productos.cambios.suscriptores", this, cambios -> cambios.contarSuscriptores())
+                .description("Suscriptores SSE conectados al change stream de productos")
+                .register(meterRegistry);
+        cortados = Counter.builder("productos.cambios.cortados")
+                .description("Suscriptores desconectados por no consumir los eventos a tiempo")
+                .register(meterRegistry);
+
+        // Se reabre tras un error o un invalidate, retomando desde el ultimo evento recibido
+        upstream = Flux.defer(this::escuchar)
+                .doOnError(CambiosService::historialPerdido, e -> reiniciar())
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, reintento).maxBackoff(reintentoMax)
+                        .doBeforeRetry(senal -> log.warn("Change stream de productos interrumpido: {}", senal.failure().toString())))
+                .repeatWhen(completados -> completados.delayElements(reintento))
+                .subscribe(this::publicar);
+    }
+
+    @PreDestroy
+    public void detener() {
+        upstream.dispose();
+        synchronized (this) {
+            suscriptores.keySet().forEach(Sinks.Many::tryEmitComplete);
+            suscriptores.clear();
+        }
+    }
+
+    public Flux<CambioProducto> cambios(String ultimoEventoId, String categoriaId) {
+        return Flux.defer(() -> {
+            Sinks.Many<CambioProducto> sink = Sinks.many().unicast()
+                    .onBackpressureBuffer(Queues.<CambioProducto>get(bufferMax).get());
+            Sinks.Empty<Void> corte = Sinks.empty();
+            synchronized (this) {
+                List<CambioProducto> pendientes = pendientes(ultimoEventoId);
+                if (pendientes == null || pendientes.size() > bufferMax) {
+                    sink.tryEmitNext(new CambioProducto(null, CambioProducto.REINICIO, null, null));
+                } else {
+                    pendientes.forEach(sink::tryEmitNext);
+                }
+                suscriptores.put(sink, corte);
+            }
+            return Flux.merge(sink.asFlux(), corte.asMono().then(Mono.<CambioProducto>empty()))
+                    .doFinally(senal -> quitar(sink));
+        }).filter(cambio -> cambio.esDeCategoria(categoriaId));
+    }
+
+    private Flux<CambioProducto> escuchar() {
+        ChangeStreamOptions.ChangeStreamOptionsBuilder opciones = ChangeStreamOptions.builder()
+                .filter(Aggregation.newAggregation(Aggregation.match(
+                        Criteria.where("operationType").in("insert", "update", "replace", "delete"))))
+                .returnFullDocumentOnUpdate();
+        if (ultimoId != null) opciones.resumeAfter(new BsonDocument("_data", new BsonString(ultimoId)));
+        return mongoTemplate.changeStream(null, COLECCION, opciones.build(), Producto.class).mapNotNull(this::convertir);
+    }
+
+    private CambioProducto convertir(ChangeStreamEvent<Producto> evento) {
+        ChangeStreamDocument<Document> raw = evento.getRaw();
+        BsonValue token = evento.getResumeToken();
+        if (raw == null || token == null || evento.getOperationType() == null) return null;
+        String id = token.asDocument().getString("_data").getValue();
+        String productoId = idComoTexto(raw.getDocumentKey() != null ? raw.getDocumentKey().get("_id") : null);
+        return switch (evento.getOperationType()) {
+            case INSERT -> new CambioProducto(id, CambioProducto.CREADO, productoId, evento.getBody());
+            case UPDATE, REPLACE -> new CambioProducto(id, CambioProducto.ACTUALIZADO, productoId, evento.getBody());
+            case DELETE -> new CambioProducto(id, CambioProducto.ELIMINADO, productoId, null);
+            default -> null;
+        };
+    }
+
+    private void publicar(CambioProducto cambio) {
+        if (cambio.getProductoId() != null) service.invalidar(cambio.getProductoId());
+        synchronized (this) {
+            ultimoId = cambio.getId();
+            historial.addLast(cambio);
+            if (historial.size() > historialMax) historial.removeFirst();
+            repartir(cambio);
+        }
+    }
+
+    // Sobre una copia: quien recibe el evento puede cancelar o volver a suscribirse en el mismo hilo
+    private void repartir(CambioProducto cambio) {
+        for (Map.Entry<Sinks.Many<CambioProducto>, Sinks.Empty<Void>> suscriptor : new ArrayList<>(suscriptores.entrySet())) {
+            Sinks.EmitResult resultado = suscriptor.getKey().tryEmitNext(cambio);
+            if (resultado == Sinks.EmitResult.FAIL_OVERFLOW) {
+                cortados.increment();
+                suscriptor.getValue().tryEmitError(
+                        new IllegalStateException("Suscriptor lento: mas de " + bufferMax + " eventos pendientes"));
+            }
+            if (resultado.isFailure()) suscriptores.remove(suscriptor.getKey());
+        }
+    }
+
+    // Se vuelve a abrir desde ahora; lo que paso entre medias se perdio, asi que los clientes tienen que recargar
+    private void reiniciar() {
+        log.warn("El change stream de productos perdio su punto de reanudacion: se reabre desde ahora");
+        synchronized (this) {
+            ultimoId = null;
+            historial.clear();
+            repartir(new CambioProducto(null, CambioProducto.REINICIO, null, null));
+        }
+    }
+
+    private static boolean historialPerdido(Throwable e) {
+        for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+            if (causa instanceof MongoException && HISTORIAL_PERDIDO.contains(((MongoException) causa).getCode())) return true;
+        }
+        return false;
+    }
+
+    // null si el id ya no esta en el historial (o es de otro nodo que este todavia no ha visto)
+    private List<CambioProducto> pendientes(String ultimoEventoId) {
+        if (ultimoEventoId == null || ultimoEventoId.equals(ultimoId)) return List.of();
+        List<CambioProducto> pendientes = new ArrayList<>();
+        boolean encontrado = false;
+        for (CambioProducto cambio : historial) {
+            if (encontrado) pendientes.add(cambio);
+            else encontrado = cambio.getId().equals(ultimoEventoId);
+        }
+        return encontrado ? pendientes : null;
+    }
+
+    private synchronized void quitar(Sinks.Many<CambioProducto> sink) {
+        suscriptores.remove(sink);
+    }
+
+    private synchronized int contarSuscriptores() {
+        return suscriptores.size();
+    }
+
+    private static String idComoTexto(BsonValue id) {
+        if (id == null) return null;
+        if (id.isObjectId()) return id.asObjectId().getValue().toHexString();
+        if (id.isString()) return id.asString().getValue();
+        return id.toString();
+    }
+}
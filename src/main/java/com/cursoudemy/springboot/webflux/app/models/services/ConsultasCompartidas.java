@@ -0,0 +1,69 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Single-flight: las consultas concurrentes por la misma clave comparten una sola consulta al origen y reciben su
+ * resultado o su error. La consulta se cancela solo cuando se cancelan todos los que la esperan, y al terminar (o con
+ * {@link #olvidar}) deja de compartirse: quien llega despues lanza una nueva.
+ */
+public class ConsultasCompartidas<K, V> {
+    private final Function<K, Mono<V>> origen;
+    private final Map<K, Mono<V>> enCurso = new ConcurrentHashMap<>();
+    private final Counter lanzadas;
+    private final Counter compartidas;
+
+    public ConsultasCompartidas(String nombre, Function<K, Mono<V>> origen, MeterRegistry meterRegistry) {
+        this.origen = origen;
+        lanzadas = Counter.builder("consultas.compartidas").tag("consulta", nombre).tag("resultado", "origen")
+                .description("Consultas por clave segun lanzaran la consulta al origen o se unieran a una en curso")
+                .register(meterRegistry);
+        compartidas = Counter.builder("consultas.compartidas").tag("consulta", nombre).tag("resultado", "compartida")
+                .description("Consultas por clave segun lanzaran la consulta al origen o se unieran a una en curso")
+                .register(meterRegistry);
+        Gauge.builder("consultas.compartidas.ratio", this, ConsultasCompartidas::ratio).tag("consulta", nombre)
+                .description("Fraccion de las consultas servidas por una consulta en curso")
+                .register(meterRegistry);
+    }
+
+    public Mono<V> get(K clave) {
+        return Mono.defer(() -> {
+            AtomicReference<Mono<V>> nueva = new AtomicReference<>();
+            Mono<V> consulta = enCurso.computeIfAbsent(clave, k -> {
+                nueva.set(lanzar(k));
+                return nueva.get();
+            });
+            (consulta == nueva.get() ? lanzadas : compartidas).increment();
+            return consulta;
+        });
+    }
+
+    // Los que ya esperan siguen con la consulta en curso; los siguientes lanzan otra
+    public void olvidar(K clave) {
+        enCurso.remove(clave);
+    }
+
+    private Mono<V> lanzar(K clave) {
+        AtomicReference<Mono<V>> propia = new AtomicReference<>();
+        // refCount(1): se suscribe al origen con el primero y lo cancela cuando no queda nadie esperando
+        Mono<V> consulta = origen.apply(clave)
+                .doFinally(senal -> enCurso.remove(clave, propia.get()))
+                .flux().publish().refCount(1)
+                .singleOrEmpty();
+        propia.set(consulta);
+        return consulta;
+    }
+
+    private double ratio() {
+        double total = lanzadas.count() + compartidas.count();
+        return total == 0 ? 0 : compartidas.count() / total;
+    }
+}
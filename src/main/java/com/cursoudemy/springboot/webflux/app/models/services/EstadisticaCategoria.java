@@ -0,0 +1,67 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+public class EstadisticaCategoria {
+    private String categoriaId;
+    private String categoriaNombre;
+    private String periodo;
+    private long cantidad;
+    private Double precioMinimo;
+    private Double precioPromedio;
+    private Double precioMaximo;
+
+    public String getCategoriaId() {
+        return categoriaId;
+    }
+
+    public void setCategoriaId(String categoriaId) {
+        this.categoriaId = categoriaId;
+    }
+
+    public String getCategoriaNombre() {
+        return categoriaNombre;
+    }
+
+    public void setCategoriaNombre(String categoriaNombre) {
+        this.categoriaNombre = categoriaNombre;
+    }
+
+    public String getPeriodo() {
+        return periodo;
+    }
+
+    public void setPeriodo(String periodo) {
+        this.periodo = periodo;
+    }
+
+    public long getCantidad() {
+        return cantidad;
+    }
+
+    public void setCantidad(long cantidad) {
+        this.cantidad = cantidad;
+    }
+
+    public Double getPrecioMinimo() {
+        return precioMinimo;
+    }
+
+    public void setPrecioMinimo(Double precioMinimo) {
+        this.precioMinimo = precioMinimo;
+    }
+
+    public Double getPrecioPromedio() {
+        return precioPromedio;
+    }
+
+    public void setPrecioPromedio(Double precioPromedio) {
+        this.precioPromedio = precioPromedio;
+    }
+
+    public Double getPrecioMaximo() {
+        return precioMaximo;
+    }
+
+    public void setPrecioMaximo(Double precioMaximo) {
+        this.precioMaximo = precioMaximo;
+    }
+}
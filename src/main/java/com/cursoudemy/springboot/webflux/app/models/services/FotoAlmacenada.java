@@ -0,0 +1,31 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * Una foto leida del almacen: el recurso que se entrega en la respuesta, su tamano y cuando se guardo (para el ETag
+ * y el Last-Modified).
+ */
+public class FotoAlmacenada {
+    private final Resource recurso;
+    private final long tamano;
+    private final long modificado;
+
+    public FotoAlmacenada(Resource recurso, long tamano, long modificado) {
+        this.recurso = recurso;
+        this.tamano = tamano;
+        this.modificado = modificado;
+    }
+
+    public Resource getRecurso() {
+        return recurso;
+    }
+
+    public long getTamano() {
+        return tamano;
+    }
+
+    public long getModificado() {
+        return modificado;
+    }
+}
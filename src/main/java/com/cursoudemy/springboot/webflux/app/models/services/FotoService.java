@@ -0,0 +1,192 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Foto;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Almacen de fotos direccionado por contenido: cada foto se guarda una sola vez con el SHA-256 de sus bytes
+ * como nombre, y la coleccion "fotos" cuenta cuantos productos la referencian. Los bytes van al {@link AlmacenFotos}.
+ * Los bytes solo se borran con el documento marcado como "borrando", y una subida del mismo contenido espera a que
+ * ese borrado termine para crear un documento nuevo y volver a escribirlos.
+ */
+@Service
+public class FotoService {
+    // Un borrado marcado hace mas de esto se da por abandonado (el nodo se cayo a medias)
+    private static final Duration BORRADO_ABANDONADO = Duration.ofMinutes(1);
+    private static final Duration ESPERA_BORRADO = Duration.ofMillis(20);
+    private static final int ESPERAS_BORRADO = 100;
+    // Bytes del principio que bastan para reconocer los formatos de imagen
+    private static final int CABECERA = 12;
+    private static final Map<String, String> ALIAS = Map.of("jpeg", "jpg", "jpe", "jpg", "tif", "tiff");
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+    @Autowired
+    private AlmacenFotos almacen;
+    @Autowired
+    private Scheduler io;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.uploads.path}")
+    private String path;
+
+    // El digest se calcula mientras el archivo se escribe a un temporal, sin volver a leerlo. La extension sale de los
+    // primeros bytes y no del nombre del cliente, para que el mismo contenido subido como .jpg y .jpeg sea una sola foto
+    public Mono<String> guardar(FilePart file) {
+        MessageDigest digest = sha256();
+        byte[] cabecera = new byte[CABECERA];
+        AtomicLong bytes = new AtomicLong();
+
+        return Mono.fromCallable(() -> Files.createTempFile(Paths.get(path), "upload-", ".tmp"))
+                .subscribeOn(io)
+                .flatMap(tmp -> DataBufferUtils.write(file.content().doOnNext(buffer -> {
+                            long previos = bytes.getAndAdd(buffer.readableByteCount());
+                            for (int i = 0; previos + i < CABECERA && i < buffer.readableByteCount(); i++) {
+                                cabecera[(int) previos + i] = buffer.getByte(buffer.readPosition() + i);
+                            }
+                            digest.update(buffer.asByteBuffer());
+                        }), tmp)
+                        .then(Mono.fromSupplier(() -> HexFormat.of().formatHex(digest.digest())
+                                + extension(cabecera, (int) Math.min(bytes.get(), CABECERA), file.filename())))
+                        // Primero la referencia y despues los bytes: con la referencia puesta nadie los puede borrar
+                        .flatMap(nombre -> referenciar(nombre)
+                                .then(Mono.fromCallable(() -> mover(tmp, nombre)).subscribeOn(io))
+                                .onErrorResume(e -> liberar(nombre).then(Mono.error(e))))
+                        .onErrorResume(e -> Mono.fromRunnable(() -> borrar(tmp)).subscribeOn(io).then(Mono.error(e))))
+                .transform(subida -> medir(subida, bytes));
+    }
+
+    // Al llegar a cero referencias se marca el documento, se borran la foto y sus derivados y despues el documento,
+    // solo si sigue con la misma marca. Si la marca no encuentra el documento es que una subida lo volvio a
+    // referenciar entre el decremento y la marca, y los bytes se conservan. Las fotos anteriores al almacen no tienen
+    // contador y se conservan.
+    public Mono<Void> liberar(String foto) {
+        if (!StringUtils.hasText(foto)) return Mono.empty();
+
+        return mongoTemplate.findAndModify(sinMarcar(foto), new Update().inc("referencias", -1),
+                        FindAndModifyOptions.options().returnNew(true), Foto.class)
+                .filter(f -> f.getReferencias() <= 0)
+                .flatMap(f -> {
+                    Date marca = new Date();
+                    return mongoTemplate.findAndModify(sinMarcar(foto).addCriteria(Criteria.where("referencias").lte(0)),
+                            new Update().set("borrando", marca), Foto.class).map(marcada -> marca);
+                })
+                .flatMap(marca -> Mono.fromCallable(() -> {
+                            almacen.borrar(foto);
+                            for (String tamano : MiniaturaService.TAMANOS) almacen.borrar(tamano + "/" + foto);
+                            return foto;
+                        }).subscribeOn(io)
+                        .then(mongoTemplate.remove(new Query(Criteria.where("id").is(foto).and("borrando").is(marca)),
+                                Foto.class)))
+                .then();
+    }
+
+    // Si la foto se esta borrando el upsert no encuentra el documento y choca con su _id: se espera a que el borrado
+    // termine, y entonces se crea uno nuevo y los bytes se vuelven a escribir
+    private Mono<Void> referenciar(String nombre) {
+        return Mono.defer(() -> {
+                    Date abandonado = new Date(System.currentTimeMillis() - BORRADO_ABANDONADO.toMillis());
+                    Query query = new Query(Criteria.where("id").is(nombre).orOperator(
+                            Criteria.where("borrando").exists(false), Criteria.where("borrando").lt(abandonado)));
+                    return mongoTemplate.upsert(query, new Update().inc("referencias", 1).unset("borrando"), Foto.class);
+                })
+                .retryWhen(Retry.fixedDelay(ESPERAS_BORRADO, ESPERA_BORRADO).filter(DuplicateKeyException.class::isInstance))
+                .then();
+    }
+
+    // Duracion y bytes por subida; el resultado (ok/error) es la unica etiqueta
+    private Mono<String> medir(Mono<String> subida, AtomicLong bytes) {
+        return Mono.defer(() -> {
+            Timer.Sample muestra = Timer.start(meterRegistry);
+            return subida.doOnEach(signal -> {
+                if (!signal.isOnNext() && !signal.isOnError()) return;
+                String resultado = signal.isOnError() ? "error" : "ok";
+                muestra.stop(Timer.builder("fotos.subida").tag("resultado", resultado)
+                        .description("Duracion de la subida de una foto hasta quedar guardada")
+                        .register(meterRegistry));
+                DistributionSummary.builder("fotos.subida.bytes").tag("resultado", resultado).baseUnit("bytes")
+                        .register(meterRegistry).record(bytes.get());
+            });
+        });
+    }
+
+    private String mover(Path tmp, String nombre) throws IOException {
+        almacen.guardar(nombre, tmp);
+        return nombre;
+    }
+
+    private static Query sinMarcar(String nombre) {
+        return new Query(Criteria.where("id").is(nombre).and("borrando").exists(false));
+    }
+
+    // La del formato de imagen reconocido por su firma; si no se reconoce, la del nombre con los alias unificados
+    private static String extension(byte[] cabecera, int leidos, String filename) {
+        if (firma(cabecera, leidos, 0, 0xFF, 0xD8, 0xFF)) return ".jpg";
+        if (firma(cabecera, leidos, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return ".png";
+        if (firma(cabecera, leidos, 0, 'G', 'I', 'F', '8')) return ".gif";
+        if (firma(cabecera, leidos, 0, 'R', 'I', 'F', 'F') && firma(cabecera, leidos, 8, 'W', 'E', 'B', 'P')) return ".webp";
+        if (firma(cabecera, leidos, 0, 'B', 'M')) return ".bmp";
+
+        String extension = StringUtils.getFilenameExtension(filename);
+        if (extension == null) return "";
+        extension = extension.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]", "");
+        extension = ALIAS.getOrDefault(extension, extension);
+        return extension.isEmpty() ? "" : "." + extension;
+    }
+
+    private static boolean firma(byte[] cabecera, int leidos, int desde, int... bytes) {
+        if (leidos < desde + bytes.length) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if ((cabecera[desde + i] & 0xFF) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static void borrar(Path ruta) {
+        try {
+            Files.deleteIfExists(ruta);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import java.util.List;
+
+/**
+ * Resultado de una consulta por varios ids: lo encontrado en el orden pedido y los ids que no existen.
+ */
+public class Lote<T> {
+    private final List<T> contenido;
+    private final List<String> faltantes;
+
+    public Lote(List<T> contenido, List<String> faltantes) {
+        this.contenido = contenido;
+        this.faltantes = faltantes;
+    }
+
+    public List<T> getContenido() {
+        return contenido;
+    }
+
+    public List<String> getFaltantes() {
+        return faltantes;
+    }
+}
@@ -0,0 +1,155 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Genera las versiones reducidas de las fotos subidas en un pool acotado, fuera del event loop.
+ * Cada derivado se guarda con la clave "{tamano}/{foto}" en el {@link AlmacenFotos}; como el nombre
+ * es el digest del contenido, una foto compartida por varios productos solo se reduce una vez.
+ */
+@Service
+public class MiniaturaService {
+    public static final String THUMB = "thumb";
+    public static final String MEDIUM = "medium";
+    public static final List<String> TAMANOS = List.of(THUMB, MEDIUM);
+
+    private static final Logger log = LoggerFactory.getLogger(MiniaturaService.class);
+
+    @Autowired
+    private ProductoService service;
+    @Autowired
+    private AlmacenFotos almacen;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.uploads.derivados.thumb:150}")
+    private int thumb;
+    @Value("${config.uploads.derivados.medium:600}")
+    private int medium;
+    @Value("${config.uploads.derivados.workers:2}")
+    private int workers;
+    @Value("${config.uploads.derivados.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private final Map<String, Integer> tamanos = new LinkedHashMap<>();
+    private ThreadPoolExecutor executor;
+    private Counter rechazados;
+
+    @PostConstruct
+    public void init() {
+        tamanos.put(THUMB, thumb);
+        tamanos.put(MEDIUM, medium);
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("miniaturas-"));
+
+        Gauge.builder("fotos.derivados.pendientes", executor, e -> e.getQueue().size()).register(meterRegistry);
+        rechazados = Counter.builder("fotos.derivados.rechazados").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isTamano(String tamano) {
+        return tamanos.containsKey(tamano);
+    }
+
+    public void generar(Producto producto) {
+        if (!StringUtils.hasText(producto.getFoto())) return;
+
+        String id = producto.getId();
+        String foto = producto.getFoto();
+        try {
+            executor.execute(() -> generarDerivados(id, foto));
+        } catch (RejectedExecutionException e) {
+            rechazados.increment();
+            log.warn("Cola de miniaturas llena, se sirve el original de " + foto);
+        }
+    }
+
+    private void generarDerivados(String id, String foto) {
+        String formato = StringUtils.getFilenameExtension(foto);
+        if (formato == null || !ImageIO.getImageWritersBySuffix(formato).hasNext()) return;
+
+        try {
+            BufferedImage original = null;
+            Map<String, String> derivados = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> tamano : tamanos.entrySet()) {
+                String clave = tamano.getKey() + "/" + foto;
+                if (!almacen.existe(clave)) {
+                    if (original == null) original = leer(foto);
+                    if (original == null) return;
+
+                    ByteArrayOutputStream salida = new ByteArrayOutputStream();
+                    ImageIO.write(escalar(original, tamano.getValue(), formato), formato, salida);
+                    almacen.guardar(clave, salida.toByteArray());
+                }
+                derivados.put(tamano.getKey(), clave);
+            }
+
+            service.updateFotoDerivados(id, foto, derivados).block(Duration.ofSeconds(30));
+        } catch (IOException | RuntimeException e) {
+            log.error("No se pudieron generar los derivados de " + foto, e);
+        }
+    }
+
+    private BufferedImage leer(String foto) throws IOException {
+        FotoAlmacenada original = almacen.leer(foto);
+        if (original == null) return null;
+        try (InputStream entrada = original.getRecurso().getInputStream()) {
+            return ImageIO.read(entrada);
+        }
+    }
+
+    private static BufferedImage escalar(BufferedImage original, int maximo, String formato) {
+        double escala = Math.min(1d, (double) maximo / Math.max(original.getWidth(), original.getHeight()));
+        int ancho = Math.max(1, (int) Math.round(original.getWidth() * escala));
+        int alto = Math.max(1, (int) Math.round(original.getHeight() * escala));
+        boolean sinAlfa = formato.equalsIgnoreCase("jpg") || formato.equalsIgnoreCase("jpeg");
+
+        BufferedImage destino = new BufferedImage(ancho, alto, sinAlfa ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = destino.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (sinAlfa) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, ancho, alto);
+            }
+            g.drawImage(original, 0, 0, ancho, alto, null);
+        } finally {
+            g.dispose();
+        }
+        return destino;
+    }
+}
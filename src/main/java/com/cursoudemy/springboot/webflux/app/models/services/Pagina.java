@@ -0,0 +1,30 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import java.util.List;
+
+/**
+ * Pagina de resultados por cursor: el contenido y el cursor de la siguiente pagina, o null si es la ultima.
+ */
+public class Pagina<T> {
+    public static final String HEADER_SIGUIENTE = "X-Next-Cursor";
+
+    private final List<T> contenido;
+    private final String siguiente;
+
+    public Pagina(List<T> contenido, String siguiente) {
+        this.contenido = contenido;
+        this.siguiente = siguiente;
+    }
+
+    public List<T> getContenido() {
+        return contenido;
+    }
+
+    public String getSiguiente() {
+        return siguiente;
+    }
+
+    public boolean hasSiguiente() {
+        return siguiente != null;
+    }
+}
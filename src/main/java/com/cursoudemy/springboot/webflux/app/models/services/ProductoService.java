@@ -6,6 +6,8 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 
 public interface ProductoService {
     public Flux<Producto> findAll();
@@ -16,12 +18,36 @@ public interface ProductoService {
 
     public Flux<Producto> findAllConNombreUpperCaseRepeat(Long repeat);
 
+    public Mono<Pagina<Producto>> findAllPaginado(String after, Integer limit, Proyeccion proyeccion);
+
+    public Flux<Producto> findAllDesde(String after, Proyeccion proyeccion);
+
+    public Flux<Producto> buscarPorNombre(String texto, Integer limit, Proyeccion proyeccion);
+
+    public Mono<Void> crearIndices();
+
+    public Mono<Long> normalizarNombres(int batchSize);
+
+    public Flux<EstadisticaCategoria> estadisticasPorCategoria(String periodo);
+
     public Mono<Producto> findById(String id);
 
+    public Mono<Lote<Producto>> findAllById(List<String> ids, Proyeccion proyeccion);
+
+    public void invalidar(String id);
+
     public Mono<Producto> save(Producto producto);
 
+    public Mono<Producto> update(String id, Producto cambios);
+
     public Mono<Void> delete(Producto producto);
 
+    public Mono<Boolean> deleteById(String id);
+
+    public Mono<Void> updateFotoDerivados(String id, String foto, Map<String, String> derivados);
+
+    public Mono<ResultadoImportacion> importar(Flux<Producto> productos);
+
     public Flux<Categoria> findAllCategoria();
 
     public Mono<Categoria> findCategoriaById(String id);
@@ -4,12 +4,59 @@ import com.cursoudemy.springboot.webflux.app.models.dao.CategoriaDao;
 import com.cursoudemy.springboot.webflux.app.models.dao.ProductoDao;
 import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
 import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.DateOperators;
+import org.springframework.data.mongodb.core.aggregation.GroupOperation;
+import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.springframework.validation.BeanPropertyBindingResult;
+import org.springframework.validation.Errors;
+import org.springframework.validation.Validator;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
 
+import javax.annotation.PostConstruct;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 @Service
 public class ProductoServiceImpl implements ProductoService {
@@ -18,6 +65,131 @@ public class ProductoServiceImpl implements ProductoService {
     @Autowired
     private CategoriaDao categoriaDao;
 
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+    @Autowired
+    private Validator validator;
+    @Autowired
+    private FotoService fotos;
+    @Autowired
+    private PropagacionCategorias propagacion;
+
+    @Value("${config.productos.page.default-limit:50}")
+    private int defaultLimit;
+    @Value("${config.productos.page.max-limit:500}")
+    private int maxLimit;
+
+    @Value("${config.productos.search.default-limit:20}")
+    private int searchDefaultLimit;
+    @Value("${config.productos.search.max-limit:100}")
+    private int searchMaxLimit;
+
+    @Value("${config.productos.lote.max-ids:100}")
+    private int loteMaxIds;
+
+    @Value("${config.productos.import.batch-size:1000}")
+    private int importBatchSize;
+    @Value("${config.productos.import.concurrency:4}")
+    private int importConcurrency;
+    @Value("${config.productos.import.max-errores:1000}")
+    private int importMaxErrores;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Value("${config.cache.categorias.max-size:1000}")
+    private long categoriasMaxSize;
+    @Value("${config.cache.categorias.ttl:10m}")
+    private Duration categoriasTtl;
+    @Value("${config.cache.categorias.refresh:1m}")
+    private Duration categoriasRefresh;
+
+    @Value("${config.cache.productos.enabled:true}")
+    private boolean productosCacheEnabled;
+    @Value("${config.cache.productos.max-size:10000}")
+    private long productosMaxSize;
+    @Value("${config.cache.productos.ttl:5m}")
+    private Duration productosTtl;
+    @Value("${config.cache.productos.negative-ttl:30s}")
+    private Duration productosNegativeTtl;
+
+    @Value("${config.cache.estadisticas.ttl:30s}")
+    private Duration estadisticasTtl;
+
+    private static final Map<String, String> FORMATOS_PERIODO = Map.of("dia", "%Y-%m-%d", "mes", "%Y-%m", "anio", "%Y");
+    private static final String TODAS = "*";
+    private AsyncLoadingCache<String, Categoria> categorias;
+    private AsyncLoadingCache<String, List<Categoria>> todasCategorias;
+    private ConsultasCompartidas<String, Optional<Producto>> consultasProductos;
+    // null con config.cache.productos.enabled=false
+    private AsyncLoadingCache<String, Optional<Producto>> productos;
+    private AsyncLoadingCache<String, List<EstadisticaCategoria>> estadisticas;
+
+    @PostConstruct
+    public void initCaches() {
+        consultasProductos = new ConsultasCompartidas<>("productos", id -> dao.findById(id)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty()), meterRegistry);
+        productos = productosCacheEnabled ? cacheProductos() : null;
+
+        estadisticas = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(FORMATOS_PERIODO.size() + 1)
+                .expireAfterWrite(estadisticasTtl)
+                .recordStats()
+                .buildAsync((String periodo, Executor executor) -> agregarPorCategoria(periodo).toFuture()), "estadisticas");
+
+        categorias = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(categoriasMaxSize)
+                .expireAfterWrite(categoriasTtl)
+                .refreshAfterWrite(categoriasRefresh)
+                .recordStats()
+                .buildAsync(new AsyncCacheLoader<String, Categoria>() {
+                    @Override
+                    public CompletableFuture<Categoria> asyncLoad(String id, Executor executor) {
+                        return categoriaDao.findById(id).toFuture();
+                    }
+
+                    @Override
+                    public CompletableFuture<Map<String, Categoria>> asyncLoadAll(Iterable<? extends String> ids, Executor executor) {
+                        return categoriaDao.findAllById(Flux.fromIterable(ids)).collectMap(Categoria::getId).toFuture();
+                    }
+                }), "categorias");
+
+        todasCategorias = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(1)
+                .expireAfterWrite(categoriasTtl)
+                .refreshAfterWrite(categoriasRefresh)
+                .recordStats()
+                .buildAsync((String key, Executor executor) -> categoriaDao.findAll().collectList().toFuture()), "categorias.todas");
+    }
+
+    // Caffeine ya une las cargas concurrentes de un id; pasan igual por el single-flight para medirlo con y sin cache
+    private AsyncLoadingCache<String, Optional<Producto>> cacheProductos() {
+        AsyncLoadingCache<String, Optional<Producto>> cache = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+                .maximumSize(productosMaxSize)
+                .expireAfter(new Expiry<String, Optional<Producto>>() {
+                    @Override
+                    public long expireAfterCreate(String id, Optional<Producto> producto, long currentTime) {
+                        return (producto.isPresent() ? productosTtl : productosNegativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String id, Optional<Producto> producto, long currentTime, long currentDuration) {
+                        return expireAfterCreate(id, producto, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String id, Optional<Producto> producto, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .buildAsync((String id, Executor executor) -> consultasProductos.get(id).toFuture()), "productos");
+        Gauge.builder("cache.hit.ratio", cache, c -> c.synchronous().stats().hitRate())
+                .tag("cache", "productos")
+                .register(meterRegistry);
+        return cache;
+    }
+
     @Override
     public Flux<Producto> findAll() {
         return dao.findAll();
@@ -47,33 +219,354 @@ public class ProductoServiceImpl implements ProductoService {
         }).repeat(repeat);
     }
 
+    @Override
+    public Mono<Pagina<Producto>> findAllPaginado(String after, Integer limit, Proyeccion proyeccion) {
+        if (after != null && !ObjectId.isValid(after))
+            return Mono.error(new IllegalArgumentException("Cursor invalido: " + after));
+
+        int size = limit == null ? defaultLimit : Math.max(1, Math.min(limit, maxLimit));
+        // Se pide un elemento de mas para saber si existe una pagina siguiente sin otra consulta
+        Query query = proyeccion.aplicar(despuesDe(after).limit(size + 1));
+
+        return mongoTemplate.find(query, Producto.class).collectList().map(list -> list.size() > size
+                ? new Pagina<>(list.subList(0, size), list.get(size - 1).getId())
+                : new Pagina<>(list, null));
+    }
+
+    @Override
+    public Flux<Producto> findAllDesde(String after, Proyeccion proyeccion) {
+        if (after != null && !ObjectId.isValid(after))
+            return Flux.error(new IllegalArgumentException("Cursor invalido: " + after));
+
+        return mongoTemplate.find(proyeccion.aplicar(despuesDe(after)), Producto.class);
+    }
+
+    private static Query despuesDe(String after) {
+        Query query = after == null ? new Query() : new Query(Criteria.where("id").gt(new ObjectId(after)));
+        return query.with(Sort.by("id"));
+    }
+
+    // Primero los nombres que empiezan con el texto buscado y luego los que tienen todas sus palabras como
+    // prefijo de alguna palabra del nombre. Ambas consultas son prefijos anclados sobre campos indexados.
+    @Override
+    public Flux<Producto> buscarPorNombre(String texto, Integer limit, Proyeccion proyeccion) {
+        String normalizado = Producto.normalizar(texto);
+        List<String> terminos = Producto.palabras(texto);
+        if (terminos.isEmpty()) return Flux.empty();
+
+        int size = limit == null ? searchDefaultLimit : Math.max(1, Math.min(limit, searchMaxLimit));
+        Query porNombre = new Query(Criteria.where("nombreNormalizado").regex("^" + normalizado))
+                .with(Sort.by("nombreNormalizado"))
+                .limit(size);
+        Query porPalabras = new Query(Criteria.where("palabras").all(terminos.stream()
+                .map(termino -> Pattern.compile("^" + termino))
+                .collect(Collectors.toList())))
+                .with(Sort.by("nombreNormalizado", "id"))
+                .limit(2 * size);
+
+        return Flux.concat(mongoTemplate.find(proyeccion.aplicar(porNombre), Producto.class),
+                        mongoTemplate.find(proyeccion.aplicar(porPalabras), Producto.class))
+                .distinct(Producto::getId)
+                .take(size);
+    }
+
+    @Override
+    public Mono<Void> crearIndices() {
+        ReactiveIndexOperations indices = mongoTemplate.indexOps(Producto.class);
+        return indices.ensureIndex(new Index("nombreNormalizado", Sort.Direction.ASC))
+                .then(indices.ensureIndex(new Index("palabras", Sort.Direction.ASC)))
+                // recorrido por lotes de los productos de una categoria al propagar sus cambios
+                .then(indices.ensureIndex(new Index().on("categoria.id", Sort.Direction.ASC).on("id", Sort.Direction.ASC)))
+                .then();
+    }
+
+    // Productos escritos antes de la busqueda: se les calculan los campos normalizados en lotes de updateOne. El filtro
+    // repite la condicion para no pisar un nombre que se cambio mientras tanto
+    @Override
+    public Mono<Long> normalizarNombres(int batchSize) {
+        Criteria sinNormalizar = Criteria.where("nombreNormalizado").exists(false);
+        Query query = new Query(sinNormalizar);
+        query.fields().include("nombre");
+
+        return mongoTemplate.find(query, Producto.class)
+                .map(p -> new UpdateOneModel<Document>(
+                        new Document("_id", ObjectId.isValid(p.getId()) ? new ObjectId(p.getId()) : p.getId())
+                                .append("nombreNormalizado", new Document("$exists", false)),
+                        new Document("$set", new Document("nombreNormalizado", Producto.normalizar(p.getNombre()))
+                                .append("palabras", Producto.palabras(p.getNombre())))))
+                .buffer(batchSize)
+                .concatMap(lote -> mongoTemplate.getCollection(mongoTemplate.getCollectionName(Producto.class))
+                        .flatMap(collection -> Mono.from(collection.bulkWrite(lote, new BulkWriteOptions().ordered(false)))))
+                .reduce(0L, (total, bulk) -> total + bulk.getModifiedCount());
+    }
+
+    // "periodo" agrupa ademas por fecha de creacion: dia, mes o anio. El resultado se cachea unos segundos.
+    @Override
+    public Flux<EstadisticaCategoria> estadisticasPorCategoria(String periodo) {
+        String clave = periodo == null ? "" : periodo;
+        if (!clave.isEmpty() && !FORMATOS_PERIODO.containsKey(clave))
+            return Flux.error(new IllegalArgumentException("Periodo invalido: " + periodo));
+
+        return fromCache(estadisticas.get(clave)).flatMapIterable(lista -> lista);
+    }
+
+    private Mono<List<EstadisticaCategoria>> agregarPorCategoria(String periodo) {
+        ProjectionOperation proyeccion = Aggregation.project("precio")
+                .and("categoria.id").as("categoriaId")
+                .and("categoria.nombre").as("categoriaNombre");
+        GroupOperation grupo;
+        if (periodo.isEmpty()) {
+            grupo = Aggregation.group("categoriaId");
+        } else {
+            proyeccion = proyeccion.and(DateOperators.DateToString.dateOf("createdAt")
+                    .toString(FORMATOS_PERIODO.get(periodo))).as("periodo");
+            grupo = Aggregation.group("categoriaId", "periodo");
+        }
+
+        TypedAggregation<Producto> aggregation = Aggregation.newAggregation(Producto.class, proyeccion,
+                grupo.first("categoriaNombre").as("categoriaNombre")
+                        .count().as("cantidad")
+                        .min("precio").as("precioMinimo")
+                        .avg("precio").as("precioPromedio")
+                        .max("precio").as("precioMaximo"),
+                Aggregation.sort(Sort.by("_id")));
+
+        return mongoTemplate.aggregate(aggregation, Document.class).map(resultado -> {
+            EstadisticaCategoria estadistica = new EstadisticaCategoria();
+            Object id = resultado.get("_id");
+            if (id instanceof Document) {
+                estadistica.setCategoriaId(Objects.toString(((Document) id).get("categoriaId"), null));
+                estadistica.setPeriodo(((Document) id).getString("periodo"));
+            } else {
+                estadistica.setCategoriaId(Objects.toString(id, null));
+            }
+            estadistica.setCategoriaNombre(resultado.getString("categoriaNombre"));
+            estadistica.setCantidad(((Number) resultado.get("cantidad")).longValue());
+            estadistica.setPrecioMinimo(resultado.getDouble("precioMinimo"));
+            estadistica.setPrecioPromedio(resultado.getDouble("precioPromedio"));
+            estadistica.setPrecioMaximo(resultado.getDouble("precioMaximo"));
+            return estadistica;
+        }).collectList();
+    }
+
+    // Se entrega una copia: los llamadores modifican el producto antes de guardarlo
     @Override
     public Mono<Producto> findById(String id) {
-        return dao.findById(id);
+        Mono<Optional<Producto>> producto = productos != null ? fromCache(productos.get(id)) : consultasProductos.get(id);
+        return producto.flatMap(Mono::justOrEmpty).map(Producto::new);
+    }
+
+    // Lo que esta en la cache sale de ella y el resto con un solo $in; no se cachea lo leido porque puede venir
+    // proyectado. Los ids repetidos se devuelven una vez
+    @Override
+    public Mono<Lote<Producto>> findAllById(List<String> ids, Proyeccion proyeccion) {
+        List<String> distintos = ids.stream().distinct().collect(Collectors.toList());
+        if (distintos.isEmpty() || distintos.size() > loteMaxIds)
+            return Mono.error(new IllegalArgumentException("Se admiten entre 1 y " + loteMaxIds + " ids"));
+
+        Map<String, Producto> encontrados = new HashMap<>();
+        List<String> pendientes = new ArrayList<>();
+        for (String id : distintos) {
+            CompletableFuture<Optional<Producto>> cacheado = productos != null ? productos.asMap().get(id) : null;
+            if (cacheado != null && cacheado.isDone() && !cacheado.isCompletedExceptionally()) {
+                // los inexistentes cacheados quedan como faltantes sin volver a consultarlos
+                cacheado.join().ifPresent(p -> encontrados.put(id, proyeccion.aplicar(new Producto(p))));
+            } else {
+                pendientes.add(id);
+            }
+        }
+
+        Flux<Producto> consultados = pendientes.isEmpty() ? Flux.empty()
+                : mongoTemplate.find(proyeccion.aplicar(new Query(Criteria.where("id").in(pendientes))), Producto.class);
+        return consultados.doOnNext(p -> encontrados.put(p.getId(), p)).then(Mono.fromSupplier(() -> {
+            List<Producto> contenido = new ArrayList<>();
+            List<String> faltantes = new ArrayList<>();
+            for (String id : distintos) {
+                Producto producto = encontrados.get(id);
+                if (producto != null) contenido.add(producto);
+                else faltantes.add(id);
+            }
+            return new Lote<>(contenido, faltantes);
+        }));
+    }
+
+    // Cambios que llegan por el change stream, incluidos los escritos desde otros nodos. Las estadisticas no se tocan:
+    // con escrituras continuas no llegarian a servirse nunca de la cache, y su ttl ya acota lo que se retrasan
+    @Override
+    public void invalidar(String id) {
+        invalidarProducto(id);
     }
 
     @Override
     public Mono<Producto> save(Producto producto) {
-        return dao.save(producto);
+        return categoriaVigente(producto.getCategoria()).map(categoria -> {
+                    producto.setCategoria(categoria);
+                    return producto;
+                }).flatMap(dao::save).doOnNext(p -> invalidarProducto(p.getId()));
     }
 
     @Override
     public Mono<Void> delete(Producto producto) {
-        return dao.delete(producto);
+        return dao.delete(producto)
+                .doOnSuccess(v -> invalidarProducto(producto.getId()))
+                .then(fotos.liberar(producto.getFoto()));
+    }
+
+    // Un unico findAndModify con los campos recibidos. Si trae version, solo se aplica sobre esa version;
+    // un fallo con version se distingue del producto inexistente con una consulta extra solo en ese caso.
+    @Override
+    public Mono<Producto> update(String id, Producto cambios) {
+        Update update = new Update().inc("version", 1);
+        if (cambios.getNombre() != null) update.set("nombre", cambios.getNombre())
+                .set("nombreNormalizado", Producto.normalizar(cambios.getNombre()))
+                .set("palabras", Producto.palabras(cambios.getNombre()));
+        if (cambios.getPrecio() != null) update.set("precio", cambios.getPrecio());
+        Mono<Update> completo = cambios.getCategoria() == null ? Mono.just(update)
+                : categoriaVigente(cambios.getCategoria()).map(categoria -> update.set("categoria", categoria));
+
+        Criteria criteria = Criteria.where("id").is(id);
+        if (cambios.getVersion() != null) criteria.and("version").is(cambios.getVersion());
+
+        return completo.flatMap(u -> mongoTemplate.findAndModify(new Query(criteria), u,
+                        FindAndModifyOptions.options().returnNew(true), Producto.class))
+                .doOnNext(p -> invalidarProducto(id))
+                .switchIfEmpty(Mono.defer(() -> cambios.getVersion() == null ? Mono.empty() : dao.existsById(id)
+                        .flatMap(existe -> existe ? Mono.error(new OptimisticLockingFailureException(
+                                "El producto " + id + " fue modificado por otra peticion")) : Mono.empty())));
+    }
+
+    @Override
+    public Mono<Boolean> deleteById(String id) {
+        return mongoTemplate.findAndRemove(new Query(Criteria.where("id").is(id)), Producto.class)
+                .doOnNext(p -> invalidarProducto(id))
+                .flatMap(p -> fotos.liberar(p.getFoto()).thenReturn(true))
+                .defaultIfEmpty(false);
+    }
+
+    // Solo se actualiza si la foto no cambio mientras se generaban los derivados. Sube la version para que una copia
+    // leida antes (la de la sesion de edicion, por ejemplo) no los pise al guardarse entera
+    @Override
+    public Mono<Void> updateFotoDerivados(String id, String foto, Map<String, String> derivados) {
+        return mongoTemplate.updateFirst(new Query(Criteria.where("id").is(id).and("foto").is(foto)),
+                        new Update().set("derivados", derivados).inc("version", 1), Producto.class)
+                .doOnNext(result -> invalidarProducto(id))
+                .then();
+    }
+
+    @Override
+    public Mono<ResultadoImportacion> importar(Flux<Producto> productos) {
+        ResultadoImportacion resultado = new ResultadoImportacion(importMaxErrores);
+        return productos.index()
+                .doOnNext(registro -> resultado.recibido())
+                .filter(registro -> validar(registro.getT1(), registro.getT2(), resultado))
+                .buffer(importBatchSize)
+                .flatMap(lote -> guardarLote(lote, resultado), importConcurrency)
+                .then(Mono.just(resultado));
+    }
+
+    // Los ids propios tienen que ser ObjectId: la paginacion por cursor no admite otros
+    private boolean validar(long indice, Producto producto, ResultadoImportacion resultado) {
+        Errors errors = new BeanPropertyBindingResult(producto, Producto.class.getName());
+        validator.validate(producto, errors);
+        errors.getFieldErrors().forEach(fieldError -> resultado.error(indice, producto.getId(),
+                "El campo " + fieldError.getField() + " " + fieldError.getDefaultMessage()));
+        boolean idValido = producto.getId() == null || ObjectId.isValid(producto.getId());
+        if (!idValido) resultado.error(indice, producto.getId(), "El id " + producto.getId() + " no es un ObjectId");
+        return idValido && !errors.hasErrors();
+    }
+
+    // Las categorias del lote se resuelven de una vez (cache y una sola consulta para las que falten)
+    // y el lote se escribe con un unico bulkWrite no ordenado. Solo inserta: un id que ya existe se rechaza por
+    // clave duplicada en vez de pisar el producto, y la foto no se importa porque solo la asignan las subidas
+    private Mono<Void> guardarLote(List<Tuple2<Long, Producto>> lote, ResultadoImportacion resultado) {
+        Set<String> categoriaIds = lote.stream()
+                .map(registro -> registro.getT2().getCategoria().getId())
+                .collect(Collectors.toSet());
+
+        return fromCache(categorias.getAll(categoriaIds)).flatMap(porId -> {
+            List<Tuple2<Long, Producto>> enviados = new ArrayList<>(lote.size());
+            List<WriteModel<Document>> escrituras = new ArrayList<>(lote.size());
+
+            for (Tuple2<Long, Producto> registro : lote) {
+                Producto p = registro.getT2();
+                Categoria categoria = porId.get(p.getCategoria().getId());
+                if (categoria == null) {
+                    resultado.error(registro.getT1(), p.getId(), "No existe la categoria " + p.getCategoria().getId());
+                    continue;
+                }
+
+                p.setCategoria(categoria);
+                if (p.getId() == null) p.setId(new ObjectId().toHexString());
+                if (p.getCreatedAt() == null) p.setCreatedAt(new Date());
+                p.setVersion(0L);
+                p.setFoto(null);
+                p.setDerivados(null);
+
+                Document document = new Document();
+                mongoTemplate.getConverter().write(p.normalizarNombre(), document);
+                escrituras.add(new InsertOneModel<>(document));
+                enviados.add(registro);
+            }
+
+            if (escrituras.isEmpty()) return Mono.empty();
+
+            return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Producto.class))
+                    .flatMap(collection -> Mono.from(collection.bulkWrite(escrituras, new BulkWriteOptions().ordered(false))))
+                    .doOnNext(bulk -> resultado.guardados(escrituras.size()))
+                    .doFinally(signal -> enviados.forEach(registro -> invalidarProducto(registro.getT2().getId())))
+                    .onErrorResume(MongoBulkWriteException.class, ex -> {
+                        ex.getWriteErrors().forEach(error -> {
+                            Tuple2<Long, Producto> registro = enviados.get(error.getIndex());
+                            String id = registro.getT2().getId();
+                            resultado.error(registro.getT1(), id, error.getCategory() == ErrorCategory.DUPLICATE_KEY
+                                    ? "Ya existe el producto " + id : error.getMessage());
+                        });
+                        resultado.guardados(escrituras.size() - ex.getWriteErrors().size());
+                        return Mono.empty();
+                    })
+                    .then();
+        });
     }
 
     @Override
     public Flux<Categoria> findAllCategoria() {
-        return categoriaDao.findAll();
+        return fromCache(todasCategorias.get(TODAS)).flatMapIterable(categorias -> categorias);
     }
 
     @Override
     public Mono<Categoria> findCategoriaById(String id) {
-        return categoriaDao.findById(id);
+        return fromCache(categorias.get(id));
     }
 
+    // Los productos que la llevan embebida se actualizan despues, en segundo plano
     @Override
     public Mono<Categoria> saveCategoria(Categoria categoria) {
-        return categoriaDao.save(categoria);
+        return categoriaDao.save(categoria).doOnNext(c -> {
+            categorias.synchronous().invalidate(c.getId());
+            todasCategorias.synchronous().invalidateAll();
+        }).flatMap(c -> propagacion.propagar(c).thenReturn(c));
+    }
+
+    // La copia embebida sale de la categoria guardada y no de la que mando el cliente; sin id o con uno que no existe
+    // se rechaza. Sale de la cache: si la de este nodo aun no vio un cambio hecho en otro, el repaso de la propagacion
+    // corrige la copia. Se copia para que nadie modifique la de la cache a traves del producto
+    private Mono<Categoria> categoriaVigente(Categoria recibida) {
+        if (recibida == null || recibida.getId() == null) return Mono.error(new IllegalArgumentException("Falta categoria.id"));
+        return findCategoriaById(recibida.getId()).map(categoria -> {
+            Categoria copia = new Categoria(categoria.getNombre());
+            copia.setId(categoria.getId());
+            return copia;
+        }).switchIfEmpty(Mono.error(() -> new IllegalArgumentException("Categoria desconocida: " + recibida.getId())));
+    }
+
+    // Tambien se olvida la consulta en curso: pudo empezar antes de la escritura y no debe servir a quien llega despues
+    private void invalidarProducto(String id) {
+        consultasProductos.olvidar(id);
+        if (productos != null) productos.synchronous().invalidate(id);
+    }
+
+    // Cada suscriptor recibe una copia para que su cancelacion no cancele la carga compartida en la cache
+    private static <T> Mono<T> fromCache(CompletableFuture<T> future) {
+        return Mono.fromFuture(future.copy());
     }
 }
@@ -0,0 +1,243 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.documents.PropagacionCategoria;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copia los cambios de una categoria en los productos que la llevan embebida, asi las lecturas siguen sin join. Se
+ * recorren los productos de la categoria por _id en lotes y cada lote se reescribe con un solo updateMulti; el
+ * progreso queda en {@link PropagacionCategoria} tras cada lote para retomar desde ahi si el nodo se reinicia. Cada
+ * categoria la procesa un solo trabajo: si cambia otra vez mientras tanto, el trabajo empieza de nuevo con la nueva
+ * copia en el lote siguiente. Al terminar se programa un repaso desde el principio para los productos que se guardaron
+ * con la copia vieja detras del recorrido o desde nodos cuya cache de categorias aun no veia el cambio.
+ */
+@Service
+public class PropagacionCategorias {
+    private static final Logger log = LoggerFactory.getLogger(PropagacionCategorias.class);
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+    // Perezoso: ProductoServiceImpl lanza las propagaciones y este invalida sus caches
+    @Autowired
+    private ObjectProvider<ProductoService> productos;
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${config.categorias.propagacion.lote:500}")
+    private int lote;
+    @Value("${config.categorias.propagacion.lotes-en-vuelo:2}")
+    private int lotesEnVuelo;
+    @Value("${config.categorias.propagacion.concurrencia:2}")
+    private int concurrencia;
+    @Value("${config.categorias.propagacion.reintento:1s}")
+    private Duration reintento;
+    @Value("${config.categorias.propagacion.reintentos:5}")
+    private int reintentos;
+    // lo que tarda en expirar la cache de categorias de los demas nodos
+    @Value("${config.categorias.propagacion.repaso:10m}")
+    private Duration repaso;
+
+    // la ultima propagacion pedida de cada categoria; el trabajo en curso la consulta antes de cada lote
+    private final Map<String, PropagacionCategoria> vigentes = new ConcurrentHashMap<>();
+    private final Set<String> enCurso = ConcurrentHashMap.newKeySet();
+    // generaciones con el repaso ya programado
+    private final Set<String> repasadas = ConcurrentHashMap.newKeySet();
+    private final Sinks.Many<String> cola = Sinks.many().unicast().onBackpressureBuffer();
+    private Counter actualizados;
+    private Disposable trabajos;
+
+    @PostConstruct
+    public void iniciar() {
+        Gauge.builder("categorias.propagacion.pendientes", vigentes, Map::size)
+                .description("Categorias cuyos cambios se estan copiando en sus productos")
+                .register(meterRegistry);
+        actualizados = Counter.builder("categorias.propagacion.productos")
+                .description("Productos reescritos con la copia nueva de su categoria")
+                .register(meterRegistry);
+
+        trabajos = cola.asFlux().flatMap(this::ejecutar, concurrencia).subscribe();
+
+        // Las que quedaron a medias siguen desde su ultimo lote
+        mongoTemplate.find(new Query(Criteria.where("estado").is(PropagacionCategoria.EN_CURSO)), PropagacionCategoria.class)
+                .subscribe(this::encolar, e -> log.warn("No se pudieron retomar las propagaciones de categorias: {}", e.toString()));
+    }
+
+    @PreDestroy
+    public void detener() {
+        trabajos.dispose();
+    }
+
+    // Termina al registrar la propagacion; los productos se actualizan despues
+    public Mono<PropagacionCategoria> propagar(Categoria categoria) {
+        return Mono.defer(() -> {
+            PropagacionCategoria propagacion = new PropagacionCategoria();
+            propagacion.setId(categoria.getId());
+            propagacion.setGeneracion(new ObjectId().toHexString());
+            propagacion.setCategoria(categoria);
+            propagacion.setEstado(PropagacionCategoria.EN_CURSO);
+            propagacion.setIniciada(new Date());
+            propagacion.setModificada(propagacion.getIniciada());
+            return mongoTemplate.save(propagacion).doOnNext(this::encolar);
+        });
+    }
+
+    public Mono<PropagacionCategoria> progreso(String categoriaId) {
+        return mongoTemplate.findById(categoriaId, PropagacionCategoria.class);
+    }
+
+    // Las generaciones son ObjectId: si una retomada al arrancar llega tarde no pisa a la pedida despues
+    private void encolar(PropagacionCategoria propagacion) {
+        vigentes.merge(propagacion.getId(), propagacion, (actual, nueva) ->
+                nueva.getGeneracion().compareTo(actual.getGeneracion()) >= 0 ? nueva : actual);
+        lanzar(propagacion.getId());
+    }
+
+    private synchronized void lanzar(String categoriaId) {
+        if (enCurso.add(categoriaId)) cola.tryEmitNext(categoriaId);
+    }
+
+    private Mono<Void> ejecutar(String categoriaId) {
+        PropagacionCategoria propagacion = vigentes.get(categoriaId);
+        if (propagacion == null) {
+            enCurso.remove(categoriaId);
+            return Mono.empty();
+        }
+        // Los reintentos siguen desde el ultimo lote guardado; los ya escritos no vuelven a coincidir con la consulta
+        return Flux.defer(() -> lotes(propagacion))
+                .flatMapSequential(ids -> actualizar(propagacion, ids), lotesEnVuelo)
+                .concatMap(escrito -> avanzar(propagacion, escrito.getT1(), escrito.getT2()))
+                .retryWhen(Retry.backoff(reintentos, reintento)
+                        .doBeforeRetry(senal -> log.warn("Propagacion de la categoria {} interrumpida: {}",
+                                categoriaId, senal.failure().toString())))
+                .then(Mono.defer(() -> vigentes.get(categoriaId) == propagacion
+                        ? terminar(propagacion).doOnSuccess(v -> programarRepaso(propagacion)) : Mono.empty()))
+                .onErrorResume(e -> {
+                    log.error("Propagacion de la categoria {} abandonada, se retomara al reiniciar", categoriaId, e);
+                    return Mono.empty();
+                })
+                .doFinally(senal -> soltar(categoriaId, propagacion));
+    }
+
+    // Si llego otra generacion mientras tanto se lanza de nuevo, ya con ella
+    private void soltar(String categoriaId, PropagacionCategoria propagacion) {
+        vigentes.remove(categoriaId, propagacion);
+        enCurso.remove(categoriaId);
+        if (vigentes.containsKey(categoriaId)) lanzar(categoriaId);
+    }
+
+    // Un solo repaso por generacion, y solo si sigue siendo la ultima: una posterior ya reescribe todos los productos
+    private void programarRepaso(PropagacionCategoria propagacion) {
+        if (!repasadas.add(propagacion.getGeneracion())) {
+            // el que termina es el propio repaso
+            repasadas.remove(propagacion.getGeneracion());
+            return;
+        }
+        Mono.delay(repaso)
+                .then(progreso(propagacion.getId()))
+                .filter(actual -> propagacion.getGeneracion().equals(actual.getGeneracion()))
+                .filter(actual -> {
+                    propagacion.setUltimoId(null);
+                    return vigentes.putIfAbsent(propagacion.getId(), propagacion) == null;
+                })
+                .subscribe(actual -> lanzar(propagacion.getId()), e -> {
+                    repasadas.remove(propagacion.getGeneracion());
+                    log.warn("No se pudo repasar la categoria {}: {}", propagacion.getId(), e.toString());
+                }, () -> {
+                    if (vigentes.get(propagacion.getId()) != propagacion) repasadas.remove(propagacion.getGeneracion());
+                });
+    }
+
+    // Keyset por _id entre los productos de la categoria que todavia tienen la copia vieja; solo se leen los ids
+    private Flux<List<String>> lotes(PropagacionCategoria propagacion) {
+        return pagina(propagacion, propagacion.getUltimoId()).expand(ids -> ids.size() < lote
+                || vigentes.get(propagacion.getId()) != propagacion ? Mono.empty()
+                : pagina(propagacion, ids.get(ids.size() - 1)));
+    }
+
+    private Mono<List<String>> pagina(PropagacionCategoria propagacion, String after) {
+        Criteria criteria = desactualizados(propagacion);
+        if (after != null) criteria.and("id").gt(new ObjectId(after));
+        Query query = new Query(criteria).with(Sort.by("id")).limit(lote);
+        query.fields().include("id");
+        return mongoTemplate.find(query, Producto.class)
+                .map(Producto::getId)
+                .collectList()
+                .filter(ids -> !ids.isEmpty());
+    }
+
+    // version se incrementa como en cualquier otra escritura: las filas cacheadas de la vista se vuelven a renderizar
+    private Mono<Tuple2<List<String>, Long>> actualizar(PropagacionCategoria propagacion, List<String> ids) {
+        return mongoTemplate.updateMulti(new Query(desactualizados(propagacion).and("id").in(ids)),
+                        new Update().set("categoria", propagacion.getCategoria()).inc("version", 1), Producto.class)
+                .map(resultado -> {
+                    ProductoService service = productos.getObject();
+                    ids.forEach(service::invalidar);
+                    actualizados.increment(resultado.getModifiedCount());
+                    return Tuples.of(ids, resultado.getModifiedCount());
+                });
+    }
+
+    // Solo si la propagacion no fue reemplazada por otra generacion
+    private Mono<Void> avanzar(PropagacionCategoria propagacion, List<String> ids, long modificados) {
+        String ultimoId = ids.get(ids.size() - 1);
+        return mongoTemplate.updateFirst(deGeneracion(propagacion), new Update()
+                        .set("ultimoId", ultimoId)
+                        .inc("actualizados", modificados)
+                        .set("modificada", new Date()), PropagacionCategoria.class)
+                .doOnNext(resultado -> {
+                    propagacion.setUltimoId(ultimoId);
+                    propagacion.setActualizados(propagacion.getActualizados() + modificados);
+                })
+                .then();
+    }
+
+    private Mono<Void> terminar(PropagacionCategoria propagacion) {
+        return mongoTemplate.updateFirst(deGeneracion(propagacion), new Update()
+                        .set("estado", PropagacionCategoria.TERMINADA)
+                        .set("modificada", new Date()), PropagacionCategoria.class)
+                .doOnNext(resultado -> log.info("Categoria {} propagada a {} productos", propagacion.getId(),
+                        propagacion.getActualizados()))
+                .then();
+    }
+
+    private static Criteria desactualizados(PropagacionCategoria propagacion) {
+        return Criteria.where("categoria.id").is(propagacion.getId())
+                .and("categoria.nombre").ne(propagacion.getCategoria().getNombre());
+    }
+
+    private static Query deGeneracion(PropagacionCategoria propagacion) {
+        return new Query(Criteria.where("id").is(propagacion.getId()).and("generacion").is(propagacion.getGeneracion()));
+    }
+}
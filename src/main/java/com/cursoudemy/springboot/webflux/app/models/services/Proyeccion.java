@@ -0,0 +1,60 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Campos de Producto pedidos con el parametro "fields". Se aplica como proyeccion de la consulta a Mongo, o
+ * sobre una copia en memoria cuando el producto sale de la cache.
+ */
+public class Proyeccion {
+    public static final Proyeccion TODOS = new Proyeccion(null);
+
+    private static final Set<String> CAMPOS = Set.of("id", "version", "nombre", "precio", "createdAt", "foto",
+            "derivados", "categoria");
+
+    private final Set<String> campos;
+
+    private Proyeccion(Set<String> campos) {
+        this.campos = campos;
+    }
+
+    public static Proyeccion of(String fields) {
+        if (!StringUtils.hasText(fields)) return TODOS;
+
+        Set<String> campos = Arrays.stream(fields.split(","))
+                .map(String::trim)
+                .filter(StringUtils::hasText)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        for (String campo : campos) {
+            if (!CAMPOS.contains(campo)) throw new IllegalArgumentException("Campo desconocido: " + campo);
+        }
+        return campos.isEmpty() ? TODOS : new Proyeccion(campos);
+    }
+
+    public Query aplicar(Query query) {
+        if (campos != null) campos.forEach(campo -> query.fields().include(campo));
+        return query;
+    }
+
+    public Producto aplicar(Producto producto) {
+        if (campos == null) return producto;
+
+        Producto proyectado = new Producto();
+        proyectado.setId(producto.getId());
+        if (campos.contains("version")) proyectado.setVersion(producto.getVersion());
+        if (campos.contains("nombre")) proyectado.setNombre(producto.getNombre());
+        if (campos.contains("precio")) proyectado.setPrecio(producto.getPrecio());
+        if (campos.contains("createdAt")) proyectado.setCreatedAt(producto.getCreatedAt());
+        if (campos.contains("foto")) proyectado.setFoto(producto.getFoto());
+        if (campos.contains("derivados")) proyectado.setDerivados(producto.getDerivados());
+        if (campos.contains("categoria")) proyectado.setCategoria(producto.getCategoria());
+        return proyectado;
+    }
+}
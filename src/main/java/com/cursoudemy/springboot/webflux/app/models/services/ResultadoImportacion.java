@@ -0,0 +1,72 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resumen de una importacion masiva. Los lotes se escriben en paralelo, por eso los metodos son sincronizados.
+ */
+public class ResultadoImportacion {
+    private final int maxErrores;
+    private long recibidos;
+    private long guardados;
+    private long totalErrores;
+    private final List<Error> errores = new ArrayList<>();
+
+    public ResultadoImportacion(int maxErrores) {
+        this.maxErrores = maxErrores;
+    }
+
+    public synchronized void recibido() {
+        recibidos++;
+    }
+
+    public synchronized void guardados(long cantidad) {
+        guardados += cantidad;
+    }
+
+    public synchronized void error(long registro, String id, String mensaje) {
+        totalErrores++;
+        if (errores.size() < maxErrores) errores.add(new Error(registro, id, mensaje));
+    }
+
+    public synchronized long getRecibidos() {
+        return recibidos;
+    }
+
+    public synchronized long getGuardados() {
+        return guardados;
+    }
+
+    public synchronized long getTotalErrores() {
+        return totalErrores;
+    }
+
+    public synchronized List<Error> getErrores() {
+        return new ArrayList<>(errores);
+    }
+
+    public static class Error {
+        private final long registro;
+        private final String id;
+        private final String mensaje;
+
+        public Error(long registro, String id, String mensaje) {
+            this.registro = registro;
+            this.id = id;
+            this.mensaje = mensaje;
+        }
+
+        public long getRegistro() {
+            return registro;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getMensaje() {
+            return mensaje;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.HttpHandlerConnector;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdmisionFilterTests {
+    private MongoEnMemoria mongo;
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+    private WebClient subidas;
+
+    @BeforeEach
+    void setUp() {
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(5, 42));
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.admision.tasa=1", "config.admision.rafaga=3",
+                "config.admision.subidas.concurrencia=2", "config.admision.intervalo=1h",
+                "server.forward-headers-strategy=framework");
+        client = WebTestClient.bindToApplicationContext(context).build();
+        // WebTestClient espera siempre la respuesta; las subidas a medias van con un WebClient sobre el mismo handler
+        subidas = WebClient.builder()
+                .clientConnector(new HttpHandlerConnector(WebHttpHandlerBuilder.applicationContext(context).build()))
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+
+    @Test
+    void limitaLasEscriturasPorClienteSinTocarLasLecturas() {
+        List<String> ids = mongo.ids();
+        for (int i = 0; i < 3; i++) borrar(ids.get(i), "10.0.0.1").expectStatus().isNoContent();
+        borrar(ids.get(3), "10.0.0.1").expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+        // Otro cliente tiene su propio bucket y las lecturas no pasan por el limite
+        borrar(ids.get(3), "10.0.0.2").expectStatus().isNoContent();
+        for (int i = 0; i < 5; i++) {
+            client.get().uri("/api/productos/{id}", ids.get(4)).header("X-Forwarded-For", "10.0.0.1")
+                    .exchange().expectStatus().isOk();
+        }
+        assertThat(rechazos("escritura", "tasa")).isEqualTo(1);
+
+        // El borrado del listado HTML es un GET, pero escribe
+        client.get().uri("/productos/delete/{id}", ids.get(4)).header("X-Forwarded-For", "10.0.0.1")
+                .exchange().expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+        assertThat(rechazos("escritura", "tasa")).isEqualTo(2);
+    }
+
+    @Test
+    void elLotePorPostEsUnaLecturaYNoGastaTokens() {
+        List<String> ids = mongo.ids();
+        for (int i = 0; i < 5; i++) {
+            client.post().uri("/api/v2/productos/lote").header("X-Forwarded-For", "10.0.0.1")
+                    .contentType(MediaType.APPLICATION_JSON).bodyValue(List.of(ids.get(i)))
+                    .exchange().expectStatus().isOk();
+        }
+        // El bucket del cliente sigue lleno para sus escrituras
+        for (int i = 0; i < 3; i++) borrar(ids.get(i), "10.0.0.1").expectStatus().isNoContent();
+        assertThat(context.getBean(MeterRegistry.class).find("admision.rechazos").counters()).isEmpty();
+    }
+
+    @Test
+    void sinProxyDeConfianzaXForwardedForNoCambiaElCliente() {
+        context.close();
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.admision.tasa=1", "config.admision.rafaga=3",
+                "config.admision.intervalo=1h");
+        client = WebTestClient.bindToApplicationContext(context).build();
+        List<String> ids = mongo.ids();
+        for (int i = 0; i < 3; i++) borrar(ids.get(i), "10.0.1." + i).expectStatus().isNoContent();
+        borrar(ids.get(3), "10.0.1.3").expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    @Test
+    void reduceLaConcurrenciaDeSubidasCuandoMongoSeRetrasa() {
+        AdmisionFilter admision = context.getBean(AdmisionFilter.class);
+        Timer mongoComandos = context.getBean(MeterRegistry.class).timer("mongodb.driver.commands", "command", "update");
+        admision.ajustar();
+        for (int i = 0; i < 10; i++) mongoComandos.record(Duration.ofMillis(500));
+        admision.ajustar();
+        assertThat(admision.getFactor()).isEqualTo(0.5);
+
+        // Con el limite a la mitad (1) una subida que no termina de llegar deja fuera a la siguiente
+        Disposable lenta = subir("10.0.0.1", Mono.never()).subscribe();
+        try {
+            assertThat(subir("10.0.0.2", Mono.empty()).block(Duration.ofSeconds(10))).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+            assertThat(rechazos("subida", "concurrencia")).isEqualTo(1);
+        } finally {
+            lenta.dispose();
+        }
+
+        for (int i = 0; i < 10; i++) mongoComandos.record(Duration.ofMillis(1));
+        admision.ajustar();
+        assertThat(admision.getFactor()).isEqualTo(0.6);
+    }
+
+    @Test
+    void losGetMoreLargosNoReducenLaConcurrencia() {
+        AdmisionFilter admision = context.getBean(AdmisionFilter.class);
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        admision.ajustar();
+        // Un cliente SSE deja el getMore del change stream esperando; las escrituras van rapidas
+        for (int i = 0; i < 10; i++) registry.timer("mongodb.driver.commands", "command", "getMore").record(Duration.ofSeconds(5));
+        for (int i = 0; i < 10; i++) registry.timer("mongodb.driver.commands", "command", "insert").record(Duration.ofMillis(2));
+        admision.ajustar();
+        assertThat(admision.getFactor()).isEqualTo(1);
+
+        // Solo getMore en el intervalo: no hay escrituras que medir
+        registry.timer("mongodb.driver.commands", "command", "getMore").record(Duration.ofSeconds(5));
+        admision.ajustar();
+        assertThat(admision.getFactor()).isEqualTo(1);
+    }
+
+    private WebTestClient.ResponseSpec borrar(String id, String cliente) {
+        return client.delete().uri("/api/productos/{id}", id).header("X-Forwarded-For", cliente).exchange();
+    }
+
+    // El cuerpo multipart empieza a llegar pero no termina hasta que lo haga el resto
+    private Mono<HttpStatus> subir(String cliente, Mono<DataBuffer> resto) {
+        DataBuffer inicio = DefaultDataBufferFactory.sharedInstance.wrap(("--x\r\nContent-Disposition: form-data; "
+                + "name=\"file\"; filename=\"a.png\"\r\nContent-Type: image/png\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        return subidas.post().uri("/api/productos/upload/{id}", mongo.ids().get(2)).header("X-Forwarded-For", cliente)
+                .contentType(MediaType.parseMediaType("multipart/form-data; boundary=x"))
+                .body(Flux.concat(Mono.just(inicio), resto), DataBuffer.class)
+                .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode()));
+    }
+
+    private double rechazos(String tipo, String motivo) {
+        return context.getBean(MeterRegistry.class).get("admision.rechazos").tag("tipo", tipo).tag("motivo", motivo)
+                .counter().count();
+    }
+}
@@ -0,0 +1,110 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.MultiValueMap;
+import reactor.blockhound.BlockingOperationError;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Las rutas se recorren sobre Netty real con BlockHound instalado: cualquier bloqueo en un bucle de eventos falla
+class BloqueosTests {
+    private static Path uploads;
+    private static MongoEnMemoria mongo;
+    private static ConfigurableApplicationContext context;
+    private static WebTestClient client;
+
+    @BeforeAll
+    static void iniciar() throws IOException {
+        uploads = Files.createTempDirectory("bloqueos-uploads");
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(20, 42));
+        context = AplicacionEnMemoria.iniciar(mongo, true, "config.uploads.path=" + uploads + "/",
+                "config.bloqueos.detectar=true");
+        int puerto = ((WebServerApplicationContext) context).getWebServer().getPort();
+        client = WebTestClient.bindToServer().baseUrl("http://localhost:" + puerto)
+                .responseTimeout(Duration.ofSeconds(30)).build();
+    }
+
+    @AfterAll
+    static void cerrar() {
+        context.close();
+        FileSystemUtils.deleteRecursively(uploads.toFile());
+    }
+
+    // BlockHound decide si un hilo es no bloqueante la primera vez que lo revisa: un hilo de Schedulers.parallel()
+    // revisado mientras se instalaba quedaria como bloqueante, asi que se usa uno creado despues
+    @Test
+    void detectaLlamadasBloqueantesEnHilosNoBloqueantes() {
+        Scheduler parallel = Schedulers.newParallel("bloqueos", 1);
+        try {
+            StepVerifier.create(Mono.fromCallable(() -> {
+                        Thread.sleep(1);
+                        return 1;
+                    }).subscribeOn(parallel))
+                    .verifyError(BlockingOperationError.class);
+        } finally {
+            parallel.dispose();
+        }
+    }
+
+    @Test
+    void lasRutasNoBloqueanLosBuclesDeEventos() {
+        String id = mongo.ids().get(0);
+
+        client.get().uri("/api/productos?limit=10").exchange().expectStatus().isOk();
+        client.get().uri("/api/productos/{id}", id).exchange().expectStatus().isOk();
+        client.get().uri("/api/v2/productos/{id}", id).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .exchange().expectStatus().isOk();
+        client.post().uri("/api/productos").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"nombre\":\"Silla\",\"precio\":10.5,\"categoria\":{\"id\":\"" + mongo.getCategoriaDao()
+                        .findAll().blockFirst().getId() + "\"}}")
+                .exchange().expectStatus().is2xxSuccessful();
+        client.post().uri("/api/productos/upload/{id}", id).bodyValue(multipart("a")).exchange().expectStatus().isOk();
+        client.post().uri("/api/v2/productos/upload/{id}", id).bodyValue(multipart("b")).exchange().expectStatus().is2xxSuccessful();
+
+        String foto = mongo.getProductoDao().findById(id).block().getFoto();
+        client.get().uri("/productos/uploads/img/{foto}", foto).exchange().expectStatus().isOk();
+        client.get().uri("/productos").exchange().expectStatus().isOk();
+        client.get().uri("/productos/show/{id}", id).exchange().expectStatus().isOk();
+
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        assertThat(registry.find("reactor.bloqueos").counters()).isEmpty();
+        // Las rutas funcionales tambien se etiquetan con el patron y no con la URL
+        assertThat(registry.find("http.server.requests").tag("uri", "/api/v2/productos/{id}").timers()).isNotEmpty();
+        assertThat(registry.find("fotos.subida").tag("resultado", "ok").timer().count()).isEqualTo(2);
+    }
+
+    private static MultiValueMap<String, HttpEntity<?>> multipart(String contenido) {
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("file", new ByteArrayResource(contenido.getBytes()) {
+            @Override
+            public String getFilename() {
+                return "foto.png";
+            }
+        }).contentType(MediaType.IMAGE_PNG);
+        return builder.build();
+    }
+}
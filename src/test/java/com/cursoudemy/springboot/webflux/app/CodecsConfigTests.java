@@ -0,0 +1,137 @@
+package com.cursoudemy.springboot.webflux.app;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CodecsConfigTests {
+    // El show funcional exige Content-Type aunque sea un GET; el anotado no lo mira
+    private static final List<String> SHOWS = List.of("/api/v2/productos/{id}", "/api/productos/{id}");
+
+    private MongoEnMemoria mongo;
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+    private Producto producto;
+
+    @BeforeEach
+    void setUp() {
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(5, 42));
+        context = AplicacionEnMemoria.iniciar(mongo);
+        client = WebTestClient.bindToApplicationContext(context).build();
+        producto = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+
+    @Test
+    void quienAceptaCualquierFormatoRecibeJson() {
+        for (String ruta : SHOWS) {
+            show(ruta, MediaType.ALL)
+                    .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+                    .expectBody().jsonPath("$.nombre").isEqualTo(producto.getNombre());
+        }
+        client.get().uri("/api/v2/productos/search?q={q}", primeraPalabra()).accept(MediaType.ALL)
+                .exchange().expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+                .expectBody().jsonPath("$[0].nombre").isNotEmpty();
+    }
+
+    @Test
+    void cborPorValorParaUnMonoYComoArrayParaUnFlux() throws IOException {
+        ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+        for (String ruta : SHOWS) {
+            byte[] cuerpo = show(ruta, MediaType.APPLICATION_CBOR)
+                    .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR)
+                    .expectBody(byte[].class).returnResult().getResponseBody();
+            assertThat(cbor.readTree(cuerpo).get("nombre").asText()).isEqualTo(producto.getNombre());
+        }
+
+        byte[] cuerpo = client.get().uri("/api/v2/productos/search?q={q}", primeraPalabra())
+                .accept(MediaType.APPLICATION_CBOR)
+                .exchange().expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR)
+                .expectBody(byte[].class).returnResult().getResponseBody();
+        JsonNode encontrados = cbor.readTree(cuerpo);
+        assertThat(encontrados.isArray()).isTrue();
+        assertThat(encontrados).extracting(nodo -> nodo.get("nombre").asText()).contains(producto.getNombre());
+    }
+
+    @Test
+    void cborEscribeCadaElementoDelFluxSinEsperarAlResto() throws IOException {
+        ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+        Sinks.Many<Producto> productos = Sinks.many().unicast().onBackpressureBuffer();
+        ByteArrayOutputStream escrito = new ByteArrayOutputStream();
+        Flux<DataBuffer> cuerpo = new CodecsConfig.CborEncoder(cbor).encode(productos.asFlux(),
+                DefaultDataBufferFactory.sharedInstance, ResolvableType.forClass(Producto.class),
+                MediaType.APPLICATION_CBOR, Map.of());
+
+        StepVerifier.create(cuerpo.doOnNext(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    escrito.writeBytes(bytes);
+                }))
+                .expectNextCount(1)
+                .then(() -> productos.tryEmitNext(producto))
+                // El producto sale antes de que el Flux termine
+                .expectNextCount(1)
+                .then(productos::tryEmitComplete)
+                .expectNextCount(1)
+                .verifyComplete();
+
+        JsonNode array = cbor.readTree(escrito.toByteArray());
+        assertThat(array.isArray()).isTrue();
+        assertThat(array).extracting(nodo -> nodo.get("nombre").asText()).containsExactly(producto.getNombre());
+    }
+
+    @Test
+    void smileUsaLaMismaConfiguracionDeJackson() throws IOException {
+        ObjectMapper smile = new ObjectMapper(new SmileFactory());
+        for (String ruta : SHOWS) {
+            byte[] cuerpo = show(ruta, CodecsConfig.APPLICATION_SMILE)
+                    .expectHeader().contentTypeCompatibleWith(CodecsConfig.APPLICATION_SMILE)
+                    .expectBody(byte[].class).returnResult().getResponseBody();
+            JsonNode nodo = smile.readTree(cuerpo);
+            assertThat(nodo.get("nombre").asText()).isEqualTo(producto.getNombre());
+            assertThat(nodo.get("precio").asDouble()).isEqualTo(producto.getPrecio());
+        }
+    }
+
+    private WebTestClient.ResponseSpec show(String ruta, MediaType accept) {
+        return client.get().uri(ruta, producto.getId())
+                .header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .accept(accept)
+                .exchange().expectStatus().isOk();
+    }
+
+    private String primeraPalabra() {
+        return producto.getNombre().split(" ")[0];
+    }
+}
@@ -0,0 +1,96 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenArchivos;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenFotos;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenSegmentos;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoAlmacenada;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Un archivo por foto frente a segmentos empaquetados: guardar derivados, abrir una foto (lo que hace cada GET antes
+// de escribir la respuesta) y leerla entera
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlmacenBenchmark {
+    private static final int FOTOS = 2000;
+
+    @Param({"archivos", "segmentos"})
+    public String almacen;
+
+    @Param({"8192", "131072"})
+    public int bytes;
+
+    private Path directorio;
+    private Scheduler io;
+    private AlmacenFotos fotos;
+    private byte[] contenido;
+    private final AtomicLong nuevas = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        directorio = Files.createTempDirectory("almacen-benchmark");
+        io = Schedulers.newBoundedElastic(2, 100, "io");
+        if (almacen.equals("segmentos")) {
+            AlmacenSegmentos segmentos = new AlmacenSegmentos();
+            ReflectionTestUtils.setField(segmentos, "io", io);
+            ReflectionTestUtils.setField(segmentos, "meterRegistry", new SimpleMeterRegistry());
+            ReflectionTestUtils.setField(segmentos, "path", directorio.toString());
+            ReflectionTestUtils.setField(segmentos, "tamanoMax", DataSize.ofMegabytes(256));
+            ReflectionTestUtils.setField(segmentos, "compactacion", Duration.ofHours(1));
+            ReflectionTestUtils.setField(segmentos, "umbral", 0.5);
+            segmentos.iniciar();
+            fotos = segmentos;
+        } else {
+            AlmacenArchivos archivos = new AlmacenArchivos();
+            ReflectionTestUtils.setField(archivos, "path", directorio.toString());
+            fotos = archivos;
+        }
+        contenido = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(contenido);
+        for (int i = 0; i < FOTOS; i++) fotos.guardar("thumb/foto-" + i + ".jpg", contenido);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fotos instanceof AlmacenSegmentos) ((AlmacenSegmentos) fotos).cerrar();
+        io.dispose();
+        FileSystemUtils.deleteRecursively(directorio);
+    }
+
+    @Benchmark
+    public void guardar() throws IOException {
+        fotos.guardar("thumb/nueva-" + nuevas.incrementAndGet() + ".jpg", contenido);
+    }
+
+    @Benchmark
+    public FotoAlmacenada abrir() throws IOException {
+        return fotos.leer("thumb/foto-" + ThreadLocalRandom.current().nextInt(FOTOS) + ".jpg");
+    }
+
+    @Benchmark
+    public long leer() throws IOException {
+        FotoAlmacenada foto = fotos.leer("thumb/foto-" + ThreadLocalRandom.current().nextInt(FOTOS) + ".jpg");
+        try (InputStream entrada = foto.getRecurso().getInputStream()) {
+            return entrada.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
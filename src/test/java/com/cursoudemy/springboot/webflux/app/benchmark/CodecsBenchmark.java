@@ -0,0 +1,83 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Coste de codificar/decodificar productos y categorias en JSON frente a CBOR y Smile
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecsBenchmark {
+    @Param({"json", "cbor", "smile"})
+    public String formato;
+
+    @Param({"100", "1000"})
+    public int productos;
+
+    private ObjectMapper mapper;
+    private JavaType tipo;
+    private List<Producto> lista;
+    private byte[] payload;
+    private Categoria categoria;
+    private byte[] categoriaPayload;
+
+    @Setup
+    public void setUp() throws IOException {
+        Jackson2ObjectMapperBuilder builder = switch (formato) {
+            case "cbor" -> Jackson2ObjectMapperBuilder.cbor();
+            case "smile" -> Jackson2ObjectMapperBuilder.smile();
+            default -> Jackson2ObjectMapperBuilder.json();
+        };
+        mapper = builder.featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build();
+        tipo = mapper.getTypeFactory().constructCollectionType(List.class, Producto.class);
+        lista = Catalogo.productos(productos, 42);
+        payload = mapper.writeValueAsBytes(lista);
+        categoria = lista.get(0).getCategoria();
+        categoriaPayload = mapper.writeValueAsBytes(categoria);
+        System.out.printf("%n%s, %d productos: %d bytes, %d bytes con gzip%n", formato, productos, payload.length,
+                gzip(payload).length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return mapper.writeValueAsBytes(lista);
+    }
+
+    @Benchmark
+    public List<Producto> decode() throws IOException {
+        return mapper.readValue(payload, tipo);
+    }
+
+    @Benchmark
+    public byte[] encodeCategoria() throws IOException {
+        return mapper.writeValueAsBytes(categoria);
+    }
+
+    @Benchmark
+    public Categoria decodeCategoria() throws IOException {
+        return mapper.readValue(categoriaPayload, Categoria.class);
+    }
+
+    static byte[] gzip(byte[] datos) throws IOException {
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(salida)) {
+            gzip.write(datos);
+        }
+        return salida.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenArchivos;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Cadena de nombrado de las subidas: digest SHA-256 mientras se escribe el temporal y deduplicacion por contenido
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FotosBenchmark {
+    private static final int PARTE = 8192;
+
+    @Param({"16384", "1048576"})
+    public int bytes;
+
+    private Path directorio;
+    private FotoService fotos;
+    private byte[] contenido;
+    private Scheduler io;
+
+    @Setup
+    public void setUp() throws IOException {
+        directorio = Files.createTempDirectory("fotos-benchmark");
+        AlmacenArchivos almacen = new AlmacenArchivos();
+        ReflectionTestUtils.setField(almacen, "path", directorio.toString());
+        fotos = new FotoService();
+        ReflectionTestUtils.setField(fotos, "almacen", almacen);
+        ReflectionTestUtils.setField(fotos, "mongoTemplate", new MongoEnMemoria().getMongoTemplate());
+        ReflectionTestUtils.setField(fotos, "path", directorio.toString());
+        io = Schedulers.newBoundedElastic(8, 10000, "io");
+        ReflectionTestUtils.setField(fotos, "io", io);
+        ReflectionTestUtils.setField(fotos, "meterRegistry", new SimpleMeterRegistry());
+        contenido = new byte[bytes];
+        ThreadLocalRandom.current().nextBytes(contenido);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        io.dispose();
+        FileSystemUtils.deleteRecursively(directorio);
+    }
+
+    @Benchmark
+    public String guardar() {
+        return fotos.guardar(new Archivo("Foto de Producto (1).JPG", contenido)).block();
+    }
+
+    private static class Archivo implements FilePart {
+        private final String filename;
+        private final byte[] contenido;
+
+        Archivo(String filename, byte[] contenido) {
+            this.filename = filename;
+            this.contenido = contenido;
+        }
+
+        @Override
+        public String filename() {
+            return filename;
+        }
+
+        @Override
+        public Mono<Void> transferTo(Path dest) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public String name() {
+            return "file";
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.EMPTY;
+        }
+
+        // Partes de 8 KB, como las entrega el lector multipart
+        @Override
+        public Flux<DataBuffer> content() {
+            return Flux.range(0, (contenido.length + PARTE - 1) / PARTE).map(i -> DefaultDataBufferFactory.sharedInstance
+                    .wrap(ByteBuffer.wrap(contenido, i * PARTE, Math.min(PARTE, contenido.length - i * PARTE))));
+        }
+    }
+}
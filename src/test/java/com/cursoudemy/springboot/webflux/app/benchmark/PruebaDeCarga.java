@@ -0,0 +1,296 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpResources;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Prueba de carga de la aplicacion completa sobre Netty y {@link MongoEnMemoria}. Cada ruta se carga por separado
+ * y se informa throughput, p50/p99/p999 y el mayor retraso observado en los bucles de eventos del servidor.
+ * <p>
+ * mvn -Pbenchmark test-compile exec:exec@carga -Dcarga.args="modo=abierto tasa=2000 duracion=30s rutas=index,show"
+ * <ul>
+ *     <li>modo=cerrado: {@code usuarios} clientes que envian la siguiente peticion al recibir la respuesta</li>
+ *     <li>modo=abierto: {@code tasa} peticiones por segundo a intervalos fijos, sin esperar respuestas; la latencia
+ *     se mide desde el instante en que debia salir la peticion para no ocultar las esperas (coordinated omission)</li>
+ * </ul>
+ * Con admision=true se aplica el control de admision (todas las peticiones llegan desde el mismo cliente).
+ */
+public class PruebaDeCarga {
+    private static final long LATIDO_MS = 10;
+
+    private final WebClient client;
+    private final List<String> ids;
+    private final byte[] foto;
+
+    private PruebaDeCarga(WebClient client, List<String> ids, byte[] foto) {
+        this.client = client;
+        this.ids = ids;
+        this.foto = foto;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opciones = opciones(args);
+        String modo = opciones.getOrDefault("modo", "cerrado");
+        int usuarios = Integer.parseInt(opciones.getOrDefault("usuarios", "32"));
+        int tasa = Integer.parseInt(opciones.getOrDefault("tasa", "500"));
+        int productos = Integer.parseInt(opciones.getOrDefault("productos", "20"));
+        Duration calentamiento = Duration.parse("PT" + opciones.getOrDefault("calentamiento", "5s"));
+        Duration duracion = Duration.parse("PT" + opciones.getOrDefault("duracion", "20s"));
+        List<String> rutas = List.of(opciones.getOrDefault("rutas", "index,show,upload,upload-v2,chunked").split(","));
+        // Las subidas por encima de los limites cuentan como errores (429)
+        boolean admision = Boolean.parseBoolean(opciones.getOrDefault("admision", "false"));
+        Path salida = Paths.get(opciones.getOrDefault("salida", "target/carga-result.json"));
+
+        Path uploads = Files.createTempDirectory("carga-uploads");
+        MongoEnMemoria mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(productos, 42));
+        ConfigurableApplicationContext context = AplicacionEnMemoria.iniciar(mongo, true,
+                "config.uploads.path=" + uploads + "/", "config.admision.enabled=" + admision);
+
+        // El cliente usa sus propios hilos para no competir con los bucles de eventos que se miden
+        LoopResources loops = LoopResources.create("carga-cliente", Math.max(2, Runtime.getRuntime().availableProcessors() / 2), true);
+        ConnectionProvider conexiones = ConnectionProvider.builder("carga").maxConnections(Math.max(usuarios, 512))
+                .pendingAcquireMaxCount(-1).build();
+        int puerto = ((WebServerApplicationContext) context).getWebServer().getPort();
+        WebClient client = WebClient.builder()
+                .baseUrl("http://localhost:" + puerto)
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(conexiones).runOn(loops)))
+                .build();
+
+        PruebaDeCarga prueba = new PruebaDeCarga(client, mongo.ids(), png());
+        List<Map<String, Object>> resultados = new ArrayList<>();
+        try {
+            System.out.printf("%nmodo=%s usuarios=%d tasa=%d/s duracion=%s productos=%d%n", modo, usuarios, tasa,
+                    duracion.toSeconds() + "s", productos);
+            System.out.printf("%-34s %10s %8s %10s %9s %9s %9s %9s %12s%n", "ruta", "peticiones", "errores",
+                    "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "bucle max ms");
+            for (String ruta : rutas) {
+                Supplier<Mono<Integer>> peticion = prueba.peticion(ruta.trim());
+                prueba.ejecutar(modo, peticion, usuarios, tasa, calentamiento, new Medicion());
+
+                Medicion medicion = new Medicion();
+                try (MonitorBucle monitor = new MonitorBucle(HttpResources.get().onServer(true))) {
+                    prueba.ejecutar(modo, peticion, usuarios, tasa, duracion, medicion);
+                    Map<String, Object> resultado = medicion.resumen(nombre(ruta.trim()), monitor.retrasos);
+                    resultados.add(resultado);
+                    System.out.printf("%-34s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %12.2f%n", resultado.get("ruta"),
+                            resultado.get("peticiones"), resultado.get("errores"), resultado.get("throughput"),
+                            resultado.get("p50"), resultado.get("p99"), resultado.get("p999"), resultado.get("max"),
+                            resultado.get("bucleMax"));
+                }
+            }
+
+            Files.createDirectories(salida.toAbsolutePath().getParent());
+            Map<String, Object> informe = new LinkedHashMap<>();
+            informe.put("modo", modo);
+            informe.put("usuarios", usuarios);
+            informe.put("tasa", tasa);
+            informe.put("duracionSegundos", duracion.toSeconds());
+            informe.put("productos", productos);
+            informe.put("rutas", resultados);
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(salida.toFile(), informe);
+            System.out.println("\nResultados en " + salida.toAbsolutePath());
+        } finally {
+            context.close();
+            conexiones.disposeLater().block();
+            loops.disposeLater().block();
+            FileSystemUtils.deleteRecursively(uploads);
+        }
+    }
+
+    private void ejecutar(String modo, Supplier<Mono<Integer>> peticion, int usuarios, int tasa, Duration duracion,
+                          Medicion medicion) {
+        long inicio = System.nanoTime();
+        long fin = inicio + duracion.toNanos();
+        Flux<Void> carga;
+        if ("abierto".equals(modo)) {
+            long intervalo = TimeUnit.SECONDS.toNanos(1) / tasa;
+            long total = duracion.toNanos() / intervalo;
+            carga = Flux.range(0, (int) total)
+                    .concatMap(i -> {
+                        long programado = inicio + i * intervalo;
+                        long espera = programado - System.nanoTime();
+                        Mono<Long> salida = Mono.just(programado);
+                        return espera > 0 ? salida.delayElement(Duration.ofNanos(espera)) : salida;
+                    })
+                    .flatMap(programado -> medir(peticion, programado, medicion), Integer.MAX_VALUE);
+        } else {
+            carga = Flux.range(0, usuarios)
+                    .flatMap(usuario -> Mono.defer(() -> medir(peticion, System.nanoTime(), medicion))
+                            .repeat(() -> System.nanoTime() < fin), usuarios);
+        }
+        carga.blockLast();
+        medicion.terminar(System.nanoTime() - inicio);
+    }
+
+    private static Mono<Void> medir(Supplier<Mono<Integer>> peticion, long inicio, Medicion medicion) {
+        return peticion.get()
+                .doOnNext(status -> medicion.registrar(System.nanoTime() - inicio, status < 400))
+                .onErrorResume(e -> {
+                    medicion.registrar(System.nanoTime() - inicio, false);
+                    return Mono.empty();
+                }).then();
+    }
+
+    private Supplier<Mono<Integer>> peticion(String ruta) {
+        return switch (ruta) {
+            case "index" -> () -> intercambiar(client.get().uri("/api/productos?limit=50"));
+            case "show" -> () -> intercambiar(client.get().uri("/api/v2/productos/{id}", id())
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE));
+            case "upload" -> () -> intercambiar(client.post().uri("/api/productos/upload/{id}", id())
+                    .body(BodyInserters.fromMultipartData(multipart())));
+            case "upload-v2" -> () -> intercambiar(client.post().uri("/api/v2/productos/upload/{id}", id())
+                    .body(BodyInserters.fromMultipartData(multipart())));
+            case "chunked" -> () -> intercambiar(client.get().uri("/productos/index-chunked"));
+            default -> throw new IllegalArgumentException("Ruta desconocida: " + ruta);
+        };
+    }
+
+    private static String nombre(String ruta) {
+        return switch (ruta) {
+            case "index" -> "GET /api/productos";
+            case "show" -> "GET /api/v2/productos/{id}";
+            case "upload" -> "POST /api/productos/upload/{id}";
+            case "upload-v2" -> "POST /api/v2/productos/upload/{id}";
+            case "chunked" -> "GET /productos/index-chunked";
+            default -> ruta;
+        };
+    }
+
+    // La latencia incluye leer el cuerpo completo
+    private static Mono<Integer> intercambiar(WebClient.RequestHeadersSpec<?> request) {
+        return request.exchangeToMono(response -> response.releaseBody().thenReturn(response.rawStatusCode()));
+    }
+
+    private String id() {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    private MultiValueMap<String, HttpEntity<?>> multipart() {
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("file", new ByteArrayResource(foto) {
+            @Override
+            public String getFilename() {
+                return "foto.png";
+            }
+        }).contentType(MediaType.IMAGE_PNG);
+        return builder.build();
+    }
+
+    private static byte[] png() throws IOException {
+        BufferedImage imagen = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < imagen.getHeight(); y++) {
+            for (int x = 0; x < imagen.getWidth(); x++) imagen.setRGB(x, y, (x * 31) ^ (y * 17));
+        }
+        ByteArrayOutputStream salida = new ByteArrayOutputStream();
+        ImageIO.write(imagen, "png", salida);
+        return salida.toByteArray();
+    }
+
+    private static Map<String, String> opciones(String[] args) {
+        Map<String, String> opciones = new LinkedHashMap<>();
+        for (String arg : args) {
+            for (String opcion : arg.trim().split("\\s+")) {
+                int igual = opcion.indexOf('=');
+                if (igual > 0) opciones.put(opcion.substring(0, igual), opcion.substring(igual + 1));
+            }
+        }
+        return opciones;
+    }
+
+    private static class Medicion {
+        private final Histogram latencias = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(10), 3);
+        private final AtomicLong errores = new AtomicLong();
+        private long duracion;
+
+        void registrar(long nanos, boolean ok) {
+            latencias.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), latencias.getHighestTrackableValue()));
+            if (!ok) errores.incrementAndGet();
+        }
+
+        void terminar(long nanos) {
+            duracion = nanos;
+        }
+
+        Map<String, Object> resumen(String ruta, Histogram retrasos) {
+            Map<String, Object> resumen = new LinkedHashMap<>();
+            resumen.put("ruta", ruta);
+            resumen.put("peticiones", latencias.getTotalCount());
+            resumen.put("errores", errores.get());
+            resumen.put("throughput", latencias.getTotalCount() * 1e9 / duracion);
+            resumen.put("p50", latencias.getValueAtPercentile(50) / 1000.0);
+            resumen.put("p99", latencias.getValueAtPercentile(99) / 1000.0);
+            resumen.put("p999", latencias.getValueAtPercentile(99.9) / 1000.0);
+            resumen.put("max", latencias.getMaxValue() / 1000.0);
+            resumen.put("bucleP99", retrasos.getValueAtPercentile(99) / 1000.0);
+            resumen.put("bucleMax", retrasos.getMaxValue() / 1000.0);
+            return resumen;
+        }
+    }
+
+    // Una tarea periodica en cada bucle del servidor: si llega tarde, algo bloqueo el hilo ese tiempo
+    private static class MonitorBucle implements AutoCloseable {
+        private final Histogram retrasos = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(10), 3);
+        private final List<ScheduledFuture<?>> tareas = new ArrayList<>();
+
+        MonitorBucle(EventLoopGroup grupo) {
+            for (EventExecutor bucle : grupo) {
+                AtomicLong esperado = new AtomicLong(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LATIDO_MS));
+                tareas.add(bucle.scheduleWithFixedDelay(() -> {
+                    long ahora = System.nanoTime();
+                    long retraso = Math.max(0, ahora - esperado.get());
+                    retrasos.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(retraso), retrasos.getHighestTrackableValue()));
+                    esperado.set(ahora + TimeUnit.MILLISECONDS.toNanos(LATIDO_MS));
+                }, LATIDO_MS, LATIDO_MS, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        @Override
+        public void close() {
+            tareas.forEach(tarea -> tarea.cancel(false));
+        }
+    }
+}
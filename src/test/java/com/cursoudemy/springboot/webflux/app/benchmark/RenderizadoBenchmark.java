@@ -0,0 +1,89 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Vistas data-driver con buffer/chunk fijos frente al modo adaptativo: tiempo por pagina y, al final, flushes por
+// pagina, bytes por flush, TTFB y CPU por pagina
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RenderizadoBenchmark {
+    // modo-buffer-chunk; con adaptativo el buffer y el chunk solo se usan hasta tener medidas
+    @Param({"fijo-2-1024", "fijo-64-8192", "fijo-512-65536", "adaptativo-2-1024"})
+    public String ajuste;
+
+    @Param({"index-full", "index-chunked"})
+    public String vista;
+
+    // Las vistas repiten el catalogo 5000 veces
+    @Param({"2"})
+    public int productos;
+
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+    private final AtomicLong paginas = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong ttfb = new AtomicLong();
+    private long cpuInicio;
+
+    @Setup
+    public void setUp() {
+        String[] partes = ajuste.split("-");
+        MongoEnMemoria mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(productos, 42));
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.vistas.modo=" + partes[0],
+                "config.vistas.buffer=" + partes[1], "config.vistas.chunk-size=" + partes[2]);
+        client = WebTestClient.bindToApplicationContext(context).configureClient()
+                .responseTimeout(Duration.ofMinutes(1)).build();
+        cpuInicio = cpu();
+    }
+
+    @TearDown
+    public void tearDown() {
+        long cpu = cpu() - cpuInicio;
+        long n = Math.max(1, paginas.get());
+        System.out.printf("%n%s %s: %.0f flushes/pagina, %.0f bytes/flush, ttfb %.2f ms, cpu %.1f ms/pagina%n",
+                vista, ajuste, (double) flushes.get() / n, (double) bytes.get() / Math.max(1, flushes.get()),
+                ttfb.get() / 1e6 / n, cpu / 1e6 / n);
+        context.close();
+    }
+
+    @Benchmark
+    public long pagina() {
+        long inicio = System.nanoTime();
+        AtomicLong primero = new AtomicLong();
+        long total = client.get().uri("/productos/" + vista).exchange().returnResult(DataBuffer.class).getResponseBody()
+                .map(buffer -> {
+                    primero.compareAndSet(0, System.nanoTime());
+                    flushes.incrementAndGet();
+                    int leidos = buffer.readableByteCount();
+                    DataBufferUtils.release(buffer);
+                    return (long) leidos;
+                })
+                .reduce(0L, Long::sum).block();
+        paginas.incrementAndGet();
+        bytes.addAndGet(total);
+        ttfb.addAndGet(primero.get() - inicio);
+        return total;
+    }
+
+    private static long cpu() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
@@ -0,0 +1,113 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Rutas de lectura y escritura de punta a punta (codecs, filtros, controlador y servicio) sin red ni Mongo
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RutasBenchmark {
+    @Param({"1000"})
+    public int productos;
+
+    private ConfigurableApplicationContext context;
+    private MongoEnMemoria mongo;
+    private WebTestClient client;
+    private List<String> ids;
+    private Categoria categoria;
+
+    @Setup
+    public void setUp() {
+        List<Categoria> categorias = Catalogo.categorias();
+        categoria = categorias.get(0);
+        mongo = new MongoEnMemoria();
+        mongo.cargar(categorias, Catalogo.productos(productos, 42));
+        ids = mongo.ids();
+        // Se mide el coste de cada ruta: sin el limite por cliente las escrituras acabarian en 429
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.admision.enabled=false");
+        client = WebTestClient.bindToApplicationContext(context).build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void descartarCreados() {
+        mongo.conservar(ids);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int restIndex() {
+        return leer(client.get().uri("/api/productos?limit=50"));
+    }
+
+    @Benchmark
+    public int restShow() {
+        return leer(client.get().uri("/api/productos/{id}", id()));
+    }
+
+    @Benchmark
+    public int restSave() {
+        return leer(client.post().uri("/api/productos").contentType(MediaType.APPLICATION_JSON).bodyValue(nuevo()));
+    }
+
+    @Benchmark
+    public int handlerIndex() {
+        return leer(client.get().uri("/api/v2/productos?limit=50"));
+    }
+
+    @Benchmark
+    public int handlerShow() {
+        return leer(client.get().uri("/api/v2/productos/{id}", id()).header("Content-Type", MediaType.APPLICATION_JSON_VALUE));
+    }
+
+    // 20 productos en una peticion, frente a 20 handlerShow
+    @Benchmark
+    public int handlerLote() {
+        return leer(client.get().uri("/api/v2/productos?ids={ids}", String.join(",", List.of(id(), id(), id(), id(), id(),
+                id(), id(), id(), id(), id(), id(), id(), id(), id(), id(), id(), id(), id(), id(), id()))));
+    }
+
+    @Benchmark
+    public int handlerSave() {
+        return leer(client.post().uri("/api/v2/productos").contentType(MediaType.APPLICATION_JSON).bodyValue(nuevo()));
+    }
+
+    private String id() {
+        return ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+    }
+
+    private Producto nuevo() {
+        return new Producto("Notebook Lenovo ThinkPad", 1299.99, categoria);
+    }
+
+    // Consume el cuerpo sin acumularlo, como lo haria un cliente real
+    public static int leer(WebTestClient.RequestHeadersSpec<?> request) {
+        return request.exchange().expectStatus().is2xxSuccessful()
+                .returnResult(DataBuffer.class).getResponseBody()
+                .map(buffer -> {
+                    int bytes = buffer.readableByteCount();
+                    DataBufferUtils.release(buffer);
+                    return bytes;
+                }).reduce(0, Integer::sum).block();
+    }
+}
@@ -0,0 +1,43 @@
+package com.cursoudemy.springboot.webflux.app.benchmark;
+
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.util.concurrent.TimeUnit;
+
+// Render Thymeleaf del listado de productos segun el tamano del catalogo
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VistasBenchmark {
+    @Param({"10", "100", "1000"})
+    public int productos;
+
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+
+    @Setup
+    public void setUp() {
+        MongoEnMemoria mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(productos, 42));
+        context = AplicacionEnMemoria.iniciar(mongo);
+        client = WebTestClient.bindToApplicationContext(context).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int index() {
+        return RutasBenchmark.leer(client.get().uri("/productos"));
+    }
+}
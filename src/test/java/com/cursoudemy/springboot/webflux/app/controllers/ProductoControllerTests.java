@@ -0,0 +1,154 @@
+package com.cursoudemy.springboot.webflux.app.controllers;
+
+import com.cursoudemy.springboot.webflux.app.benchmark.RutasBenchmark;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenFotos;
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+class ProductoControllerTests {
+    private MongoEnMemoria mongo;
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+    private final AtomicInteger consultas = new AtomicInteger();
+    private Path uploads;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        uploads = Files.createTempDirectory("controller-uploads");
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(5, 42));
+        Flux<Producto> todos = mongo.getProductoDao().findAll();
+        when(mongo.getProductoDao().findAll()).thenReturn(todos.doOnSubscribe(s -> consultas.incrementAndGet()));
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.vistas.index-full.modo=fijo",
+                "config.uploads.path=" + uploads + "/");
+        client = WebTestClient.bindToApplicationContext(context).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+        FileSystemUtils.deleteRecursively(uploads.toFile());
+    }
+
+    @Test
+    void indexConsultaUnaVezYReutilizaLasFilasMientrasNoCambieLaVersion() {
+        String id = mongo.ids().get(0);
+        Producto producto = mongo.getProductoDao().findById(id).block();
+
+        String html = client.get().uri("/productos").exchange().expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(html).contains(producto.getNombre().toUpperCase(), "/productos/show/" + id);
+        assertThat(consultas).hasValue(1);
+        assertThat(gets("hit")).isZero();
+        assertThat(gets("miss")).isEqualTo(5);
+
+        client.get().uri("/productos").exchange().expectStatus().isOk();
+        assertThat(gets("hit")).isEqualTo(5);
+
+        producto.setNombre("Renombrado");
+        mongo.getProductoDao().save(producto).block();
+        html = client.get().uri("/productos").exchange().expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(html).contains("RENOMBRADO");
+        assertThat(gets("miss")).isEqualTo(6);
+    }
+
+    @Test
+    void lasVistasDataDriverAjustanBufferYChunkSalvoLasFijadasPorVista() {
+        RenderizadoAdaptativo renderizado = context.getBean(RenderizadoAdaptativo.class);
+        // El cuerpo (miles de filas) se lee completo: las medidas se toman al terminar la vista
+        assertThat(RutasBenchmark.leer(client.get().uri("/productos/index-chunked"))).isPositive();
+        assertThat(RutasBenchmark.leer(client.get().uri("/productos/index-full"))).isPositive();
+
+        RenderizadoAdaptativo.Ajuste chunked = renderizado.ajuste("index-chunked");
+        assertThat(chunked.getBuffer()).isGreaterThan(2);
+        assertThat(chunked.getChunkSize()).isBetween(1024, 65536);
+        assertThat(renderizado.ajuste("index-full").getBuffer()).isEqualTo(2);
+        assertThat(renderizado.ajuste("index-full").getChunkSize()).isEqualTo(1024);
+    }
+
+    @Test
+    void elFormularioSeVinculaYValidaSinAgregarElCuerpo() {
+        String categoria = mongo.getCategoriaDao().findAll().blockFirst().getId();
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("nombre", "");
+        builder.part("precio", "10");
+        builder.part("categoria.id", categoria);
+        String html = client.post().uri("/productos").bodyValue(builder.build())
+                .exchange().expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+        assertThat(html).contains("Errores en formulario producto");
+
+        builder = new MultipartBodyBuilder();
+        builder.part("nombre", "Nuevo");
+        builder.part("precio", "10");
+        builder.part("createdAt", "2024-05-01");
+        builder.part("categoria.id", categoria);
+        client.post().uri("/productos").bodyValue(builder.build())
+                .exchange().expectStatus().is3xxRedirection()
+                .expectHeader().valueEquals("Location", "/productos?status=Producto+creado+con+exito");
+        assertThat(mongo.getProductoDao().findAll().filter(p -> p.getNombre().equals("Nuevo")).blockFirst().getCreatedAt())
+                .hasYear(2024);
+    }
+
+    @Test
+    void elFormularioNoVinculaIdVersionNiFoto() {
+        Producto existente = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("id", existente.getId());
+        builder.part("version", String.valueOf(existente.getVersion()));
+        builder.part("foto", mongo.getProductoDao().findById(mongo.ids().get(1)).block().getFoto());
+        builder.part("nombre", "Nuevo");
+        builder.part("precio", "10");
+        builder.part("categoria.id", mongo.getCategoriaDao().findAll().blockFirst().getId());
+
+        // Sin producto en la sesion es un alta: el id del formulario no apunta a otro producto
+        client.post().uri("/productos").bodyValue(builder.build())
+                .exchange().expectStatus().is3xxRedirection()
+                .expectHeader().valueEquals("Location", "/productos?status=Producto+creado+con+exito");
+        assertThat(mongo.getProductoDao().findById(existente.getId()).block())
+                .usingRecursiveComparison().isEqualTo(existente);
+        Producto nuevo = mongo.getProductoDao().findAll().filter(p -> p.getNombre().equals("Nuevo")).blockFirst();
+        assertThat(nuevo.getId()).isNotEqualTo(existente.getId());
+        assertThat(nuevo.getFoto()).isNull();
+    }
+
+    @Test
+    void elEtagDeUnaFotoEsSuDigestYElDeUnDerivadoLlevaElTamano() throws IOException {
+        String digest = "ab".repeat(32);
+        AlmacenFotos almacen = context.getBean(AlmacenFotos.class);
+        almacen.guardar(digest + ".png", new byte[]{1, 2, 3});
+
+        client.get().uri("/productos/uploads/img/{foto}?size=thumb", digest + ".png").exchange()
+                .expectStatus().isOk().expectHeader().valueEquals("ETag", "\"" + digest + "\"");
+        almacen.guardar("thumb/" + digest + ".png", new byte[]{4});
+        client.get().uri("/productos/uploads/img/{foto}?size=thumb", digest + ".png").exchange()
+                .expectStatus().isOk().expectHeader().valueEquals("ETag", "\"thumb-" + digest + "\"");
+        client.get().uri("/productos/uploads/img/{foto}", digest + ".png").header("If-None-Match", "\"" + digest + "\"")
+                .exchange().expectStatus().isNotModified();
+    }
+
+    private double gets(String resultado) {
+        return context.getBean(MeterRegistry.class).get("cache.gets").tag("cache", "filas").tag("result", resultado)
+                .functionCounter().count();
+    }
+}
@@ -0,0 +1,460 @@
+package com.cursoudemy.springboot.webflux.app.handler;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.documents.PropagacionCategoria;
+import com.cursoudemy.springboot.webflux.app.models.services.Pagina;
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProductHandlerTests {
+    private Path uploads;
+    private MongoEnMemoria mongo;
+    private ConfigurableApplicationContext context;
+    private WebTestClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        uploads = Files.createTempDirectory("handler-uploads");
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(10, 42));
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.productos.lote.max-ids=5",
+                "config.uploads.path=" + uploads + "/", "config.uploads.multipart.max-file-size=1KB",
+                "config.categorias.propagacion.lote=2", "config.productos.export.batch-size=3",
+                "config.productos.import.batch-size=2", "config.categorias.propagacion.repaso=200ms");
+        client = WebTestClient.bindToApplicationContext(context).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+        FileSystemUtils.deleteRecursively(uploads.toFile());
+    }
+
+    @Test
+    void loteDevuelveLosProductosEnElOrdenPedidoYLosFaltantes() {
+        List<String> ids = mongo.ids();
+        String inexistente = new ObjectId().toHexString();
+        // Uno ya en la cache por un show previo, el resto sale del $in
+        client.get().uri("/api/v2/productos/{id}", ids.get(3)).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .exchange().expectStatus().isOk();
+
+        client.get().uri("/api/v2/productos?ids={a},{b},{c}&ids={d}&fields=nombre", ids.get(3), inexistente, ids.get(0), ids.get(3))
+                .exchange().expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.contenido.length()").isEqualTo(2)
+                .jsonPath("$.contenido[0].id").isEqualTo(ids.get(3))
+                .jsonPath("$.contenido[1].id").isEqualTo(ids.get(0))
+                // la proyeccion del cacheado se aplica en memoria; la del $in la hace Mongo
+                .jsonPath("$.contenido[0].nombre").isNotEmpty()
+                .jsonPath("$.contenido[0].precio").doesNotExist()
+                .jsonPath("$.faltantes.length()").isEqualTo(1)
+                .jsonPath("$.faltantes[0]").isEqualTo(inexistente);
+
+        client.post().uri("/api/v2/productos/lote").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(List.of(ids.get(2), ids.get(1)))
+                .exchange().expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.contenido[0].id").isEqualTo(ids.get(2))
+                .jsonPath("$.contenido[1].id").isEqualTo(ids.get(1))
+                .jsonPath("$.faltantes").isEmpty();
+
+        // Ninguno se busco por separado
+        assertThat(context.getBean(MeterRegistry.class).get("consultas.compartidas")
+                .tag("resultado", "origen").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void loteRechazaListasVaciasOMayoresQueElMaximo() {
+        client.post().uri("/api/v2/productos/lote").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(mongo.ids().subList(0, 6))
+                .exchange().expectStatus().isBadRequest();
+        client.post().uri("/api/v2/productos/lote").contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Collections.emptyList())
+                .exchange().expectStatus().isBadRequest();
+        client.post().uri("/api/v2/productos/lote").contentType(MediaType.APPLICATION_JSON).exchange()
+                .expectStatus().isBadRequest();
+        client.get().uri("/api/v2/productos?ids=").exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    void lasSubidasSeLeenEnStreamingYCortanLaFotoQuePasaDelLimite() throws IOException {
+        Producto existente = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("nombre", "Con foto");
+        builder.part("precio", "12.5");
+        builder.part("categoria.id", existente.getCategoria().getId());
+        builder.part("file", foto(512)).contentType(MediaType.IMAGE_PNG);
+
+        client.post().uri("/api/v2/productos/save-with-image").bodyValue(builder.build())
+                .exchange().expectStatus().isCreated()
+                .expectBody()
+                .jsonPath("$.nombre").isEqualTo("Con foto")
+                .jsonPath("$.precio").isEqualTo(12.5)
+                .jsonPath("$.foto").value(foto -> assertThat(uploads.resolve(foto.toString())).exists());
+
+        // El limite se aplica mientras se lee: no queda ni la foto ni el temporal
+        builder = new MultipartBodyBuilder();
+        builder.part("file", foto(4096)).contentType(MediaType.IMAGE_PNG);
+        client.post().uri("/api/v2/productos/upload/{id}", existente.getId()).bodyValue(builder.build())
+                .exchange().expectStatus().isEqualTo(HttpStatus.PAYLOAD_TOO_LARGE);
+        try (Stream<Path> archivos = Files.list(uploads)) {
+            assertThat(archivos.filter(Files::isRegularFile)).hasSize(1);
+        }
+        assertThat(mongo.getProductoDao().findById(existente.getId()).block().getFoto()).isEqualTo(existente.getFoto());
+
+        // Sin archivo no hay nada que subir
+        builder = new MultipartBodyBuilder();
+        builder.part("nombre", "Sin foto");
+        client.post().uri("/api/v2/productos/upload/{id}", existente.getId()).bodyValue(builder.build())
+                .exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    void dosCambiosConLaMismaVersionSoloAplicanElPrimero() {
+        for (String ruta : List.of("/api/productos/{id}", "/api/v2/productos/{id}")) {
+            Producto producto = mongo.getProductoDao().findById(mongo.ids().get(1)).block();
+            long version = producto.getVersion();
+
+            // Los dos leyeron la misma version: el segundo llega cuando el primero ya la incremento
+            client.patch().uri(ruta, producto.getId()).contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("precio", 10.0, "version", version))
+                    .exchange().expectStatus().isOk()
+                    .expectBody().jsonPath("$.version").isEqualTo(version + 1);
+            client.patch().uri(ruta, producto.getId()).contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("precio", 20.0, "version", version))
+                    .exchange().expectStatus().isEqualTo(HttpStatus.CONFLICT);
+            client.put().uri(ruta, producto.getId()).contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("nombre", "Otro", "version", version))
+                    .exchange().expectStatus().isEqualTo(HttpStatus.CONFLICT);
+
+            Producto guardado = mongo.getProductoDao().findById(producto.getId()).block();
+            assertThat(guardado.getPrecio()).isEqualTo(10.0);
+            assertThat(guardado.getNombre()).isEqualTo(producto.getNombre());
+        }
+    }
+
+    @Test
+    void elCambioDeUnaCategoriaSeCopiaEnSusProductosPorLotes() throws InterruptedException {
+        List<Producto> todos = mongo.getProductoDao().findAll().collectList().block();
+        // La categoria con mas productos, para que haga falta mas de un lote
+        Categoria categoria = todos.stream()
+                .collect(Collectors.groupingBy(p -> p.getCategoria().getId(), Collectors.counting()))
+                .entrySet().stream().max(Map.Entry.comparingByValue())
+                .flatMap(mayor -> todos.stream().map(Producto::getCategoria)
+                        .filter(c -> c.getId().equals(mayor.getKey())).findFirst())
+                .orElseThrow();
+        mongo.cargar(List.of(categoria), List.of());
+        Map<String, Producto> antes = todos.stream().collect(Collectors.toMap(Producto::getId, Function.identity()));
+        List<String> afectados = todos.stream().filter(p -> p.getCategoria().getId().equals(categoria.getId()))
+                .map(Producto::getId).collect(Collectors.toList());
+        assertThat(afectados).hasSizeGreaterThan(2);
+        // Uno ya en la cache antes del cambio
+        client.get().uri("/api/v2/productos/{id}", afectados.get(0)).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .exchange().expectStatus().isOk();
+
+        String progreso = "/api/productos/categorias/" + categoria.getId() + "/propagacion";
+        client.put().uri("/api/productos/categorias/{id}", categoria.getId()).contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("nombre", "Renombrada"))
+                .exchange().expectStatus().isAccepted()
+                .expectHeader().location(progreso);
+
+        PropagacionCategoria propagacion = null;
+        for (int i = 0; i < 250; i++) {
+            propagacion = client.get().uri(progreso).exchange().expectStatus().isOk()
+                    .expectBody(PropagacionCategoria.class).returnResult().getResponseBody();
+            if (PropagacionCategoria.TERMINADA.equals(propagacion.getEstado())) break;
+            Thread.sleep(20);
+        }
+        assertThat(propagacion.getEstado()).isEqualTo(PropagacionCategoria.TERMINADA);
+        assertThat(propagacion.getActualizados()).isEqualTo(afectados.size());
+        assertThat(propagacion.getUltimoId()).isEqualTo(afectados.get(afectados.size() - 1));
+
+        for (Producto producto : todos) {
+            Producto leido = client.get().uri("/api/v2/productos/{id}", producto.getId())
+                    .header("Content-Type", MediaType.APPLICATION_JSON_VALUE).exchange().expectStatus().isOk()
+                    .expectBody(Producto.class).returnResult().getResponseBody();
+            boolean afectado = afectados.contains(producto.getId());
+            assertThat(leido.getCategoria().getNombre().equals("Renombrada")).isEqualTo(afectado);
+            assertThat(leido.getVersion()).isEqualTo(antes.get(producto.getId()).getVersion() + (afectado ? 1 : 0));
+        }
+
+        // Lo que mande el cliente no sustituye a la categoria guardada
+        String otro = todos.stream().map(Producto::getId).filter(id -> !afectados.contains(id)).findFirst().orElseThrow();
+        client.patch().uri("/api/v2/productos/{id}", otro).contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("categoria", Map.of("id", categoria.getId(), "nombre", "Inventada")))
+                .exchange().expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.categoria.nombre").isEqualTo("Renombrada");
+    }
+
+    @Test
+    void elRepasoCorrigeLasCopiasViejasGuardadasDespuesDeLaPropagacion() throws InterruptedException {
+        Producto rezagado = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        Categoria vieja = rezagado.getCategoria();
+        mongo.cargar(List.of(vieja), List.of());
+        client.put().uri("/api/productos/categorias/{id}", vieja.getId()).contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("nombre", "Renombrada"))
+                .exchange().expectStatus().isAccepted();
+        for (int i = 0; i < 250 && !PropagacionCategoria.TERMINADA.equals(client.get()
+                .uri("/api/productos/categorias/{id}/propagacion", vieja.getId()).exchange().expectStatus().isOk()
+                .expectBody(PropagacionCategoria.class).returnResult().getResponseBody().getEstado()); i++) {
+            Thread.sleep(20);
+        }
+
+        // Un nodo cuya cache aun no veia el cambio lo guarda con la copia vieja, detras del recorrido
+        rezagado = mongo.getProductoDao().findById(rezagado.getId()).block();
+        rezagado.setCategoria(vieja);
+        mongo.getProductoDao().save(rezagado).block();
+
+        String nombre = null;
+        for (int i = 0; i < 250 && !"Renombrada".equals(nombre); i++) {
+            Thread.sleep(20);
+            nombre = mongo.getProductoDao().findById(rezagado.getId()).block().getCategoria().getNombre();
+        }
+        assertThat(nombre).isEqualTo("Renombrada");
+    }
+
+    @Test
+    void elCursorRecorreTodasLasPaginasEnOrdenDeId() {
+        for (String ruta : List.of("/api/v2/productos", "/api/productos")) {
+            List<String> leidos = new ArrayList<>();
+            String cursor = null;
+            int paginas = 0;
+            do {
+                EntityExchangeResult<List<Producto>> pagina = client.get()
+                        .uri(ruta + "?limit=4" + (cursor == null ? "" : "&after=" + cursor))
+                        .exchange().expectStatus().isOk()
+                        .expectBodyList(Producto.class).returnResult();
+                List<Producto> contenido = pagina.getResponseBody();
+                contenido.forEach(p -> leidos.add(p.getId()));
+                cursor = pagina.getResponseHeaders().getFirst(Pagina.HEADER_SIGUIENTE);
+                // El cursor es el ultimo id entregado; la ultima pagina no lo trae
+                if (cursor != null) assertThat(cursor).isEqualTo(contenido.get(contenido.size() - 1).getId());
+                paginas++;
+            } while (cursor != null);
+
+            assertThat(paginas).isEqualTo(3);
+            assertThat(leidos).isEqualTo(mongo.ids());
+        }
+    }
+
+    @Test
+    void unCursorQueNoEsUnIdSeRechaza() {
+        for (String ruta : List.of("/api/v2/productos?after=x", "/api/productos?after=x"))
+            client.get().uri(ruta).exchange().expectStatus().isBadRequest();
+        client.get().uri("/api/v2/productos?limit=abc").exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    void laExportacionEsUnProductoPorLineaYSeReanudaDesdeElUltimoId() throws IOException {
+        List<String> ids = mongo.ids();
+        assertThat(exportar("")).isEqualTo(ids);
+        // Un cliente que se corto despues del septimo sigue desde ahi
+        assertThat(exportar("?after=" + ids.get(6))).isEqualTo(ids.subList(7, ids.size()));
+        assertThat(exportar("?after=" + ids.get(ids.size() - 1))).isEmpty();
+
+        client.get().uri("/api/v2/productos/export?after=x").exchange().expectStatus().isBadRequest();
+    }
+
+    private List<String> exportar(String parametros) throws IOException {
+        String cuerpo = client.get().uri("/api/v2/productos/export" + parametros)
+                .exchange().expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_NDJSON)
+                .expectBody(String.class).returnResult().getResponseBody();
+        List<String> ids = new ArrayList<>();
+        if (cuerpo == null) return ids;
+        ObjectMapper mapper = new ObjectMapper();
+        for (String linea : cuerpo.split("\n")) ids.add(mapper.readTree(linea).get("id").asText());
+        return ids;
+    }
+
+    @Test
+    void laImportacionGuardaLosValidosYInformaCadaRegistroRechazado() {
+        List<String> ids = mongo.ids();
+        Producto existente = mongo.getProductoDao().findById(ids.get(0)).block();
+        String categoriaId = existente.getCategoria().getId();
+        mongo.cargar(List.of(existente.getCategoria()), List.of());
+        String inexistente = new ObjectId().toHexString();
+        String nuevo = new ObjectId().toHexString();
+
+        String ndjson = String.join("\n",
+                "{\"id\":\"" + nuevo + "\",\"nombre\":\"Importado\",\"precio\":10.5,\"version\":7,"
+                        + "\"foto\":\"ajena.jpg\",\"derivados\":{\"800\":\"ajena.webp\"},\"categoria\":{\"id\":\"" + categoriaId + "\"}}",
+                "{\"precio\":3.0,\"categoria\":{\"id\":\"" + categoriaId + "\"}}",
+                "{\"nombre\":\"Sin categoria\",\"precio\":1.0,\"categoria\":{\"id\":\"" + inexistente + "\"}}",
+                "{\"id\":\"" + existente.getId() + "\",\"nombre\":\"Reemplazado\",\"precio\":99.0,"
+                        + "\"categoria\":{\"id\":\"" + categoriaId + "\"}}",
+                "{\"id\":\"abc\",\"nombre\":\"Id propio\",\"precio\":2.0,\"categoria\":{\"id\":\"" + categoriaId + "\"}}");
+
+        client.post().uri("/api/v2/productos/import").contentType(MediaType.APPLICATION_NDJSON).bodyValue(ndjson)
+                .exchange().expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.recibidos").isEqualTo(5)
+                .jsonPath("$.guardados").isEqualTo(1)
+                .jsonPath("$.totalErrores").isEqualTo(4)
+                .jsonPath("$.errores[?(@.registro == 1)].mensaje").value(mensajes ->
+                        assertThat(mensajes.toString()).contains("nombre"))
+                .jsonPath("$.errores[?(@.registro == 2)].mensaje").value(mensajes ->
+                        assertThat(mensajes.toString()).contains(inexistente))
+                .jsonPath("$.errores[?(@.registro == 3)].mensaje").value(mensajes ->
+                        assertThat(mensajes.toString()).contains("Ya existe el producto " + existente.getId()))
+                // Un id que no es ObjectId romperia la paginacion por cursor
+                .jsonPath("$.errores[?(@.registro == 4)].mensaje").value(mensajes ->
+                        assertThat(mensajes.toString()).contains("El id abc no es un ObjectId"));
+
+        assertThat(mongo.ids()).hasSize(ids.size() + 1);
+        // El existente no se pisa
+        assertThat(mongo.getProductoDao().findById(existente.getId()).block())
+                .usingRecursiveComparison().isEqualTo(existente);
+        // El importado empieza en la version 0, sin la foto del registro y con la categoria guardada
+        client.get().uri("/api/v2/productos/{id}", nuevo).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .exchange().expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.nombre").isEqualTo("Importado")
+                .jsonPath("$.version").isEqualTo(0)
+                .jsonPath("$.foto").doesNotExist()
+                .jsonPath("$.derivados").doesNotExist()
+                .jsonPath("$.categoria.nombre").isEqualTo(existente.getCategoria().getNombre());
+    }
+
+    @Test
+    void unPeriodoDeEstadisticasDesconocidoSeRechaza() {
+        client.get().uri("/api/v2/productos/estadisticas?periodo=semana").exchange().expectStatus().isBadRequest();
+    }
+
+    @Test
+    void fieldsEnElDetalleDejaSoloLosCamposPedidosYRechazaLosDesconocidos() {
+        String id = mongo.ids().get(0);
+        for (String ruta : List.of("/api/v2/productos", "/api/productos")) {
+            // El segundo show sale de la cache y se proyecta igual
+            for (int i = 0; i < 2; i++) {
+                client.get().uri(ruta + "/{id}?fields=nombre", id).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                        .exchange().expectStatus().isOk()
+                        .expectBody()
+                        .jsonPath("$.id").isEqualTo(id)
+                        .jsonPath("$.nombre").isNotEmpty()
+                        .jsonPath("$.precio").doesNotExist()
+                        .jsonPath("$.version").doesNotExist();
+            }
+        }
+
+        for (String ruta : List.of("/api/v2/productos?fields=nombre,clave", "/api/productos?fields=clave",
+                "/api/v2/productos/" + id + "?fields=clave", "/api/productos/" + id + "?fields=clave",
+                "/api/v2/productos/export?fields=clave", "/api/v2/productos/search?q=a&fields=clave",
+                "/api/v2/productos?ids=" + id + "&fields=clave")) {
+            client.get().uri(ruta).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                    .exchange().expectStatus().isBadRequest();
+        }
+    }
+
+    @Test
+    void laSubidaConFotoNoVinculaIdVersionNiFotoDelFormulario() {
+        Producto existente = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("id", existente.getId());
+        builder.part("version", "7");
+        builder.part("foto", "ajena.jpg");
+        builder.part("derivados[thumb]", "ajena.webp");
+        builder.part("nombre", "Nuevo");
+        builder.part("precio", "12.5");
+        builder.part("categoria.id", existente.getCategoria().getId());
+        builder.part("file", foto(512)).contentType(MediaType.IMAGE_PNG);
+
+        Producto creado = client.post().uri("/api/productos/v2").bodyValue(builder.build())
+                .exchange().expectStatus().isCreated()
+                .expectBody(Producto.class).returnResult().getResponseBody();
+        assertThat(creado.getId()).isNotEqualTo(existente.getId());
+        assertThat(creado.getVersion()).isZero();
+        assertThat(creado.getFoto()).isNotEqualTo("ajena.jpg").endsWith(".png");
+        assertThat(creado.getDerivados()).isNull();
+        assertThat(mongo.getProductoDao().findById(existente.getId()).block())
+                .usingRecursiveComparison().isEqualTo(existente);
+    }
+
+    @Test
+    void elAltaJsonNoGuardaLaFotoDelClienteYSuBorradoNoLiberaLaAjena() {
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.part("file", foto(512)).contentType(MediaType.IMAGE_PNG);
+        client.post().uri("/api/v2/productos/upload/{id}", mongo.ids().get(0)).bodyValue(builder.build())
+                .exchange().expectStatus().isCreated();
+        Producto original = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        String categoriaId = original.getCategoria().getId();
+
+        for (String ruta : List.of("/api/v2/productos", "/api/productos")) {
+            Map<String, Object> cuerpo = Map.of("id", original.getId(), "version", original.getVersion(),
+                    "nombre", "Copia", "precio", 1.0, "foto", original.getFoto(),
+                    "derivados", Map.of("thumb", "thumb/" + original.getFoto()), "categoria", Map.of("id", categoriaId));
+            String id = client.post().uri(ruta).contentType(MediaType.APPLICATION_JSON).bodyValue(cuerpo)
+                    .exchange().expectStatus().isCreated()
+                    .returnResult(Void.class).getResponseHeaders().getLocation().getPath().replaceAll(".*/", "");
+            Producto creado = mongo.getProductoDao().findById(id).block();
+            assertThat(creado.getId()).isNotEqualTo(original.getId());
+            assertThat(creado.getVersion()).isZero();
+            assertThat(creado.getFoto()).isNull();
+            assertThat(creado.getDerivados()).isNull();
+
+            client.delete().uri("/api/v2/productos/{id}", id).header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                    .exchange().expectStatus().isNoContent();
+        }
+        assertThat(mongo.foto(original.getFoto()).getReferencias()).isEqualTo(1);
+        assertThat(uploads.resolve(original.getFoto())).exists();
+        assertThat(mongo.getProductoDao().findById(original.getId()).block())
+                .usingRecursiveComparison().isEqualTo(original);
+    }
+
+    @Test
+    void unaCategoriaSinIdODesconocidaSeRechaza() {
+        Producto existente = mongo.getProductoDao().findById(mongo.ids().get(0)).block();
+        for (Map<String, Object> categoria : List.<Map<String, Object>>of(Map.of("nombre", "Sin id"), Map.of("id", "c9", "nombre", "Inventada"))) {
+            Map<String, Object> cuerpo = Map.of("nombre", "Nuevo", "precio", 1.0, "categoria", categoria);
+            client.post().uri("/api/v2/productos").contentType(MediaType.APPLICATION_JSON).bodyValue(cuerpo)
+                    .exchange().expectStatus().isBadRequest();
+            client.post().uri("/api/productos").contentType(MediaType.APPLICATION_JSON).bodyValue(cuerpo)
+                    .exchange().expectStatus().isBadRequest();
+            client.patch().uri("/api/v2/productos/{id}", existente.getId()).contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("categoria", categoria)).exchange().expectStatus().isBadRequest();
+            client.put().uri("/api/productos/{id}", existente.getId()).contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("categoria", categoria)).exchange().expectStatus().isBadRequest();
+        }
+        assertThat(mongo.getProductoDao().findById(existente.getId()).block())
+                .usingRecursiveComparison().isEqualTo(existente);
+    }
+
+    private static ByteArrayResource foto(int bytes) {
+        return new ByteArrayResource(new byte[bytes]) {
+            @Override
+            public String getFilename() {
+                return "foto.png";
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AlmacenSegmentosTests {
+    private Path directorio;
+    private Scheduler io;
+    private AlmacenSegmentos almacen;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directorio = Files.createTempDirectory("almacen-segmentos");
+        io = Schedulers.newBoundedElastic(2, 100, "io");
+        almacen = abrir();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        almacen.cerrar();
+        io.dispose();
+        FileSystemUtils.deleteRecursively(directorio);
+    }
+
+    @Test
+    void guardaLeeYBorraSobreviviendoAlReinicio() throws IOException {
+        Path temporal = Files.writeString(directorio.resolve("upload.tmp"), "original");
+        almacen.guardar("a.jpg", temporal);
+        almacen.guardar("thumb/a.jpg", bytes("miniatura"));
+        almacen.guardar("b.jpg", bytes("otra"));
+        almacen.borrar("b.jpg");
+
+        assertThat(temporal).doesNotExist();
+        assertThat(leer("a.jpg")).isEqualTo("original");
+        assertThat(leer("thumb/a.jpg")).isEqualTo("miniatura");
+        assertThat(almacen.leer("b.jpg")).isNull();
+        assertThat(almacen.leer("a.jpg").getRecurso().getFilename()).isEqualTo("a.jpg");
+
+        // Un registro a medias al final del ultimo segmento (caida durante una escritura) se recorta al arrancar
+        Path segmento;
+        try (Stream<Path> segmentos = Files.list(directorio.resolve("segmentos"))) {
+            segmento = segmentos.max(Comparator.naturalOrder()).orElseThrow();
+        }
+        long tamano = Files.size(segmento);
+        almacen.cerrar();
+        try (FileChannel canal = FileChannel.open(segmento, StandardOpenOption.APPEND)) {
+            canal.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10}));
+        }
+
+        almacen = abrir();
+        assertThat(Files.size(segmento)).isEqualTo(tamano);
+        assertThat(leer("a.jpg")).isEqualTo("original");
+        assertThat(leer("thumb/a.jpg")).isEqualTo("miniatura");
+        assertThat(almacen.existe("b.jpg")).isFalse();
+
+        almacen.guardar("c.jpg", bytes("despues"));
+        assertThat(leer("c.jpg")).isEqualTo("despues");
+    }
+
+    @Test
+    void laCompactacionConservaLoVigenteYNoResucitaLoBorrado() throws IOException {
+        // Segmentos de 100 bytes: cada foto acaba en uno distinto
+        for (int i = 0; i < 6; i++) almacen.guardar("foto-" + i, bytes("contenido de la foto " + i));
+        for (int i = 0; i < 4; i++) almacen.borrar("foto-" + i);
+        int segmentos = contarSegmentos();
+
+        assertThat(almacen.compactar()).isPositive();
+        assertThat(contarSegmentos()).isLessThan(segmentos);
+        for (int i = 4; i < 6; i++) assertThat(leer("foto-" + i)).isEqualTo("contenido de la foto " + i);
+
+        almacen.cerrar();
+        almacen = abrir();
+        for (int i = 0; i < 4; i++) assertThat(almacen.existe("foto-" + i)).isFalse();
+        for (int i = 4; i < 6; i++) assertThat(leer("foto-" + i)).isEqualTo("contenido de la foto " + i);
+    }
+
+    private AlmacenSegmentos abrir() throws IOException {
+        AlmacenSegmentos nuevo = new AlmacenSegmentos();
+        ReflectionTestUtils.setField(nuevo, "io", io);
+        ReflectionTestUtils.setField(nuevo, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(nuevo, "path", directorio.toString());
+        ReflectionTestUtils.setField(nuevo, "tamanoMax", DataSize.ofBytes(100));
+        ReflectionTestUtils.setField(nuevo, "compactacion", Duration.ofHours(1));
+        ReflectionTestUtils.setField(nuevo, "umbral", 0.5);
+        nuevo.iniciar();
+        return nuevo;
+    }
+
+    private String leer(String clave) throws IOException {
+        try (InputStream entrada = almacen.leer(clave).getRecurso().getInputStream()) {
+            return new String(entrada.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private int contarSegmentos() throws IOException {
+        try (Stream<Path> segmentos = Files.list(directorio.resolve("segmentos"))) {
+            return (int) segmentos.count();
+        }
+    }
+
+    private static byte[] bytes(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.soporte.AplicacionEnMemoria;
+import com.cursoudemy.springboot.webflux.app.soporte.Catalogo;
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CambiosServiceTests {
+    private MongoEnMemoria mongo;
+    private ConfigurableApplicationContext context;
+    private CambiosService cambios;
+    private ProductoService service;
+
+    @BeforeEach
+    void setUp() {
+        mongo = new MongoEnMemoria();
+        mongo.cargar(Catalogo.categorias(), Catalogo.productos(5, 42));
+        context = AplicacionEnMemoria.iniciar(mongo, false, "config.cambios.buffer=4",
+                "config.cambios.reintento=10ms");
+        cambios = context.getBean(CambiosService.class);
+        service = context.getBean(ProductoService.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+
+    @Test
+    void reparteLosCambiosFiltraPorCategoriaEInvalidaLaCache() {
+        Producto producto = service.findById(mongo.ids().get(0)).block();
+        String categoria = producto.getCategoria().getId();
+        Producto otro = mongo.getProductoDao().findAll()
+                .filter(p -> !p.getCategoria().getId().equals(categoria)).blockFirst();
+
+        StepVerifier.create(cambios.cambios(null, categoria).take(2))
+                .then(() -> {
+                    otro.setNombre("Otra categoria");
+                    mongo.getProductoDao().save(otro).block();
+                    producto.setNombre("Renombrado");
+                    mongo.getProductoDao().save(producto).block();
+                    // los eliminados no traen documento y pasan cualquier filtro
+                    service.deleteById(otro.getId()).block();
+                })
+                .assertNext(cambio -> {
+                    assertThat(cambio.getTipo()).isEqualTo(CambioProducto.ACTUALIZADO);
+                    assertThat(cambio.getProducto().getNombre()).isEqualTo("Renombrado");
+                })
+                .assertNext(cambio -> assertThat(cambio.getTipo()).isEqualTo(CambioProducto.ELIMINADO))
+                .verifyComplete();
+        // El evento invalido la entrada cacheada por el findById anterior
+        assertThat(service.findById(producto.getId()).block().getNombre()).isEqualTo("Renombrado");
+    }
+
+    @Test
+    void retomaDesdeElLastEventIdOPideReiniciarSiNoLoConoce() {
+        List<String> ids = cambios.cambios(null, null).take(3)
+                .doOnSubscribe(s -> mongo.ids().stream().limit(3).forEach(id ->
+                        mongo.getProductoDao().findById(id).flatMap(mongo.getProductoDao()::save).subscribe()))
+                .map(CambioProducto::getId).collectList().block(Duration.ofSeconds(5));
+
+        List<ServerSentEvent<CambioProducto>> eventos = WebTestClient.bindToApplicationContext(context).build()
+                .get().uri("/api/productos/cambios").header("Last-Event-ID", ids.get(0)).exchange()
+                .expectStatus().isOk()
+                .returnResult(new ParameterizedTypeReference<ServerSentEvent<CambioProducto>>() {
+                })
+                .getResponseBody().take(2).collectList().block(Duration.ofSeconds(5));
+        assertThat(eventos).extracting(ServerSentEvent::id).containsExactly(ids.get(1), ids.get(2));
+        assertThat(eventos).extracting(ServerSentEvent::event).containsOnly(CambioProducto.ACTUALIZADO);
+
+        StepVerifier.create(cambios.cambios("desconocido", null).take(1))
+                .assertNext(cambio -> assertThat(cambio.getTipo()).isEqualTo(CambioProducto.REINICIO))
+                .verifyComplete();
+    }
+
+    @Test
+    void siElOplogYaNoLlegaAlTokenReabreDesdeAhoraYPideReiniciar() throws InterruptedException {
+        List<String> ids = mongo.ids();
+        List<CambioProducto> recibidos = new CopyOnWriteArrayList<>();
+        Disposable suscripcion = cambios.cambios(null, null).subscribe(recibidos::add);
+        guardar(ids.get(0));
+        // Reanudar con el token falla siempre: sin reiniciar se quedaria reintentando para siempre
+        mongo.cortarCambios(true);
+        // El stream se reabre en segundo plano; lo guardado antes de eso no llega
+        for (int i = 0; i < 250 && recibidos.size() < 3; i++) {
+            guardar(ids.get(1));
+            Thread.sleep(20);
+        }
+        suscripcion.dispose();
+
+        assertThat(recibidos).extracting(CambioProducto::getTipo)
+                .startsWith(CambioProducto.ACTUALIZADO, CambioProducto.REINICIO, CambioProducto.ACTUALIZADO);
+        assertThat(recibidos.get(2).getProductoId()).isEqualTo(ids.get(1));
+    }
+
+    private void guardar(String id) {
+        mongo.getProductoDao().findById(id).flatMap(mongo.getProductoDao()::save).block();
+    }
+
+    @Test
+    void cortaAlSuscriptorQueNoConsume() {
+        StepVerifier.create(cambios.cambios(null, null), 0)
+                // la cola acotada redondea a potencia de dos (minimo 8): con 15 eventos se desborda
+                .then(() -> Flux.fromIterable(mongo.ids()).repeat(2)
+                        .concatMap(id -> mongo.getProductoDao().findById(id).flatMap(mongo.getProductoDao()::save)).blockLast())
+                .expectError(IllegalStateException.class)
+                .verify(Duration.ofSeconds(5));
+    }
+}
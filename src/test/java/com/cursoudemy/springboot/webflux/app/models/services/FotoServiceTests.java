@@ -0,0 +1,146 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.soporte.MongoEnMemoria;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FotoServiceTests {
+    private Path directorio;
+    private Scheduler io;
+    private MongoEnMemoria mongo;
+    private AlmacenArchivos almacen;
+    private FotoService fotos;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directorio = Files.createTempDirectory("fotos");
+        io = Schedulers.newBoundedElastic(2, 100, "io");
+        mongo = new MongoEnMemoria();
+        almacen = new AlmacenArchivos();
+        ReflectionTestUtils.setField(almacen, "path", directorio.toString());
+        fotos = new FotoService();
+        ReflectionTestUtils.setField(fotos, "almacen", almacen);
+        ReflectionTestUtils.setField(fotos, "mongoTemplate", mongo.getMongoTemplate());
+        ReflectionTestUtils.setField(fotos, "path", directorio.toString());
+        ReflectionTestUtils.setField(fotos, "io", io);
+        ReflectionTestUtils.setField(fotos, "meterRegistry", new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        io.dispose();
+        FileSystemUtils.deleteRecursively(directorio);
+    }
+
+    @Test
+    void elMismoContenidoSeGuardaUnaVezYSeBorraConLaUltimaReferencia() throws IOException {
+        String nombre = fotos.guardar(new Archivo("a.png", "contenido")).block();
+        assertThat(fotos.guardar(new Archivo("b.PNG", "contenido")).block()).isEqualTo(nombre);
+        assertThat(mongo.foto(nombre).getReferencias()).isEqualTo(2);
+
+        fotos.liberar(nombre).block();
+        assertThat(almacen.existe(nombre)).isTrue();
+        assertThat(mongo.foto(nombre).getReferencias()).isEqualTo(1);
+
+        fotos.liberar(nombre).block();
+        assertThat(almacen.existe(nombre)).isFalse();
+        assertThat(mongo.foto(nombre)).isNull();
+    }
+
+    @Test
+    void laExtensionSaleDelContenidoYNoDelNombreDelCliente() {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0, 1, 1};
+        String nombre = fotos.guardar(new Archivo("a.jpeg", jpeg)).block();
+        assertThat(nombre).endsWith(".jpg");
+        // La firma llega partida entre dos buffers
+        assertThat(fotos.guardar(new Archivo("b.JPG", jpeg, 2)).block()).isEqualTo(nombre);
+        assertThat(fotos.guardar(new Archivo("sin-extension", jpeg)).block()).isEqualTo(nombre);
+        assertThat(mongo.foto(nombre).getReferencias()).isEqualTo(3);
+
+        // Sin formato reconocible se usa la del nombre, con los alias unificados
+        assertThat(fotos.guardar(new Archivo("a.JPEG", "contenido")).block())
+                .isEqualTo(fotos.guardar(new Archivo("b.jpg", "contenido")).block())
+                .endsWith(".jpg");
+    }
+
+    @Test
+    void unaSubidaEntreElDecrementoYLaMarcaConservaLosBytes() throws IOException {
+        String nombre = fotos.guardar(new Archivo("a.png", "contenido")).block();
+
+        // La ultima referencia llega a cero y, antes de marcarla, otro producto sube la misma foto
+        mongo.antesDeMarcarFoto(fotos.guardar(new Archivo("b.png", "contenido")));
+        fotos.liberar(nombre).block();
+
+        assertThat(almacen.existe(nombre)).isTrue();
+        assertThat(mongo.foto(nombre).getReferencias()).isEqualTo(1);
+        assertThat(mongo.foto(nombre).getBorrando()).isNull();
+    }
+
+    private static class Archivo implements FilePart {
+        private final String filename;
+        private final byte[] contenido;
+        // bytes del primer buffer; el resto llega en otro
+        private final int corte;
+
+        Archivo(String filename, String contenido) {
+            this(filename, contenido.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Archivo(String filename, byte[] contenido) {
+            this(filename, contenido, contenido.length);
+        }
+
+        Archivo(String filename, byte[] contenido, int corte) {
+            this.filename = filename;
+            this.contenido = contenido;
+            this.corte = corte;
+        }
+
+        @Override
+        public String filename() {
+            return filename;
+        }
+
+        @Override
+        public Mono<Void> transferTo(Path dest) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+
+        @Override
+        public String name() {
+            return "file";
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return HttpHeaders.EMPTY;
+        }
+
+        @Override
+        public Flux<DataBuffer> content() {
+            return Flux.defer(() -> Flux.just(Arrays.copyOf(contenido, corte), Arrays.copyOfRange(contenido, corte, contenido.length))
+                    .filter(parte -> parte.length > 0)
+                    .map(DefaultDataBufferFactory.sharedInstance::wrap));
+        }
+    }
+}
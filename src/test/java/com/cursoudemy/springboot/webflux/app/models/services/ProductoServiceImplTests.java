@@ -0,0 +1,472 @@
+package com.cursoudemy.springboot.webflux.app.models.services;
+
+import com.cursoudemy.springboot.webflux.app.models.dao.CategoriaDao;
+import com.cursoudemy.springboot.webflux.app.models.dao.ProductoDao;
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ProductoServiceImplTests {
+    @Mock
+    private ProductoDao dao;
+    @Mock
+    private CategoriaDao categoriaDao;
+    @Mock
+    private PropagacionCategorias propagacion;
+    @Mock
+    private ReactiveMongoTemplate mongoTemplate;
+    @InjectMocks
+    private ProductoServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "categoriasMaxSize", 100L);
+        ReflectionTestUtils.setField(service, "categoriasTtl", Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(service, "categoriasRefresh", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(service, "productosCacheEnabled", true);
+        ReflectionTestUtils.setField(service, "productosMaxSize", 100L);
+        ReflectionTestUtils.setField(service, "productosTtl", Duration.ofMinutes(5));
+        ReflectionTestUtils.setField(service, "productosNegativeTtl", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(service, "estadisticasTtl", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(service, "defaultLimit", 50);
+        ReflectionTestUtils.setField(service, "maxLimit", 500);
+        ReflectionTestUtils.setField(service, "searchDefaultLimit", 20);
+        ReflectionTestUtils.setField(service, "searchMaxLimit", 100);
+        ReflectionTestUtils.setField(service, "loteMaxIds", 100);
+        service.initCaches();
+    }
+
+    @Test
+    void findByIdUsaLaCacheHastaQueSeGuarda() {
+        Categoria categoria = new Categoria("Electronico");
+        categoria.setId("c1");
+        Producto producto = new Producto("Apple iPod", 46.89, categoria);
+        producto.setId("1");
+        when(dao.findById("1")).thenReturn(Mono.just(producto));
+        when(categoriaDao.findById("c1")).thenReturn(Mono.just(categoria));
+        when(dao.save(any(Producto.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(service.findById("1")).expectNextCount(1).verifyComplete();
+        StepVerifier.create(service.findById("1")).expectNextCount(1).verifyComplete();
+        verify(dao, times(1)).findById("1");
+
+        StepVerifier.create(service.save(producto)).expectNextCount(1).verifyComplete();
+        StepVerifier.create(service.findById("1")).expectNextCount(1).verifyComplete();
+        verify(dao, times(2)).findById("1");
+    }
+
+    @Test
+    void saveEmbebeUnaCopiaDeLaCategoriaCacheadaSinVolverAMongo() {
+        Categoria guardada = new Categoria("Electronica");
+        guardada.setId("c1");
+        Categoria recibida = new Categoria("Inventada");
+        recibida.setId("c1");
+        when(categoriaDao.findById("c1")).thenReturn(Mono.just(guardada));
+        when(dao.save(any(Producto.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        StepVerifier.create(service.findCategoriaById("c1")).expectNext(guardada).verifyComplete();
+        Producto producto = new Producto("Apple iPod", 46.89, recibida);
+        producto.setId("1");
+
+        // Si la cache esta vieja, el repaso de la propagacion corrige la copia despues
+        StepVerifier.create(service.save(producto))
+                .assertNext(p -> assertThat(p.getCategoria()).isNotSameAs(guardada)
+                        .usingRecursiveComparison().isEqualTo(guardada))
+                .verifyComplete();
+        verify(categoriaDao, times(1)).findById("c1");
+    }
+
+    @Test
+    void saveYUpdateRechazanUnaCategoriaSinIdODesconocida() {
+        Categoria desconocida = new Categoria("Inventada");
+        desconocida.setId("c9");
+        when(categoriaDao.findById("c9")).thenReturn(Mono.empty());
+
+        StepVerifier.create(service.save(new Producto("Apple iPod", 46.89, desconocida)))
+                .verifyError(IllegalArgumentException.class);
+        StepVerifier.create(service.save(new Producto("Apple iPod", 46.89, new Categoria("Sin id"))))
+                .verifyError(IllegalArgumentException.class);
+        StepVerifier.create(service.update("1", new Producto(null, null, desconocida)))
+                .verifyError(IllegalArgumentException.class);
+        verify(dao, never()).save(any(Producto.class));
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    void findByIdCacheaLosIdsInexistentes() {
+        when(dao.findById("x")).thenReturn(Mono.empty());
+
+        StepVerifier.create(service.findById("x")).verifyComplete();
+        StepVerifier.create(service.findById("x")).verifyComplete();
+        verify(dao, times(1)).findById("x");
+    }
+
+    @Test
+    void saveCategoriaInvalidaLaCache() {
+        Categoria categoria = new Categoria("Deporte");
+        categoria.setId("c1");
+        when(categoriaDao.findById("c1")).thenReturn(Mono.just(categoria));
+        when(categoriaDao.save(categoria)).thenReturn(Mono.just(categoria));
+        when(propagacion.propagar(categoria)).thenReturn(Mono.empty());
+
+        StepVerifier.create(service.findCategoriaById("c1")).expectNext(categoria).verifyComplete();
+        StepVerifier.create(service.findCategoriaById("c1")).expectNext(categoria).verifyComplete();
+        StepVerifier.create(service.saveCategoria(categoria)).expectNext(categoria).verifyComplete();
+        StepVerifier.create(service.findCategoriaById("c1")).expectNext(categoria).verifyComplete();
+        verify(categoriaDao, times(2)).findById("c1");
+        verify(propagacion).propagar(categoria);
+    }
+
+    @Test
+    void sinCacheLasConsultasConcurrentesDelMismoIdCompartenUnaSola() {
+        ReflectionTestUtils.setField(service, "productosCacheEnabled", false);
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        service.initCaches();
+        Producto producto = new Producto("Apple iPod", 46.89, new Categoria("Electronico"));
+        producto.setId("1");
+        Sinks.One<Producto> mongo = Sinks.one();
+        AtomicInteger suscripciones = new AtomicInteger();
+        AtomicBoolean cancelada = new AtomicBoolean();
+        when(dao.findById("1")).thenReturn(mongo.asMono()
+                .doOnSubscribe(s -> suscripciones.incrementAndGet())
+                .doOnCancel(() -> cancelada.set(true)));
+
+        // Cancelar a uno de los que esperan no cancela la consulta de los demas
+        Disposable cancelado = service.findById("1").subscribe();
+        Mono<Producto> primero = service.findById("1").cache();
+        Mono<Producto> segundo = service.findById("1").cache();
+        primero.subscribe();
+        segundo.subscribe();
+        cancelado.dispose();
+        assertThat(cancelada).isFalse();
+        mongo.tryEmitValue(producto);
+
+        assertThat(primero.block()).isNotSameAs(segundo.block()).usingRecursiveComparison().isEqualTo(producto);
+        assertThat(suscripciones).hasValue(1);
+
+        // Terminada la consulta, la siguiente vuelve al origen; si todos cancelan, se cancela
+        cancelada.set(false);
+        when(dao.findById("1")).thenReturn(Mono.<Producto>never().doOnCancel(() -> cancelada.set(true)));
+        service.findById("1").subscribe().dispose();
+        assertThat(cancelada).isTrue();
+    }
+
+    @Test
+    void sinCacheElErrorDeLaConsultaCompartidaLlegaATodos() {
+        ReflectionTestUtils.setField(service, "productosCacheEnabled", false);
+        ReflectionTestUtils.setField(service, "meterRegistry", new SimpleMeterRegistry());
+        service.initCaches();
+        Sinks.One<Producto> mongo = Sinks.one();
+        when(dao.findById("1")).thenReturn(mongo.asMono());
+
+        Mono<Producto> primero = service.findById("1").cache();
+        Mono<Producto> segundo = service.findById("1").cache();
+        primero.subscribe(p -> { }, e -> { });
+        segundo.subscribe(p -> { }, e -> { });
+        mongo.tryEmitError(new IllegalStateException("sin conexion"));
+
+        StepVerifier.create(primero).verifyErrorMessage("sin conexion");
+        StepVerifier.create(segundo).verifyErrorMessage("sin conexion");
+        verify(dao, times(1)).findById("1");
+    }
+
+    @Test
+    void losDerivadosSubenLaVersionSoloSiLaFotoNoCambio() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<UpdateDefinition> update = ArgumentCaptor.forClass(UpdateDefinition.class);
+        when(mongoTemplate.updateFirst(query.capture(), update.capture(), eq(Producto.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+
+        StepVerifier.create(service.updateFotoDerivados("1", "a.jpg", Map.of("thumb", "a-thumb.jpg"))).verifyComplete();
+
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("id", "1").append("foto", "a.jpg"));
+        assertThat(update.getValue().getUpdateObject()).isEqualTo(new Document("$set",
+                new Document("derivados", Map.of("thumb", "a-thumb.jpg"))).append("$inc", new Document("version", 1)));
+    }
+
+    @Test
+    void laPaginaSePideDespuesDelCursorEnOrdenDeIdConUnElementoDeMas() {
+        String after = new ObjectId().toHexString();
+        List<Producto> encontrados = List.of(producto(), producto(), producto());
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.fromIterable(encontrados));
+
+        StepVerifier.create(service.findAllPaginado(after, 2, Proyeccion.TODOS))
+                .assertNext(pagina -> {
+                    assertThat(pagina.getContenido()).containsExactlyElementsOf(encontrados.subList(0, 2));
+                    assertThat(pagina.getSiguiente()).isEqualTo(encontrados.get(1).getId());
+                })
+                .verifyComplete();
+
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("id", new Document("$gt", new ObjectId(after))));
+        assertThat(query.getValue().getSortObject()).isEqualTo(new Document("id", 1));
+        assertThat(query.getValue().getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void laPrimeraPaginaNoFiltraYElLimiteSeAcota() {
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(service.findAllPaginado(null, 10_000, Proyeccion.TODOS))
+                .assertNext(pagina -> assertThat(pagina.hasSiguiente()).isFalse())
+                .verifyComplete();
+        StepVerifier.create(service.findAllPaginado(null, null, Proyeccion.TODOS)).expectNextCount(1).verifyComplete();
+
+        assertThat(query.getAllValues()).allSatisfy(q -> assertThat(q.getQueryObject()).isEmpty());
+        assertThat(query.getAllValues()).extracting(Query::getLimit).containsExactly(501, 51);
+    }
+
+    @Test
+    void unCursorQueNoEsUnIdNoLlegaAMongo() {
+        StepVerifier.create(service.findAllPaginado("x", null, Proyeccion.TODOS))
+                .verifyError(IllegalArgumentException.class);
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    void laExportacionSigueDespuesDelCursorEnOrdenDeIdSinLimite() {
+        String after = new ObjectId().toHexString();
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(service.findAllDesde(after, Proyeccion.TODOS)).verifyComplete();
+
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("id", new Document("$gt", new ObjectId(after))));
+        assertThat(query.getValue().getSortObject()).isEqualTo(new Document("id", 1));
+        assertThat(query.getValue().getLimit()).isZero();
+    }
+
+    @Test
+    void laBusquedaPideElPrefijoDelNombreNormalizadoYDespuesElDeCadaPalabra() {
+        Producto porNombre = producto();
+        Producto porPalabras = producto();
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class)))
+                .thenReturn(Flux.just(porNombre))
+                .thenReturn(Flux.just(porNombre, porPalabras, producto()));
+
+        // Los que ya vinieron por el nombre no se repiten y el limite corta el resto
+        StepVerifier.create(service.buscarPorNombre("  Élite: CAF ", 2, Proyeccion.TODOS))
+                .expectNext(porNombre, porPalabras)
+                .verifyComplete();
+
+        Query nombre = query.getAllValues().get(0);
+        assertThat(nombre.getQueryObject().get("nombreNormalizado")).isInstanceOfSatisfying(Pattern.class,
+                regex -> assertThat(regex.pattern()).isEqualTo("^elite caf"));
+        assertThat(nombre.getSortObject()).isEqualTo(new Document("nombreNormalizado", 1));
+        assertThat(nombre.getLimit()).isEqualTo(2);
+
+        Query palabras = query.getAllValues().get(1);
+        assertThat(palabras.getQueryObject().get("palabras", Document.class).getList("$all", Pattern.class))
+                .extracting(Pattern::pattern)
+                .containsExactly("^elite", "^caf");
+        assertThat(palabras.getSortObject()).isEqualTo(new Document("nombreNormalizado", 1).append("id", 1));
+        assertThat(palabras.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void losProductosSinNombreNormalizadoSeCompletanEnLotes() {
+        List<Producto> viejos = new ArrayList<>();
+        for (String nombre : List.of("Cámara Sony", "TV-LCD", "Apple iPod")) {
+            Producto producto = new Producto(nombre, 1.0);
+            producto.setId(new ObjectId().toHexString());
+            viejos.add(producto);
+        }
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.fromIterable(viejos));
+        MongoCollection<Document> coleccion = mock(MongoCollection.class);
+        when(mongoTemplate.getCollectionName(Producto.class)).thenReturn("productos");
+        when(mongoTemplate.getCollection("productos")).thenReturn(Mono.just(coleccion));
+        ArgumentCaptor<List<UpdateOneModel<Document>>> lotes = ArgumentCaptor.forClass(List.class);
+        when(coleccion.bulkWrite(lotes.capture(), any(BulkWriteOptions.class))).thenAnswer(invocation -> Mono.just(
+                BulkWriteResult.acknowledged(0, invocation.<List<?>>getArgument(0).size(), 0,
+                        invocation.<List<?>>getArgument(0).size(), List.of(), List.of())));
+
+        StepVerifier.create(service.normalizarNombres(2)).expectNext(3L).verifyComplete();
+
+        assertThat(query.getValue().getQueryObject())
+                .isEqualTo(new Document("nombreNormalizado", new Document("$exists", false)));
+        assertThat(query.getValue().getFieldsObject()).isEqualTo(new Document("nombre", 1));
+        assertThat(lotes.getAllValues()).extracting(List::size).containsExactly(2, 1);
+        UpdateOneModel<Document> primero = lotes.getAllValues().get(0).get(0);
+        assertThat(primero.getFilter()).isEqualTo(new Document("_id", new ObjectId(viejos.get(0).getId()))
+                .append("nombreNormalizado", new Document("$exists", false)));
+        assertThat(primero.getUpdate()).isEqualTo(new Document("$set", new Document("nombreNormalizado", "camara sony")
+                .append("palabras", List.of("camara", "sony"))));
+    }
+
+    @Test
+    void unaBusquedaSinLetrasNiDigitosNoLlegaAMongo() {
+        StepVerifier.create(service.buscarPorNombre(" ¿?.* ", null, Proyeccion.TODOS)).verifyComplete();
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    void lasEstadisticasPorPeriodoAgrupanPorCategoriaYFechaFormateada() {
+        List<TypedAggregation<?>> agregaciones = new ArrayList<>();
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(Document.class))).thenAnswer(invocation -> {
+            agregaciones.add(invocation.getArgument(0));
+            return Flux.just(new Document("_id", new Document("categoriaId", "c1").append("periodo", "2024-05"))
+                    .append("categoriaNombre", "Electronico")
+                    .append("cantidad", 3)
+                    .append("precioMinimo", 10.0)
+                    .append("precioPromedio", 20.0)
+                    .append("precioMaximo", 30.0));
+        });
+
+        StepVerifier.create(service.estadisticasPorCategoria("mes"))
+                .assertNext(estadistica -> {
+                    assertThat(estadistica.getCategoriaId()).isEqualTo("c1");
+                    assertThat(estadistica.getPeriodo()).isEqualTo("2024-05");
+                    assertThat(estadistica.getCategoriaNombre()).isEqualTo("Electronico");
+                    assertThat(estadistica.getCantidad()).isEqualTo(3);
+                    assertThat(estadistica.getPrecioMinimo()).isEqualTo(10.0);
+                    assertThat(estadistica.getPrecioPromedio()).isEqualTo(20.0);
+                    assertThat(estadistica.getPrecioMaximo()).isEqualTo(30.0);
+                })
+                .verifyComplete();
+        // Dentro del ttl sale de la cache, aunque lleguen cambios de productos
+        service.invalidar("1");
+        StepVerifier.create(service.estadisticasPorCategoria("mes")).expectNextCount(1).verifyComplete();
+        assertThat(agregaciones).hasSize(1);
+
+        List<Document> pipeline = agregaciones.get(0).toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertThat(pipeline).hasSize(3);
+        assertThat(pipeline.get(0).get("$project", Document.class)).isEqualTo(new Document("precio", 1)
+                .append("categoriaId", "$categoria.id")
+                .append("categoriaNombre", "$categoria.nombre")
+                .append("periodo", new Document("$dateToString", new Document("format", "%Y-%m").append("date", "$createdAt"))));
+        assertThat(pipeline.get(1).get("$group", Document.class)).isEqualTo(new Document("_id",
+                new Document("categoriaId", "$categoriaId").append("periodo", "$periodo"))
+                .append("categoriaNombre", new Document("$first", "$categoriaNombre"))
+                .append("cantidad", new Document("$sum", 1))
+                .append("precioMinimo", new Document("$min", "$precio"))
+                .append("precioPromedio", new Document("$avg", "$precio"))
+                .append("precioMaximo", new Document("$max", "$precio")));
+        assertThat(pipeline.get(2)).isEqualTo(new Document("$sort", new Document("_id", 1)));
+    }
+
+    @Test
+    void sinPeriodoLasEstadisticasAgrupanSoloPorCategoria() {
+        List<TypedAggregation<?>> agregaciones = new ArrayList<>();
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(Document.class))).thenAnswer(invocation -> {
+            agregaciones.add(invocation.getArgument(0));
+            return Flux.just(new Document("_id", "c1").append("categoriaNombre", "Electronico").append("cantidad", 1)
+                    .append("precioMinimo", 10.0).append("precioPromedio", 10.0).append("precioMaximo", 10.0));
+        });
+
+        StepVerifier.create(service.estadisticasPorCategoria(null))
+                .assertNext(estadistica -> {
+                    assertThat(estadistica.getCategoriaId()).isEqualTo("c1");
+                    assertThat(estadistica.getPeriodo()).isNull();
+                })
+                .verifyComplete();
+
+        List<Document> pipeline = agregaciones.get(0).toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertThat(pipeline.get(0).get("$project", Document.class)).doesNotContainKey("periodo");
+        assertThat(pipeline.get(1).get("$group", Document.class).get("_id")).isEqualTo("$categoriaId");
+    }
+
+    @Test
+    void unPeriodoDesconocidoNoLlegaAMongo() {
+        StepVerifier.create(service.estadisticasPorCategoria("semana")).verifyError(IllegalArgumentException.class);
+        verifyNoInteractions(mongoTemplate);
+    }
+
+    @Test
+    void losCamposPedidosVanComoProyeccionDeLaConsulta() {
+        Proyeccion proyeccion = Proyeccion.of("nombre, precio");
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.empty());
+
+        StepVerifier.create(service.findAllPaginado(null, null, proyeccion)).expectNextCount(1).verifyComplete();
+        StepVerifier.create(service.findAllDesde(null, proyeccion)).verifyComplete();
+        StepVerifier.create(service.buscarPorNombre("cafe", null, proyeccion)).verifyComplete();
+
+        assertThat(query.getAllValues()).hasSize(4).allSatisfy(q ->
+                assertThat(q.getFieldsObject()).isEqualTo(new Document("nombre", 1).append("precio", 1)));
+    }
+
+    @Test
+    void elLotePideSoloLosQueNoEstanEnLaCacheYProyectaLosCacheados() {
+        Producto cacheado = producto();
+        Producto leido = producto();
+        leido.setPrecio(null);
+        when(dao.findById(cacheado.getId())).thenReturn(Mono.just(cacheado));
+        StepVerifier.create(service.findById(cacheado.getId())).expectNextCount(1).verifyComplete();
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        when(mongoTemplate.find(query.capture(), eq(Producto.class))).thenReturn(Flux.just(leido));
+
+        StepVerifier.create(service.findAllById(List.of(cacheado.getId(), leido.getId()), Proyeccion.of("nombre")))
+                .assertNext(lote -> {
+                    assertThat(lote.getContenido()).extracting(Producto::getId).containsExactly(cacheado.getId(), leido.getId());
+                    assertThat(lote.getContenido().get(0).getNombre()).isEqualTo(cacheado.getNombre());
+                    assertThat(lote.getContenido().get(0).getPrecio()).isNull();
+                    assertThat(lote.getContenido().get(0).getCategoria()).isNull();
+                })
+                .verifyComplete();
+
+        assertThat(query.getValue().getQueryObject()).isEqualTo(new Document("id", new Document("$in", List.of(leido.getId()))));
+        assertThat(query.getValue().getFieldsObject()).isEqualTo(new Document("nombre", 1));
+    }
+
+    @Test
+    void unCampoDesconocidoSeRechaza() {
+        assertThatIllegalArgumentException().isThrownBy(() -> Proyeccion.of("nombre,clave")).withMessageContaining("clave");
+        assertThat(Proyeccion.of(" , ")).isSameAs(Proyeccion.TODOS);
+    }
+
+    private static Producto producto() {
+        Producto producto = new Producto("Apple iPod", 46.89, new Categoria("Electronico"));
+        producto.setId(new ObjectId().toHexString());
+        return producto;
+    }
+}
@@ -0,0 +1,105 @@
+package com.cursoudemy.springboot.webflux.app.soporte;
+
+import com.cursoudemy.springboot.webflux.app.AdmisionFilter;
+import com.cursoudemy.springboot.webflux.app.BloqueosConfig;
+import com.cursoudemy.springboot.webflux.app.CodecsConfig;
+import com.cursoudemy.springboot.webflux.app.MetricasSchedulers;
+import com.cursoudemy.springboot.webflux.app.RouterFunctionConfig;
+import com.cursoudemy.springboot.webflux.app.SchedulersConfig;
+import com.cursoudemy.springboot.webflux.app.SubidasMultipart;
+import com.cursoudemy.springboot.webflux.app.VistasConfig;
+import com.cursoudemy.springboot.webflux.app.controllers.FilasCache;
+import com.cursoudemy.springboot.webflux.app.controllers.ProductoController;
+import com.cursoudemy.springboot.webflux.app.controllers.RenderizadoAdaptativo;
+import com.cursoudemy.springboot.webflux.app.controllers.ProductoRestController;
+import com.cursoudemy.springboot.webflux.app.handler.ProductHandler;
+import com.cursoudemy.springboot.webflux.app.models.dao.CategoriaDao;
+import com.cursoudemy.springboot.webflux.app.models.dao.ProductoDao;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenArchivos;
+import com.cursoudemy.springboot.webflux.app.models.services.AlmacenSegmentos;
+import com.cursoudemy.springboot.webflux.app.models.services.CambiosService;
+import com.cursoudemy.springboot.webflux.app.models.services.FotoService;
+import com.cursoudemy.springboot.webflux.app.models.services.MiniaturaService;
+import com.cursoudemy.springboot.webflux.app.models.services.ProductoServiceImpl;
+import com.cursoudemy.springboot.webflux.app.models.services.PropagacionCategorias;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.ApplicationContextFactory;
+import org.springframework.boot.actuate.autoconfigure.metrics.MetricsAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.metrics.web.reactive.WebFluxMetricsAutoConfiguration;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.http.codec.CodecsAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.thymeleaf.ThymeleafAutoConfiguration;
+import org.springframework.boot.autoconfigure.validation.ValidationAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.reactive.HttpHandlerAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.reactive.ReactiveWebServerFactoryAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.reactive.WebFluxAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.reactive.context.AnnotationConfigReactiveWebApplicationContext;
+import org.springframework.boot.web.reactive.context.AnnotationConfigReactiveWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+
+import java.util.Arrays;
+
+/**
+ * La capa web real (rutas, controladores, servicios, codecs y Thymeleaf) sobre {@link MongoEnMemoria}. No lleva
+ * {@code @Configuration} para que el escaneo de componentes de la aplicacion no la recoja.
+ */
+@ImportAutoConfiguration({PropertyPlaceholderAutoConfiguration.class, JacksonAutoConfiguration.class,
+        CodecsAutoConfiguration.class, ValidationAutoConfiguration.class, WebFluxAutoConfiguration.class,
+        HttpHandlerAutoConfiguration.class, ReactiveWebServerFactoryAutoConfiguration.class, ThymeleafAutoConfiguration.class,
+        MetricsAutoConfiguration.class, WebFluxMetricsAutoConfiguration.class})
+@Import({AdmisionFilter.class, CodecsConfig.class, SchedulersConfig.class, MetricasSchedulers.class, BloqueosConfig.class, VistasConfig.class,
+        RouterFunctionConfig.class, ProductHandler.class, ProductoRestController.class, ProductoController.class,
+        FilasCache.class, RenderizadoAdaptativo.class, ProductoServiceImpl.class, MiniaturaService.class, FotoService.class,
+        CambiosService.class, AlmacenArchivos.class, AlmacenSegmentos.class, SubidasMultipart.class,
+        PropagacionCategorias.class})
+public class AplicacionEnMemoria {
+
+    public static ConfigurableApplicationContext iniciar(MongoEnMemoria mongo) {
+        return iniciar(mongo, false);
+    }
+
+    // Con servidor se levanta Netty de verdad (server.port=0 elige un puerto libre), sin el solo hay WebTestClient
+    public static ConfigurableApplicationContext iniciar(MongoEnMemoria mongo, boolean servidor, String... propiedades) {
+        // devtools esta en el classpath de test: su reinicio volveria a invocar el main sin argumentos
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        return new SpringApplicationBuilder(AplicacionEnMemoria.class)
+                .web(WebApplicationType.REACTIVE)
+                .contextFactory(ApplicationContextFactory.of(servidor ? AnnotationConfigReactiveWebServerApplicationContext::new
+                        : AnnotationConfigReactiveWebApplicationContext::new))
+                .initializers(context -> context.getBeanFactory().registerSingleton("mongoEnMemoria", mongo))
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .properties("logging.level.root=warn", "server.port=0")
+                // Como argumentos para que prevalezcan sobre application.properties
+                .run(Arrays.stream(propiedades).map(propiedad -> "--" + propiedad).toArray(String[]::new));
+    }
+
+    @Bean
+    public ProductoDao productoDao(MongoEnMemoria mongo) {
+        return mongo.getProductoDao();
+    }
+
+    @Bean
+    public CategoriaDao categoriaDao(MongoEnMemoria mongo) {
+        return mongo.getCategoriaDao();
+    }
+
+    @Bean
+    public ReactiveMongoTemplate reactiveMongoTemplate(MongoEnMemoria mongo) {
+        return mongo.getMongoTemplate();
+    }
+
+    @Bean
+    public MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+}
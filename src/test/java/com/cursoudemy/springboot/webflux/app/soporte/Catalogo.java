@@ -0,0 +1,62 @@
+package com.cursoudemy.springboot.webflux.app.soporte;
+
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// Datos sinteticos con la forma de los productos reales (nombres compuestos, foto con digest y derivados)
+public final class Catalogo {
+    private static final String[] MARCAS = {"Sony", "Apple", "Samsung", "Hewlett Packard", "Bianchi", "Lenovo", "Asus", "Mica"};
+    private static final String[] TIPOS = {"Notebook", "Camara Digital", "Televisor LCD", "Bicicleta", "Comoda", "Monitor",
+            "Impresora", "Audifonos"};
+    private static final String[] MODELOS = {"Pro", "Air", "Ultra", "Mini", "Max", "Lite", "Plus", "Z"};
+    private static final String[] CATEGORIAS = {"Electronico", "Deporte", "Computacion", "Muebles"};
+
+    private Catalogo() {
+    }
+
+    // Ids fijos para que las categorias embebidas en productos() existan entre las cargadas
+    public static List<Categoria> categorias() {
+        List<Categoria> categorias = new ArrayList<>();
+        for (int i = 0; i < CATEGORIAS.length; i++) {
+            Categoria categoria = new Categoria(CATEGORIAS[i]);
+            categoria.setId(String.format("%024x", i + 1));
+            categorias.add(categoria);
+        }
+        return categorias;
+    }
+
+    public static List<Producto> productos(int cantidad, long semilla) {
+        SplittableRandom random = new SplittableRandom(semilla);
+        List<Categoria> categorias = categorias();
+        List<Producto> productos = new ArrayList<>(cantidad);
+        for (int i = 0; i < cantidad; i++) {
+            Producto producto = new Producto(nombre(random, i), Math.round(random.nextDouble(10, 5000) * 100) / 100.0,
+                    categorias.get(random.nextInt(categorias.size())));
+            producto.setId(new ObjectId().toHexString());
+            producto.setVersion((long) random.nextInt(5));
+            producto.setCreatedAt(new Date(1_600_000_000_000L + random.nextLong(100_000_000_000L)));
+            if (random.nextInt(4) > 0) {
+                byte[] digest = new byte[32];
+                random.nextBytes(digest);
+                String hex = HexFormat.of().formatHex(digest);
+                producto.setFoto(hex + ".jpg");
+                producto.setDerivados(Map.of("thumb", hex + "-thumb.jpg", "medium", hex + "-medium.jpg"));
+            }
+            productos.add(producto);
+        }
+        return productos;
+    }
+
+    private static String nombre(SplittableRandom random, int i) {
+        return TIPOS[random.nextInt(TIPOS.length)] + " " + MARCAS[random.nextInt(MARCAS.length)] + " "
+                + MODELOS[random.nextInt(MODELOS.length)] + " " + i;
+    }
+}
@@ -0,0 +1,407 @@
+package com.cursoudemy.springboot.webflux.app.soporte;
+
+import com.cursoudemy.springboot.webflux.app.models.dao.CategoriaDao;
+import com.cursoudemy.springboot.webflux.app.models.dao.ProductoDao;
+import com.cursoudemy.springboot.webflux.app.models.documents.Categoria;
+import com.cursoudemy.springboot.webflux.app.models.documents.Foto;
+import com.cursoudemy.springboot.webflux.app.models.documents.Producto;
+import com.cursoudemy.springboot.webflux.app.models.documents.PropagacionCategoria;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.mockito.ArgumentMatchers;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Sustituto en memoria de Mongo para los tests y los benchmarks: los daos y el template son mocks que responden
+ * desde mapas, asi se mide el coste de la aplicacion sin la red ni la base.
+ */
+public class MongoEnMemoria {
+    // Los ids son ObjectId en hex, asi que el orden del mapa es el mismo que el de _id en Mongo
+    private final ConcurrentSkipListMap<String, Producto> productos = new ConcurrentSkipListMap<>();
+    private final Map<String, Categoria> categorias = new ConcurrentHashMap<>();
+    private final Map<String, PropagacionCategoria> propagaciones = new ConcurrentHashMap<>();
+    private final Map<String, Foto> fotos = new ConcurrentHashMap<>();
+
+    // stubOnly: los mocks no guardan las invocaciones, que bajo carga crecerian sin limite
+    private final ProductoDao productoDao = mock(ProductoDao.class, withSettings().stubOnly());
+    private final CategoriaDao categoriaDao = mock(CategoriaDao.class, withSettings().stubOnly());
+    private final ReactiveMongoTemplate mongoTemplate = mock(ReactiveMongoTemplate.class, withSettings().stubOnly());
+    // La coleccion cruda solo la usa el bulkWrite de la importacion
+    @SuppressWarnings("unchecked")
+    private final MongoCollection<Document> coleccion = mock(MongoCollection.class, withSettings().stubOnly());
+
+    // Hace de replica set de un nodo: cada guardar publica su evento en el change stream
+    private volatile Sinks.Many<ChangeStreamEvent<Producto>> cambios = Sinks.many().multicast().directBestEffort();
+    private volatile boolean historialPerdido;
+    private volatile Mono<?> antesDeMarcarFoto = Mono.empty();
+    private MappingMongoConverter converter;
+    private final AtomicLong tokens = new AtomicLong();
+
+    public MongoEnMemoria() {
+        when(productoDao.findById(anyString())).thenAnswer(invocation ->
+                Mono.justOrEmpty(productos.get(invocation.<String>getArgument(0))).map(Producto::new));
+        when(productoDao.existsById(anyString())).thenAnswer(invocation ->
+                Mono.just(productos.containsKey(invocation.<String>getArgument(0))));
+        when(productoDao.findAll()).thenAnswer(invocation -> Flux.fromIterable(productos.values()).map(Producto::new));
+        when(productoDao.save(any(Producto.class))).thenAnswer(invocation ->
+                Mono.fromSupplier(() -> guardar(invocation.getArgument(0))));
+
+        when(categoriaDao.findById(anyString())).thenAnswer(invocation ->
+                Mono.justOrEmpty(categorias.get(invocation.<String>getArgument(0))));
+        when(categoriaDao.save(any(Categoria.class))).thenAnswer(invocation -> Mono.fromSupplier(() -> {
+            Categoria categoria = invocation.getArgument(0);
+            categorias.put(categoria.getId(), categoria);
+            return categoria;
+        }));
+        when(categoriaDao.findAll()).thenAnswer(invocation -> Flux.fromIterable(categorias.values()));
+        when(categoriaDao.findAllById(ArgumentMatchers.<Publisher<String>>any())).thenAnswer(invocation ->
+                Flux.from(invocation.<Publisher<String>>getArgument(0)).mapNotNull(categorias::get));
+
+        when(mongoTemplate.find(any(Query.class), eq(Producto.class))).thenAnswer(invocation ->
+                buscar(invocation.getArgument(0)));
+        when(mongoTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(Producto.class)))
+                .thenReturn(Mono.just(UpdateResult.acknowledged(1, 1L, null)));
+        when(mongoTemplate.updateMulti(any(Query.class), any(UpdateDefinition.class), eq(Producto.class)))
+                .thenAnswer(invocation -> Mono.fromSupplier(() -> actualizarCategoria(invocation.getArgument(0),
+                        invocation.getArgument(1))));
+        when(mongoTemplate.upsert(any(Query.class), any(UpdateDefinition.class), eq(Foto.class))).thenAnswer(invocation ->
+                Mono.fromCallable(() -> referenciarFoto(invocation.getArgument(0), invocation.getArgument(1))));
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class),
+                eq(Foto.class))).thenAnswer(invocation -> modificarFoto(invocation.getArgument(0), invocation.getArgument(1),
+                invocation.<FindAndModifyOptions>getArgument(2).isReturnNew()));
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), eq(Foto.class))).thenAnswer(invocation ->
+                modificarFoto(invocation.getArgument(0), invocation.getArgument(1), false));
+        when(mongoTemplate.remove(any(Query.class), eq(Foto.class))).thenAnswer(invocation ->
+                Mono.fromSupplier(() -> quitarFoto(invocation.getArgument(0))));
+        when(mongoTemplate.findAndModify(any(Query.class), any(UpdateDefinition.class), any(FindAndModifyOptions.class),
+                eq(Producto.class))).thenAnswer(invocation -> Mono.fromSupplier(() -> modificar(invocation.getArgument(0),
+                invocation.getArgument(1))));
+        when(mongoTemplate.findAndRemove(any(Query.class), eq(Producto.class))).thenAnswer(invocation ->
+                Mono.fromSupplier(() -> borrar(invocation.<Query>getArgument(0).getQueryObject().get("id").toString())));
+        when(mongoTemplate.getConverter()).thenAnswer(invocation -> converter());
+        when(mongoTemplate.getCollectionName(Producto.class)).thenReturn("productos");
+        when(mongoTemplate.getCollection("productos")).thenReturn(Mono.just(coleccion));
+        when(coleccion.bulkWrite(anyList(), any(BulkWriteOptions.class))).thenAnswer(invocation ->
+                Mono.fromCallable(() -> insertar(invocation.getArgument(0))));
+        // Nada que retomar al arrancar: las propagaciones solo viven lo que dura la instancia
+        when(mongoTemplate.find(any(Query.class), eq(PropagacionCategoria.class))).thenReturn(Flux.empty());
+        when(mongoTemplate.save(any(PropagacionCategoria.class))).thenAnswer(invocation -> Mono.fromSupplier(() -> {
+            PropagacionCategoria propagacion = invocation.getArgument(0);
+            propagaciones.put(propagacion.getId(), copiar(propagacion));
+            return propagacion;
+        }));
+        when(mongoTemplate.findById(anyString(), eq(PropagacionCategoria.class))).thenAnswer(invocation ->
+                Mono.justOrEmpty(propagaciones.get(invocation.<String>getArgument(0))).map(MongoEnMemoria::copiar));
+        when(mongoTemplate.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(PropagacionCategoria.class)))
+                .thenAnswer(invocation -> Mono.fromSupplier(() -> avanzar(invocation.getArgument(0), invocation.getArgument(1))));
+        when(mongoTemplate.changeStream(any(), eq("productos"), any(ChangeStreamOptions.class), eq(Producto.class)))
+                .thenAnswer(invocation -> historialPerdido
+                        && invocation.<ChangeStreamOptions>getArgument(2).getResumeToken().isPresent()
+                        ? Flux.error(new MongoCommandException(new BsonDocument("ok", new BsonInt32(0))
+                        .append("code", new BsonInt32(286))
+                        .append("errmsg", new BsonString("Resume of change stream was not possible")), new ServerAddress()))
+                        : cambios.asFlux());
+    }
+
+    public void cargar(Collection<Categoria> categorias, Collection<Producto> productos) {
+        categorias.forEach(c -> this.categorias.put(c.getId(), c));
+        productos.forEach(this::guardar);
+    }
+
+    public List<String> ids() {
+        return List.copyOf(productos.keySet());
+    }
+
+    // Deja solo los productos indicados, para que los benchmarks de escritura no crezcan sin limite
+    public void conservar(Collection<String> ids) {
+        productos.keySet().retainAll(ids);
+    }
+
+    // Copia del documento de la foto, o null si no existe
+    public Foto foto(String nombre) {
+        Foto foto = fotos.get(nombre);
+        return foto == null ? null : copiar(foto);
+    }
+
+    // La proxima marca de borrado de una foto espera a que termine la accion: asi se cuela otra operacion entre el
+    // decremento de las referencias y la marca
+    public void antesDeMarcarFoto(Mono<?> accion) {
+        antesDeMarcarFoto = accion;
+    }
+
+    public ProductoDao getProductoDao() {
+        return productoDao;
+    }
+
+    // Corta el change stream como una caida del primario; con historialPerdido el oplog ya no llega al ultimo token
+    public void cortarCambios(boolean historialPerdido) {
+        this.historialPerdido = historialPerdido;
+        Sinks.Many<ChangeStreamEvent<Producto>> anterior = cambios;
+        cambios = Sinks.many().multicast().directBestEffort();
+        anterior.tryEmitError(new MongoException("Conexion cerrada"));
+    }
+
+    public CategoriaDao getCategoriaDao() {
+        return categoriaDao;
+    }
+
+    public ReactiveMongoTemplate getMongoTemplate() {
+        return mongoTemplate;
+    }
+
+    private Producto guardar(Producto producto) {
+        boolean nuevo = producto.getId() == null || !productos.containsKey(producto.getId());
+        if (producto.getId() == null) producto.setId(new ObjectId().toHexString());
+        producto.setVersion(producto.getVersion() == null ? 0 : producto.getVersion() + 1);
+        productos.put(producto.getId(), new Producto(producto));
+        publicar(nuevo ? OperationType.INSERT : OperationType.REPLACE, producto);
+        return producto;
+    }
+
+    // Los InsertOneModel de la importacion, sin orden: un _id repetido falla solo y el resto se inserta igual
+    private BulkWriteResult insertar(List<? extends WriteModel<? extends Document>> escrituras) {
+        List<BulkWriteError> errores = new ArrayList<>();
+        for (int i = 0; i < escrituras.size(); i++) {
+            Producto producto = converter().read(Producto.class, ((InsertOneModel<? extends Document>) escrituras.get(i)).getDocument());
+            if (productos.putIfAbsent(producto.getId(), producto) == null) publicar(OperationType.INSERT, producto);
+            else errores.add(new BulkWriteError(11000, "E11000 duplicate key error dup key: { _id: " + producto.getId() + " }",
+                    new BsonDocument(), i));
+        }
+        BulkWriteResult resultado = BulkWriteResult.acknowledged(escrituras.size() - errores.size(), 0, 0, 0, List.of(), List.of());
+        if (!errores.isEmpty()) throw new MongoBulkWriteException(resultado, errores, null, new ServerAddress(), Set.of());
+        return resultado;
+    }
+
+    private Producto borrar(String id) {
+        Producto producto = productos.remove(id);
+        if (producto != null) publicar(OperationType.DELETE, producto);
+        return producto;
+    }
+
+    // Se crea con el primer evento, ya con el logging de la aplicacion configurado
+    private synchronized MappingMongoConverter converter() {
+        if (converter == null) {
+            converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+            converter.afterPropertiesSet();
+        }
+        return converter;
+    }
+
+    private void publicar(OperationType operacion, Producto producto) {
+        if (cambios.currentSubscriberCount() == 0) return;
+        MappingMongoConverter converter = converter();
+        Document documento = null;
+        if (operacion != OperationType.DELETE) converter.write(producto, documento = new Document());
+        BsonDocument token = new BsonDocument("_data", new BsonString(Long.toHexString(tokens.incrementAndGet())));
+        BsonDocument clave = new BsonDocument("_id", new BsonObjectId(new ObjectId(producto.getId())));
+        ChangeStreamDocument<Document> raw = new ChangeStreamDocument<>(operacion.getValue(), token, null, null, documento, clave,
+                null, null, null, null);
+        cambios.emitNext(new ChangeStreamEvent<>(raw, Producto.class, converter), Sinks.EmitFailureHandler.FAIL_FAST);
+    }
+
+    // Solo entiende las consultas por rango de _id de la paginacion, por lista de ids y las de la propagacion de
+    // categorias (id de la categoria y nombre distinto)
+    private Flux<Producto> buscar(Query query) {
+        Object id = query.getQueryObject().get("id");
+        if (id instanceof Document criterio && criterio.get("$in") instanceof Collection<?> ids) {
+            return Flux.fromIterable(ids).mapNotNull(clave -> productos.get(clave.toString())).map(Producto::new);
+        }
+        Map<String, Producto> desde = id instanceof Document rango && rango.get("$gt") instanceof ObjectId after
+                ? productos.tailMap(after.toHexString(), false) : productos;
+        Flux<Producto> resultado = Flux.fromIterable(desde.values())
+                .filter(producto -> deCategoria(query.getQueryObject(), producto))
+                .map(Producto::new);
+        return query.getLimit() > 0 ? resultado.take(query.getLimit()) : resultado;
+    }
+
+    private UpdateResult actualizarCategoria(Query query, UpdateDefinition update) {
+        Document criterio = query.getQueryObject();
+        Categoria categoria = (Categoria) ((Document) update.getUpdateObject().get("$set")).get("categoria");
+        long modificados = 0;
+        for (Object id : ((Document) criterio.get("id")).get("$in", Collection.class)) {
+            Producto producto = productos.get(id.toString());
+            if (producto == null || !deCategoria(criterio, producto)) continue;
+            Producto actualizado = new Producto(producto);
+            actualizado.setCategoria(categoria);
+            actualizado.setVersion(producto.getVersion() == null ? 1 : producto.getVersion() + 1);
+            productos.put(actualizado.getId(), actualizado);
+            modificados++;
+        }
+        return UpdateResult.acknowledged(modificados, modificados, null);
+    }
+
+    private static boolean deCategoria(Document criterio, Producto producto) {
+        Object categoriaId = criterio.get("categoria.id");
+        if (categoriaId == null) return true;
+        Object distinto = ((Document) criterio.get("categoria.nombre")).get("$ne");
+        return producto.getCategoria() != null && categoriaId.equals(producto.getCategoria().getId())
+                && !Objects.equals(distinto, producto.getCategoria().getNombre());
+    }
+
+    // Por id y, si viene, version; devuelve el producto ya modificado (returnNew). Atomico como en Mongo
+    private synchronized Producto modificar(Query query, UpdateDefinition update) {
+        Document criterio = query.getQueryObject();
+        Producto producto = productos.get(criterio.get("id").toString());
+        if (producto == null || criterio.containsKey("version") && !criterio.get("version").equals(producto.getVersion()))
+            return null;
+        Producto modificado = aplicar(new Producto(producto), update);
+        productos.put(modificado.getId(), modificado);
+        publicar(OperationType.REPLACE, modificado);
+        return new Producto(modificado);
+    }
+
+    // Solo si la generacion coincide
+    private UpdateResult avanzar(Query query, UpdateDefinition update) {
+        Document criterio = query.getQueryObject();
+        PropagacionCategoria propagacion = propagaciones.get(criterio.get("id").toString());
+        if (propagacion == null || !propagacion.getGeneracion().equals(criterio.get("generacion")))
+            return UpdateResult.acknowledged(0, 0L, null);
+        aplicar(propagacion, update);
+        return UpdateResult.acknowledged(1, 1L, null);
+    }
+
+    // Upsert de una referencia: si el _id existe pero no cumple el filtro (se esta borrando), Mongo intenta
+    // insertarlo y choca con la clave
+    private synchronized UpdateResult referenciarFoto(Query query, UpdateDefinition update) {
+        Document criterio = query.getQueryObject();
+        String id = criterio.get("id").toString();
+        Foto foto = fotos.get(id);
+        if (foto != null && !coincide(criterio, foto))
+            throw new DuplicateKeyException("E11000 duplicate key error dup key: { _id: \"" + id + "\" }");
+        boolean nueva = foto == null;
+        if (nueva) {
+            foto = new Foto();
+            foto.setId(id);
+        }
+        fotos.put(id, aplicar(copiar(foto), update));
+        return nueva ? UpdateResult.acknowledged(0, 0L, new BsonString(id)) : UpdateResult.acknowledged(1, 1L, null);
+    }
+
+    private Mono<Foto> modificarFoto(Query query, UpdateDefinition update, boolean returnNew) {
+        Document set = update.getUpdateObject().get("$set", Document.class);
+        return Mono.defer(() -> {
+            if (set == null || !set.containsKey("borrando")) return Mono.empty();
+            Mono<?> antes = antesDeMarcarFoto;
+            antesDeMarcarFoto = Mono.empty();
+            return antes;
+        }).then(Mono.fromSupplier(() -> {
+            synchronized (this) {
+                Foto foto = fotos.get(query.getQueryObject().get("id").toString());
+                if (foto == null || !coincide(query.getQueryObject(), foto)) return null;
+                Foto modificada = aplicar(copiar(foto), update);
+                fotos.put(modificada.getId(), modificada);
+                return copiar(returnNew ? modificada : foto);
+            }
+        }));
+    }
+
+    private synchronized DeleteResult quitarFoto(Query query) {
+        Foto foto = fotos.get(query.getQueryObject().get("id").toString());
+        if (foto == null || !coincide(query.getQueryObject(), foto)) return DeleteResult.acknowledged(0);
+        fotos.remove(foto.getId());
+        return DeleteResult.acknowledged(1);
+    }
+
+    // Los filtros de FotoService: por id, igualdad, $exists, $lt, $lte y $or
+    private static boolean coincide(Document criterio, Foto foto) {
+        BeanWrapper propiedades = new BeanWrapperImpl(foto);
+        return criterio.entrySet().stream().allMatch(condicion -> condicion.getKey().equals("$or")
+                ? condicion.getValue() instanceof List<?> alternativas
+                        && alternativas.stream().anyMatch(alternativa -> coincide((Document) alternativa, foto))
+                : cumple(condicion.getValue(), propiedades.getPropertyValue(condicion.getKey())));
+    }
+
+    private static boolean cumple(Object condicion, Object valor) {
+        if (!(condicion instanceof Document operadores)) return Objects.equals(condicion, valor);
+        return operadores.entrySet().stream().allMatch(operador -> switch (operador.getKey()) {
+            case "$exists" -> operador.getValue().equals(valor != null);
+            case "$lt" -> valor != null && comparar(valor, operador.getValue()) < 0;
+            case "$lte" -> valor != null && comparar(valor, operador.getValue()) <= 0;
+            default -> throw new IllegalArgumentException("Operador no soportado: " + operador.getKey());
+        });
+    }
+
+    private static int comparar(Object valor, Object limite) {
+        if (valor instanceof Number numero && limite instanceof Number otro)
+            return Double.compare(numero.doubleValue(), otro.doubleValue());
+        return ((Date) valor).compareTo((Date) limite);
+    }
+
+    private static Foto copiar(Foto foto) {
+        Foto copia = new Foto();
+        BeanUtils.copyProperties(foto, copia);
+        return copia;
+    }
+
+    private static PropagacionCategoria copiar(PropagacionCategoria propagacion) {
+        PropagacionCategoria copia = new PropagacionCategoria();
+        BeanUtils.copyProperties(propagacion, copia);
+        return copia;
+    }
+
+    // $set, $unset e $inc directamente sobre las propiedades
+    private static <T> T aplicar(T destino, UpdateDefinition update) {
+        BeanWrapper propiedades = new BeanWrapperImpl(destino);
+        Document cambios = update.getUpdateObject();
+        if (cambios.get("$set") instanceof Document set) set.forEach(propiedades::setPropertyValue);
+        if (cambios.get("$unset") instanceof Document unset) unset.keySet().forEach(campo -> propiedades.setPropertyValue(campo, null));
+        if (cambios.get("$inc") instanceof Document inc) inc.forEach((campo, valor) -> {
+            Number actual = (Number) propiedades.getPropertyValue(campo);
+            propiedades.setPropertyValue(campo, (actual == null ? 0 : actual.longValue()) + ((Number) valor).longValue());
+        });
+        return destino;
+    }
+}